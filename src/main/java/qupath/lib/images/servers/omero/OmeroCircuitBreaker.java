@@ -0,0 +1,171 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.IOException;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker stopping the requests sent to one OMERO server while it looks unhealthy
+ * (e.g. during a maintenance window), so that the threads waiting for its responses do not pile up.
+ * <p>
+ * The circuit opens after {@link OmeroWebPreferences#circuitBreakerFailuresProperty()} consecutive failures
+ * (errors, timeouts or 5xx responses). While it is open, requests fail immediately with an {@link OpenCircuitException}.
+ * Once the open period has elapsed, a single request is let through to probe the server: if it succeeds, the circuit
+ * closes again, otherwise it stays open for twice as long (up to a maximum).
+ * Any response other than a 5xx (e.g. a 404) shows that the server is healthy.
+ */
+final class OmeroCircuitBreaker {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroCircuitBreaker.class);
+
+	/**
+	 * Initial and maximum durations of the open period
+	 */
+	private final static long MIN_OPEN_MILLIS = 5_000;
+	private final static long MAX_OPEN_MILLIS = 120_000;
+
+	private static enum State {CLOSED, OPEN, HALF_OPEN}
+
+	private final String name;
+	private final IntSupplier failuresThreshold;
+	private final LongSupplier clock;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures = 0;
+	private long openMillis = MIN_OPEN_MILLIS;
+	private long openUntil = 0;
+
+	/**
+	 * Create a circuit breaker.
+	 * @param name name of the circuit breaker, used for logging (e.g. the host)
+	 */
+	OmeroCircuitBreaker(String name) {
+		this(name, OmeroWebPreferences.circuitBreakerFailuresProperty()::get, System::currentTimeMillis);
+	}
+
+	/**
+	 * Create a circuit breaker using the specified threshold and clock (e.g. to control them in tests).
+	 * @param name name of the circuit breaker, used for logging (e.g. the host)
+	 * @param failuresThreshold supplier of the number of consecutive failures opening the circuit (0 to never open it)
+	 * @param clock supplier of the current time, in milliseconds
+	 */
+	OmeroCircuitBreaker(String name, IntSupplier failuresThreshold, LongSupplier clock) {
+		this.name = name;
+		this.failuresThreshold = failuresThreshold;
+		this.clock = clock;
+	}
+
+	/**
+	 * Return true if requests currently fail fast, without checking whether a probe could be sent.
+	 * This is only a hint used to avoid queueing requests that will be rejected, see {@link #tryAcquire()}.
+	 * @return true if the circuit is open
+	 */
+	synchronized boolean isOpen() {
+		return state == State.HALF_OPEN || (state == State.OPEN && clock.getAsLong() < openUntil);
+	}
+
+	/**
+	 * Return true if a request can be sent now. If it can, its outcome must be reported with
+	 * {@link #recordSuccess()}, {@link #recordFailure()} or {@link #recordIgnored()}.
+	 * @return true if the request can be sent, false if it should fail fast
+	 */
+	synchronized boolean tryAcquire() {
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (clock.getAsLong() < openUntil)
+				return false;
+			logger.debug("Probing {} after {} s", name, openMillis / 1000);
+			state = State.HALF_OPEN;
+			return true;
+		default:
+			// A probe is already in flight
+			return false;
+		}
+	}
+
+	/**
+	 * Report that a request received a healthy response.
+	 */
+	synchronized void recordSuccess() {
+		if (state != State.CLOSED)
+			logger.info("{} is responding again, resuming requests", name);
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		openMillis = MIN_OPEN_MILLIS;
+	}
+
+	/**
+	 * Report that a request failed in a way suggesting that the server is unhealthy.
+	 */
+	synchronized void recordFailure() {
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN) {
+			openMillis = Math.min(MAX_OPEN_MILLIS, openMillis * 2);
+			open();
+		} else if (state == State.CLOSED) {
+			int threshold = failuresThreshold.getAsInt();
+			if (threshold > 0 && consecutiveFailures >= threshold) {
+				logger.warn("{} failed {} times in a row, stopping requests for {} s", name, consecutiveFailures, openMillis / 1000);
+				open();
+			}
+		}
+	}
+
+	/**
+	 * Report that a request completed without any information about the health of the server (e.g. it was cancelled).
+	 */
+	synchronized void recordIgnored() {
+		// Let another request probe the server
+		if (state == State.HALF_OPEN)
+			state = State.OPEN;
+	}
+
+	private void open() {
+		state = State.OPEN;
+		openUntil = clock.getAsLong() + openMillis;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Circuit breaker %s: %s (%d consecutive failures)", name, state, consecutiveFailures);
+	}
+
+
+	/**
+	 * Exception thrown when a request is not sent because the circuit is open.
+	 */
+	static class OpenCircuitException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		OpenCircuitException(String name) {
+			super(String.format("%s is not responding, requests are paused", name));
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.dialogs.Dialogs;
+
+/**
+ * Command to export the current image (if hosted on OMERO) to a local pyramidal OME-TIFF.
+ *
+ * @see OmeroImageExporter
+ */
+public class OmeroExportImageCommand implements Runnable {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroExportImageCommand.class);
+
+	private final static ExecutorService pool = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("omero-export-command-", true));
+
+	private final String title = "Export OMERO image";
+
+	private QuPathGUI qupath;
+
+	OmeroExportImageCommand(QuPathGUI qupath) {
+		this.qupath = qupath;
+	}
+
+	@Override
+	public void run() {
+		var server = qupath.getViewer().getServer();
+
+		// Check if OMERO server
+		if (!(server instanceof OmeroWebImageServer)) {
+			Dialogs.showErrorMessage(title, "The current image is not from OMERO!");
+			return;
+		}
+
+		String name = GeneralTools.stripExtension(server.getMetadata().getName());
+		File file = Dialogs.promptToSaveFile(title, null, name + ".ome.tif", "OME-TIFF", ".ome.tif");
+		if (file == null)
+			return;
+
+		// Tiles rendered as JPEGs can be written without re-encoding them, other tiles are kept lossless
+		var omeroServer = (OmeroWebImageServer)server;
+		var compression = omeroServer.canReadEncodedTiles() ? OmeroImageExporter.Compression.JPEG : OmeroImageExporter.Compression.DEFLATE;
+		var exporter = OmeroImageExporter.builder(omeroServer)
+				.compression(compression)
+				.build();
+		Dialogs.showInfoNotification(title, "Exporting " + name + " to " + file.getName());
+		pool.submit(() -> {
+			try {
+				exporter.writeTo(file.toPath());
+				Dialogs.showInfoNotification(title, name + " exported to " + file.getAbsolutePath());
+			} catch (IOException ex) {
+				logger.error("Unable to export " + name, ex);
+				Dialogs.showErrorNotification(title, ex.getLocalizedMessage());
+			}
+		});
+	}
+}
@@ -72,21 +72,25 @@ public class OmeroExtension implements QuPathExtension, GitHubProject {
 		alreadyInstalled = true;
 		var actionClients = ActionTools.createAction(new OmeroWebClientsCommand(qupath), "Manage server connections");
 		var actionSendObjects = ActionTools.createAction(new OmeroWritePathObjectsCommand(qupath), "Send annotations to OMERO");
+		var actionExportImage = ActionTools.createAction(new OmeroExportImageCommand(qupath), "Export image to OME-TIFF");
 		Menu browseServerMenu = new Menu("Browse server...");
 		
 //		actionClients.disabledProperty().bind(qupath.projectProperty().isNull());
 //		browseServerMenu.disableProperty().bind(qupath.projectProperty().isNull());
 		actionSendObjects.disabledProperty().bind(qupath.imageDataProperty().isNull());
+		actionExportImage.disabledProperty().bind(qupath.imageDataProperty().isNull());
 		
 		MenuTools.addMenuItems(qupath.getMenu("Extensions", false), 
 				MenuTools.createMenu("OMERO", 
                 		browseServerMenu,
     	                actionClients,
     	                null,
-    	                actionSendObjects
+    	                actionSendObjects,
+    	                actionExportImage
     	                )
 				);
 		createServerListMenu(qupath, browseServerMenu);
+		OmeroWebPreferences.installPreferences(qupath);
 	}
 	
 
@@ -0,0 +1,706 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.CookieHandler;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Redirect;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.omero.OmeroCircuitBreaker.OpenCircuitException;
+
+/**
+ * HTTP transport shared by all the requests sent to one OMERO server.
+ * <p>
+ * Requests go through a single pooled {@link HttpClient}, so that connections are kept alive
+ * and reused between requests (HTTP/2 is negotiated for {@code https} servers, HTTP/1.1 keep-alive
+ * is used otherwise). Session cookies are shared with the {@link CookieHandler} used by the rest of the extension.
+ * <p>
+ * The number of concurrent requests is adapted to the load of the server by an {@link OmeroRequestLimiter},
+ * and requests fail fast while the server is unresponsive thanks to an {@link OmeroCircuitBreaker}.
+ * Requests fail with an {@link HttpTimeoutException} if they do not complete within
+ * {@link OmeroWebPreferences#requestTimeoutSecondsProperty()} (or if a streamed response stalls for as long).
+ */
+final class OmeroHttpTransport implements OmeroTransport {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroHttpTransport.class);
+
+	/**
+	 * Base and maximum delays of the exponential backoff between retries
+	 */
+	private final static long BASE_BACKOFF_MILLIS = 250;
+	private final static long MAX_BACKOFF_MILLIS = 5000;
+
+	/**
+	 * Latency percentile after which a hedged request is sent
+	 */
+	private final static double HEDGE_PERCENTILE = 0.95;
+
+	private final String host;
+	private final ExecutorService executor;
+	private final ScheduledThreadPoolExecutor timeoutScheduler;
+	private final HttpClient httpClient;
+	private final OmeroRequestLimiter limiter;
+	private final OmeroCircuitBreaker breaker;
+	private final LatencyTracker latencies = new LatencyTracker();
+
+	/**
+	 * Requests in flight and streams of responses being read, which are aborted when the transport is closed
+	 * (as they could not complete once its threads are stopped)
+	 */
+	private final Set<CompletableFuture<?>> pendingRequests = ConcurrentHashMap.newKeySet();
+	private final Set<Closeable> openStreams = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed = false;
+
+	/**
+	 * Create a transport.
+	 * @param host host of the server, used to identify the transport in logs
+	 */
+	OmeroHttpTransport(String host) {
+		this.host = host;
+		this.limiter = new OmeroRequestLimiter(host);
+		this.breaker = new OmeroCircuitBreaker(host);
+		this.executor = Executors.newCachedThreadPool(ThreadTools.createThreadFactory("omero-http-", true));
+		this.timeoutScheduler = new ScheduledThreadPoolExecutor(1, ThreadTools.createThreadFactory("omero-http-timeout-", true));
+		// Most timeouts are cancelled (when the request completes in time), so don't keep them until they expire
+		this.timeoutScheduler.setRemoveOnCancelPolicy(true);
+		this.httpClient = HttpClient.newBuilder()
+				.version(Version.HTTP_2)
+				.followRedirects(Redirect.NORMAL)
+				.connectTimeout(Duration.ofSeconds(Math.max(1, OmeroWebPreferences.connectTimeoutSecondsProperty().get())))
+				.cookieHandler(new DefaultCookieHandler())
+				.executor(executor)
+				.build();
+	}
+
+	/**
+	 * Send a GET request to the specified {@code uri} asynchronously.
+	 * <p>
+	 * Requests wait for a permit from the {@link OmeroRequestLimiter} in order of priority.
+	 * Requests failing for a reason that might be transient (e.g. a timeout or a 5xx response) are retried
+	 * up to {@link OmeroWebPreferences#requestMaxRetriesProperty()} times, with a jittered exponential backoff.
+	 * If {@link OmeroWebPreferences#requestHedgingProperty()} is enabled, a duplicate request is sent when
+	 * the first one has not answered within the 95th percentile of the latency, and the first response wins.
+	 * <p>
+	 * Cancelling the returned future aborts the request if it is still in flight.
+	 *
+	 * @param uri
+	 * @param priority
+	 * @return a future completed with the response body, or exceptionally with an {@link IOException}
+	 *         if the request fails or the server does not respond with {@code 200 OK}
+	 */
+	@Override
+	public CompletableFuture<byte[]> getBytesAsync(URI uri, OmeroRequestPriority priority) {
+		var result = track(new CompletableFuture<byte[]>());
+		var current = new AtomicReference<CompletableFuture<byte[]>>();
+		sendAttempt(uri, priority, 0, result, current);
+		result.whenComplete((bytes, ex) -> {
+			var attempt = current.get();
+			if (result.isCancelled() && attempt != null)
+				attempt.cancel(true);
+		});
+		return result;
+	}
+
+	private void sendAttempt(URI uri, OmeroRequestPriority priority, int attempt, CompletableFuture<byte[]> result, AtomicReference<CompletableFuture<byte[]>> current) {
+		if (result.isDone())
+			return;
+		var future = OmeroWebPreferences.requestHedgingProperty().get() ? sendHedged(uri, priority) : send(uri, priority, false);
+		current.set(future);
+		// The result might have been cancelled before the attempt was set
+		if (result.isCancelled()) {
+			future.cancel(true);
+			return;
+		}
+		future.whenComplete((bytes, ex) -> {
+			if (ex == null) {
+				result.complete(bytes);
+				return;
+			}
+			var cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+			if (attempt < OmeroWebPreferences.requestMaxRetriesProperty().get() && isRetryable(cause) && !result.isDone()) {
+				long delay = getBackoffMillis(attempt);
+				logger.debug("Request to {} failed ({}), retrying in {} ms", uri, cause.getLocalizedMessage(), delay);
+				CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, executor)
+						.execute(() -> sendAttempt(uri, priority, attempt + 1, result, current));
+			} else
+				result.completeExceptionally(cause);
+		});
+	}
+
+	/**
+	 * Send a request, and a duplicate one if it has not answered within the 95th percentile of the latency.
+	 * The first successful response completes the returned future, and the other request is then cancelled.
+	 * @param uri
+	 * @param priority
+	 * @return a future completed with the response body
+	 */
+	private CompletableFuture<byte[]> sendHedged(URI uri, OmeroRequestPriority priority) {
+		var primary = send(uri, priority, false);
+		long delayNanos = latencies.getPercentile(HEDGE_PERCENTILE);
+		if (delayNanos < 0)
+			return primary;
+
+		var result = new CompletableFuture<byte[]>();
+		var hedge = new AtomicReference<CompletableFuture<byte[]>>();
+		primary.whenComplete((bytes, ex) -> {
+			if (ex == null) {
+				if (result.complete(bytes) && hedge.get() != null)
+					hedge.get().cancel(true);
+			} else if (hedge.get() == null || hedge.get().isCompletedExceptionally())
+				result.completeExceptionally(ex);
+		});
+		CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS, executor).execute(() -> {
+			if (result.isDone() || primary.isDone())
+				return;
+			logger.trace("No response from {} after {} ms, sending a hedged request", uri, delayNanos / 1_000_000);
+			var future = send(uri, priority, true);
+			hedge.set(future);
+			// The primary request might have completed while the hedged one was sent
+			if (result.isDone()) {
+				future.cancel(true);
+				return;
+			}
+			future.whenComplete((bytes, ex) -> {
+				if (ex == null) {
+					if (result.complete(bytes))
+						primary.cancel(true);
+				} else if (primary.isCompletedExceptionally())
+					result.completeExceptionally(ex);
+			});
+		});
+		result.whenComplete((bytes, ex) -> {
+			if (result.isCancelled()) {
+				primary.cancel(true);
+				if (hedge.get() != null)
+					hedge.get().cancel(true);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Send a single request, once a permit is granted by the limiter.
+	 * @param uri
+	 * @param priority
+	 * @param hedge true if this is a hedged request, which must be sent immediately (whatever the limit)
+	 * @return a future completed with the response body
+	 */
+	private CompletableFuture<byte[]> send(URI uri, OmeroRequestPriority priority, boolean hedge) {
+		if (breaker.isOpen())
+			return CompletableFuture.failedFuture(new OpenCircuitException(host));
+		var permit = hedge ? limiter.acquireNow() : limiter.acquire(priority);
+		var responseFuture = exchange(createGetRequest(uri), permit, BodyHandlers.ofByteArray());
+		var bytesFuture = responseFuture.thenApply(response -> {
+			try {
+				return getBody(uri, response);
+			} catch (IOException ex) {
+				throw new CompletionException(ex);
+			}
+		});
+		bytesFuture.whenComplete((bytes, ex) -> {
+			if (bytesFuture.isCancelled())
+				responseFuture.cancel(true);
+		});
+		return bytesFuture;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The request waits for a permit from the {@link OmeroRequestLimiter} with the priority of the current thread, 
+	 * and is retried like {@link #getBytesAsync(URI, OmeroRequestPriority)} if it fails before the response starts.
+	 * The permit is returned as soon as the response starts, so the limiter only sees the time to the first byte.
+	 */
+	@Override
+	public InputStream getStream(URI uri) throws IOException {
+		var priority = OmeroRequestPriority.current();
+		int attempt = 0;
+		while (true) {
+			try {
+				var response = OmeroTransport.await(uri, exchange(uri, priority, BodyHandlers.ofInputStream()));
+				if (response.statusCode() != 200) {
+					response.body().close();
+					throw new StatusException(uri, response.statusCode());
+				}
+				return new TimeoutInputStream(uri, response.body());
+			} catch (IOException ex) {
+				if (attempt >= OmeroWebPreferences.requestMaxRetriesProperty().get() || !isRetryable(ex))
+					throw ex;
+				long delay = getBackoffMillis(attempt++);
+				logger.debug("Request to {} failed ({}), retrying in {} ms", uri, ex.getLocalizedMessage(), delay);
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while requesting " + uri);
+				}
+			}
+		}
+	}
+
+	@Override
+	public int getStatusCode(URI uri) throws IOException {
+		return OmeroTransport.await(uri, exchange(uri, OmeroRequestPriority.current(), BodyHandlers.discarding())).statusCode();
+	}
+
+	@Override
+	public byte[] post(URI uri, Map<String, String> headers, byte[] body) throws IOException {
+		var builder = HttpRequest.newBuilder(uri)
+				.version(getVersion(uri))
+				.timeout(getRequestTimeout())
+				.POST(BodyPublishers.ofByteArray(body));
+		headers.forEach(builder::header);
+		var response = OmeroTransport.await(uri, exchange(builder.build(), OmeroRequestPriority.current(), BodyHandlers.ofByteArray()));
+		return getBody(uri, response);
+	}
+
+	/**
+	 * Send a single GET request once a permit is granted by the limiter, without any retry.
+	 * @param <T> type of the response body
+	 * @param uri
+	 * @param priority
+	 * @param handler handler of the response body
+	 * @return a future completed with the response
+	 */
+	private <T> CompletableFuture<HttpResponse<T>> exchange(URI uri, OmeroRequestPriority priority, BodyHandler<T> handler) {
+		return exchange(createGetRequest(uri), priority, handler);
+	}
+
+	private <T> CompletableFuture<HttpResponse<T>> exchange(HttpRequest request, OmeroRequestPriority priority, BodyHandler<T> handler) {
+		if (breaker.isOpen())
+			return CompletableFuture.failedFuture(new OpenCircuitException(host));
+		return exchange(request, limiter.acquire(priority), handler);
+	}
+
+	/**
+	 * Send a single request once the specified permit is granted, without any retry.
+	 * @param <T> type of the response body
+	 * @param request
+	 * @param permit permit from the limiter
+	 * @param handler handler of the response body
+	 * @return a future completed with the response
+	 */
+	private <T> CompletableFuture<HttpResponse<T>> exchange(HttpRequest request, CompletableFuture<Void> permit, BodyHandler<T> handler) {
+		var exchange = new AtomicReference<CompletableFuture<HttpResponse<T>>>();
+		var responseFuture = track(new CompletableFuture<HttpResponse<T>>());
+		permit.whenComplete((v, ex) -> {
+			if (ex != null) {
+				// Cancelled while waiting for the permit
+				responseFuture.completeExceptionally(ex);
+				return;
+			}
+			// The request may have been abandoned just as the permit was granted, which must then be returned
+			if (responseFuture.isDone()) {
+				limiter.releaseIgnored();
+				return;
+			}
+			var future = sendNow(request, handler);
+			exchange.set(future);
+			future.whenComplete((response, e) -> {
+				if (e == null)
+					responseFuture.complete(response);
+				else
+					responseFuture.completeExceptionally(e);
+			});
+			if (responseFuture.isCancelled())
+				future.cancel(true);
+		});
+		// Propagate the cancellation to the exchange (or to the permit, if the request is still waiting for one)
+		responseFuture.whenComplete((response, ex) -> {
+			if (responseFuture.isCancelled()) {
+				permit.cancel(false);
+				var future = exchange.get();
+				if (future != null)
+					future.cancel(true);
+			}
+		});
+		return responseFuture;
+	}
+
+	/**
+	 * Send a request now that a permit was granted, unless the circuit breaker stops it.
+	 * <p>
+	 * The {@link HttpRequest#timeout()} only covers the time until the response headers are received, so the returned
+	 * future also fails with an {@link HttpTimeoutException} if the whole response (e.g. the bytes of a tile) is not
+	 * received within the request timeout. The permit is released when the returned future completes.
+	 * @param <T> type of the response body
+	 * @param request
+	 * @param handler handler of the response body
+	 * @return a future completed with the response
+	 */
+	private <T> CompletableFuture<HttpResponse<T>> sendNow(HttpRequest request, BodyHandler<T> handler) {
+		if (!breaker.tryAcquire()) {
+			limiter.releaseIgnored();
+			return CompletableFuture.failedFuture(new OpenCircuitException(host));
+		}
+		long startTime = System.nanoTime();
+		var result = new CompletableFuture<HttpResponse<T>>();
+		var future = httpClient.sendAsync(request, handler);
+		var timeout = timeoutScheduler.schedule(() -> {
+			if (result.completeExceptionally(new HttpTimeoutException("Request to " + request.uri() + " timed out")))
+				future.cancel(true);
+		}, getRequestTimeout().toMillis(), TimeUnit.MILLISECONDS);
+		future.whenComplete((response, ex) -> {
+			timeout.cancel(false);
+			if (ex != null)
+				result.completeExceptionally(ex);
+			else if (!result.complete(response) && response.body() instanceof Closeable)
+				closeQuietly((Closeable)response.body());
+		});
+		result.whenComplete((response, ex) -> {
+			release(startTime, response, ex);
+			if (result.isCancelled())
+				future.cancel(true);
+		});
+		return result;
+	}
+
+	/**
+	 * Return true if a request failing with the specified exception might succeed if sent again.
+	 * @param ex
+	 * @return true if the request should be retried
+	 */
+	private static boolean isRetryable(Throwable ex) {
+		// The server is already known to be unresponsive
+		if (ex instanceof OpenCircuitException)
+			return false;
+		if (ex instanceof StatusException) {
+			int status = ((StatusException)ex).getStatusCode();
+			return status >= 500 || status == 429 || status == 408;
+		}
+		// Other I/O errors (e.g. timeouts or connections reset) are often transient
+		return ex instanceof IOException && !(ex instanceof InterruptedIOException);
+	}
+
+	/**
+	 * Return the delay before a retry, using an exponential backoff with 'full jitter'
+	 * (so that the requests failing together are not retried together).
+	 * @param attempt the number of the attempt that failed (starting from 0)
+	 * @return delay in milliseconds
+	 */
+	private static long getBackoffMillis(int attempt) {
+		long maxDelay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+		return ThreadLocalRandom.current().nextLong(maxDelay + 1);
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Requests in flight (including those waiting for a permit or a retry) fail with an {@link IOException},
+	 * and the streams of the responses being read are closed.
+	 */
+	@Override
+	public void close() {
+		logger.debug("Closing transport of {}", host);
+		closed = true;
+		for (var future : pendingRequests)
+			future.completeExceptionally(createClosedException());
+		for (var stream : openStreams)
+			closeQuietly(stream);
+		timeoutScheduler.shutdownNow();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Keep track of a request until it completes, so that it can be aborted if the transport is closed.
+	 * @param <T> type of the future
+	 * @param future
+	 * @return the same future, already failed if the transport is closed
+	 */
+	private <T extends CompletableFuture<?>> T track(T future) {
+		pendingRequests.add(future);
+		future.whenComplete((v, ex) -> pendingRequests.remove(future));
+		// The transport might have been closed before the future was added
+		if (closed)
+			future.completeExceptionally(createClosedException());
+		return future;
+	}
+
+	private IOException createClosedException() {
+		return new IOException("Transport of " + host + " closed");
+	}
+
+	/**
+	 * Return the limiter of the concurrent requests sent through this transport (e.g. to monitor its limit and queue depth).
+	 * @return limiter
+	 */
+	OmeroRequestLimiter getLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * Return the circuit breaker of this transport.
+	 * @return circuit breaker
+	 */
+	OmeroCircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * Return the permit of a completed request to the limiter, reporting whether the server looked overloaded
+	 * (and to the circuit breaker whether it looked unhealthy).
+	 * @param startTime time at which the request was sent
+	 * @param response response received, or null if the request failed
+	 * @param ex exception thrown by the request, or null if a response was received
+	 */
+	private void release(long startTime, HttpResponse<?> response, Throwable ex) {
+		if (ex instanceof CompletionException && ex.getCause() != null)
+			ex = ex.getCause();
+		if (response != null) {
+			int status = response.statusCode();
+			long latency = System.nanoTime() - startTime;
+			if (status >= 500 || status == 429)
+				limiter.releaseOverloaded();
+			else
+				limiter.release(latency);
+			if (status >= 500)
+				breaker.recordFailure();
+			else
+				breaker.recordSuccess();
+			if (status == 200)
+				latencies.add(latency);
+		} else if (ex instanceof HttpTimeoutException) {
+			limiter.releaseOverloaded();
+			breaker.recordFailure();
+		} else {
+			limiter.releaseIgnored();
+			// Cancelled or interrupted requests say nothing about the server
+			if (ex instanceof IOException && !(ex instanceof InterruptedIOException))
+				breaker.recordFailure();
+			else
+				breaker.recordIgnored();
+		}
+	}
+
+	private static byte[] getBody(URI uri, HttpResponse<byte[]> response) throws IOException {
+		if (response.statusCode() != 200)
+			throw new StatusException(uri, response.statusCode());
+
+		logger.trace("Received {} bytes from {}", response.body().length, uri);
+		return response.body();
+	}
+
+	private static HttpRequest createGetRequest(URI uri) {
+		return HttpRequest.newBuilder(uri)
+				.version(getVersion(uri))
+				.timeout(getRequestTimeout())
+				.GET()
+				.build();
+	}
+
+	private static Duration getRequestTimeout() {
+		return Duration.ofSeconds(Math.max(1, OmeroWebPreferences.requestTimeoutSecondsProperty().get()));
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException ex) {
+			logger.debug("Unable to close response: {}", ex.getLocalizedMessage());
+		}
+	}
+
+	private static Version getVersion(URI uri) {
+		// Only attempt HTTP/2 over TLS, to avoid cleartext upgrade requests that some deployments reject
+		return "https".equalsIgnoreCase(uri.getScheme()) ? Version.HTTP_2 : Version.HTTP_1_1;
+	}
+
+	/**
+	 * Stream of a response body failing with an {@link HttpTimeoutException} if no bytes are received
+	 * within the request timeout, as the {@link HttpClient} has no timeout once the response has started.
+	 */
+	private class TimeoutInputStream extends FilterInputStream {
+
+		private final URI uri;
+		private volatile boolean timedOut = false;
+
+		private TimeoutInputStream(URI uri, InputStream stream) {
+			super(stream);
+			this.uri = uri;
+			openStreams.add(this);
+			if (closed)
+				closeQuietly(this);
+		}
+
+		@Override
+		public void close() throws IOException {
+			openStreams.remove(this);
+			super.close();
+		}
+
+		@Override
+		public int read() throws IOException {
+			var timeout = scheduleTimeout();
+			try {
+				int b = super.read();
+				checkTimeout();
+				return b;
+			} catch (IOException ex) {
+				checkTimeout();
+				throw ex;
+			} finally {
+				timeout.cancel(false);
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			var timeout = scheduleTimeout();
+			try {
+				int n = super.read(b, off, len);
+				checkTimeout();
+				return n;
+			} catch (IOException ex) {
+				checkTimeout();
+				throw ex;
+			} finally {
+				timeout.cancel(false);
+			}
+		}
+
+		private ScheduledFuture<?> scheduleTimeout() throws IOException {
+			try {
+				return timeoutScheduler.schedule(() -> {
+					// Closing the stream unblocks the pending read
+					timedOut = true;
+					breaker.recordFailure();
+					closeQuietly(in);
+				}, getRequestTimeout().toMillis(), TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException ex) {
+				throw createClosedException();
+			}
+		}
+
+		private void checkTimeout() throws HttpTimeoutException {
+			if (timedOut)
+				throw new HttpTimeoutException("Response from " + uri + " timed out");
+		}
+	}
+
+
+	/**
+	 * Latencies of the most recent successful requests.
+	 */
+	private static class LatencyTracker {
+
+		/**
+		 * Number of latencies kept
+		 */
+		private final static int SIZE = 200;
+
+		/**
+		 * Minimum number of latencies needed to estimate a percentile
+		 */
+		private final static int MIN_SAMPLES = 20;
+
+		private final long[] samples = new long[SIZE];
+		private int count = 0;
+		private int next = 0;
+
+		private synchronized void add(long latencyNanos) {
+			samples[next] = latencyNanos;
+			next = (next + 1) % SIZE;
+			count = Math.min(count + 1, SIZE);
+		}
+
+		/**
+		 * Return the specified percentile of the recent latencies.
+		 * @param percentile between 0 and 1
+		 * @return latency in nanoseconds, or -1 if there are not enough latencies yet
+		 */
+		private long getPercentile(double percentile) {
+			long[] sorted;
+			synchronized (this) {
+				if (count < MIN_SAMPLES)
+					return -1;
+				sorted = Arrays.copyOf(samples, count);
+			}
+			Arrays.sort(sorted);
+			// The count might have changed since the copy
+			return sorted[Math.min(sorted.length - 1, (int)(percentile * sorted.length))];
+		}
+	}
+
+
+	/**
+	 * {@code CookieHandler} delegating to the default handler (if any) at the time of each request.
+	 * <p>
+	 * The default handler is only set when logging in, after the transport might have been created.
+	 */
+	private static class DefaultCookieHandler extends CookieHandler {
+
+		@Override
+		public Map<String, List<String>> get(URI uri, Map<String, List<String>> requestHeaders) throws IOException {
+			var handler = CookieHandler.getDefault();
+			if (handler == null)
+				return Collections.emptyMap();
+			return handler.get(uri, requestHeaders);
+		}
+
+		@Override
+		public void put(URI uri, Map<String, List<String>> responseHeaders) throws IOException {
+			var handler = CookieHandler.getDefault();
+			if (handler != null)
+				handler.put(uri, responseHeaders);
+		}
+	}
+}
@@ -0,0 +1,293 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgcodecs;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decoder for the images rendered by OMERO.
+ * <p>
+ * Images are decoded with OpenCV (i.e. libjpeg-turbo, libpng and libtiff, through the JavaCPP presets used by QuPath) 
+ * when available, straight into the raster of the returned image. Otherwise, ImageIO readers are used, while still 
+ * avoiding the overhead of {@link ImageIO#read(java.io.InputStream)}: there is no probing of the registered readers, 
+ * readers are reused, and the bytes are read from memory (rather than through a temporary file when {@link ImageIO#getUseCache()} is true).
+ * <p>
+ * Images only needed temporarily (e.g. single channels that are then merged) can be decoded into pooled images, 
+ * to avoid allocating new rasters for each tile.
+ */
+final class OmeroImageDecoder {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroImageDecoder.class);
+
+	/**
+	 * Maximum number of idle images kept in the pool, for each type and size
+	 */
+	private final static int MAX_POOLED_IMAGES = 64;
+
+	/**
+	 * Idle readers, by format
+	 */
+	private final static Map<ImageFormat, Queue<ImageReader>> readers = new ConcurrentHashMap<>();
+
+	/**
+	 * Idle images, by type and size
+	 */
+	private final static Map<String, Queue<BufferedImage>> pool = new ConcurrentHashMap<>();
+
+	/**
+	 * Suppress default constructor for non-instantiability
+	 */
+	private OmeroImageDecoder() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Decode the specified bytes as an RGB image.
+	 *
+	 * @param bytes encoded image
+	 * @param format format of the encoded image
+	 * @return the decoded image
+	 * @throws IOException if the bytes cannot be decoded
+	 */
+	static BufferedImage decode(byte[] bytes, ImageFormat format) throws IOException {
+		if (isOpenCVAvailable()) {
+			BufferedImage img = OpenCVDecoder.decode(bytes, false);
+			if (img != null)
+				return img;
+		}
+		return decodeWithImageIO(bytes, format);
+	}
+
+	/**
+	 * Decode the specified bytes as a greyscale image, reusing a pooled image if possible.
+	 * The image should be returned to the pool with {@link #release(BufferedImage)} once it is no longer needed.
+	 * <p>
+	 * Note that the image returned might be RGB (with identical bands) if it cannot be decoded directly as greyscale.
+	 *
+	 * @param bytes encoded image
+	 * @param format format of the encoded image
+	 * @return the decoded image
+	 * @throws IOException if the bytes cannot be decoded
+	 */
+	static BufferedImage decodeGreyscale(byte[] bytes, ImageFormat format) throws IOException {
+		if (isOpenCVAvailable()) {
+			BufferedImage img = OpenCVDecoder.decode(bytes, true);
+			if (img != null)
+				return img;
+		}
+		return decodeWithImageIO(bytes, format);
+	}
+
+	/**
+	 * Return an image to the pool, so that its raster can be reused.
+	 * Only greyscale images are pooled (other images are not reused by the decoder, and are left to the garbage collector).
+	 * The image must not be used after this call.
+	 * @param img
+	 */
+	static void release(BufferedImage img) {
+		if (img.getType() != BufferedImage.TYPE_BYTE_GRAY)
+			return;
+		var queue = pool.computeIfAbsent(getPoolKey(img.getType(), img.getWidth(), img.getHeight()), k -> new ConcurrentLinkedQueue<>());
+		if (queue.size() < MAX_POOLED_IMAGES)
+			queue.offer(img);
+	}
+
+	private static BufferedImage acquire(int type, int width, int height) {
+		var queue = pool.get(getPoolKey(type, width, height));
+		BufferedImage img = queue == null ? null : queue.poll();
+		return img == null ? new BufferedImage(width, height, type) : img;
+	}
+
+	private static String getPoolKey(int type, int width, int height) {
+		return type + "-" + width + "x" + height;
+	}
+
+	private static BufferedImage decodeWithImageIO(byte[] bytes, ImageFormat format) throws IOException {
+		var queue = readers.computeIfAbsent(format, f -> new ConcurrentLinkedQueue<>());
+		ImageReader reader = queue.poll();
+		if (reader == null)
+			reader = createReader(format);
+
+		try (var stream = new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes))) {
+			reader.setInput(stream, true, true);
+			return reader.read(0);
+		} finally {
+			reader.setInput(null);
+			queue.offer(reader);
+		}
+	}
+
+	private static ImageReader createReader(ImageFormat format) throws IOException {
+		Iterator<ImageReader> iter = ImageIO.getImageReadersByFormatName(format.getImageIOName());
+		if (!iter.hasNext())
+			throw new IOException("No reader available for " + format);
+		return iter.next();
+	}
+
+	private static boolean isOpenCVAvailable() {
+		return OpenCVAvailability.AVAILABLE;
+	}
+
+
+	/**
+	 * Holder checking whether OpenCV can be loaded, the first time it is needed.
+	 */
+	private static class OpenCVAvailability {
+
+		private final static boolean AVAILABLE = load();
+
+		private static boolean load() {
+			try {
+				Loader.load(opencv_imgcodecs.class);
+				return true;
+			} catch (Throwable t) {
+				logger.debug("OpenCV is not available, ImageIO will be used to decode OMERO tiles: {}", t.getLocalizedMessage());
+				return false;
+			}
+		}
+	}
+
+
+	/**
+	 * Decoder using OpenCV (only loaded if OpenCV is available).
+	 */
+	private static class OpenCVDecoder {
+
+		/**
+		 * Decode the specified bytes into an 8-bit image (a pooled one if greyscale).
+		 * @param bytes
+		 * @param greyscale
+		 * @return the decoded image, or null if the bytes could not be decoded by OpenCV
+		 */
+		private static BufferedImage decode(byte[] bytes, boolean greyscale) {
+			try (var pointer = new BytePointer(bytes);
+					var buffer = new Mat(1, bytes.length, opencv_core.CV_8UC1, pointer);
+					var mat = opencv_imgcodecs.imdecode(buffer, greyscale ? opencv_imgcodecs.IMREAD_GRAYSCALE : opencv_imgcodecs.IMREAD_COLOR)) {
+				if (mat == null || mat.empty() || mat.depth() != opencv_core.CV_8U || mat.channels() != (greyscale ? 1 : 3) || !mat.isContinuous())
+					return null;
+				BufferedImage img;
+				if (greyscale)
+					img = acquire(BufferedImage.TYPE_BYTE_GRAY, mat.cols(), mat.rows());
+				else
+					img = new BufferedImage(mat.cols(), mat.rows(), BufferedImage.TYPE_3BYTE_BGR);
+				// OpenCV uses the same (BGR) pixel layout as TYPE_3BYTE_BGR
+				byte[] data = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+				mat.data().get(data);
+				return img;
+			}
+		}
+	}
+
+
+	/**
+	 * Formats in which OMERO can render image regions.
+	 */
+	enum ImageFormat {
+
+		/**
+		 * JPEG (lossy), the default format
+		 */
+		JPEG("jpeg", "jpeg"),
+
+		/**
+		 * PNG (lossless)
+		 */
+		PNG("png", "png"),
+
+		/**
+		 * TIFF (lossless)
+		 */
+		TIFF("tif", "tiff");
+
+		private final String queryValue;
+		private final String imageIOName;
+
+		private ImageFormat(String queryValue, String imageIOName) {
+			this.queryValue = queryValue;
+			this.imageIOName = imageIOName;
+		}
+
+		/**
+		 * Return the value of the {@code format} parameter used to request this format from OMERO.
+		 * @return query value
+		 */
+		String getQueryValue() {
+			return queryValue;
+		}
+
+		/**
+		 * Return the name of the format used to find an ImageIO reader.
+		 * @return ImageIO format name
+		 */
+		String getImageIOName() {
+			return imageIOName;
+		}
+
+		/**
+		 * Return true if decoding this format returns the exact pixels rendered by OMERO.
+		 * @return true for lossless formats
+		 */
+		boolean isLossless() {
+			return this != JPEG;
+		}
+
+		/**
+		 * Parse a format from its name (as used in the server args).
+		 * @param name
+		 * @return the format, or null if the name is not recognized
+		 */
+		static ImageFormat fromString(String name) {
+			switch (name.toLowerCase().strip()) {
+			case "jpeg":
+			case "jpg":
+				return JPEG;
+			case "png":
+				return PNG;
+			case "tif":
+			case "tiff":
+				return TIFF;
+			default:
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,678 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.images.servers.omero.OmeroImageDecoder.ImageFormat;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Exporter writing an image hosted on OMERO (or a region, and some of its resolution levels) to a local pyramidal OME-TIFF.
+ * <p>
+ * Each resolution level is read from the corresponding level of the {@link OmeroWebImageServer}, so that tiles
+ * aligned with those of OMERO are requested exactly once (rather than once per level written).
+ * Tiles are requested in parallel, with a bounded number of tiles in flight, and streamed to the file as soon
+ * as they are encoded, so that the memory used does not depend on the size of the image.
+ * <p>
+ * With {@link Compression#JPEG}, the JPEGs rendered by OMERO are written to the file as they are received
+ * (without being decoded and encoded again) whenever they match a whole tile of the file, which avoids
+ * both the cost of re-encoding and a second generation of compression artifacts.
+ * Only the tiles at the edges of the exported region (or all of them, if the region is not aligned with 
+ * the tiles of OMERO) are decoded and encoded again.
+ * <p>
+ * For example, from a script:
+ * <pre>
+ * OmeroImageExporter.builder(getCurrentServer())
+ *     .levels(0, 1, 2)
+ *     .parallelism(16)
+ *     .build()
+ *     .writeTo("/path/to/image.ome.tif")
+ * </pre>
+ */
+public final class OmeroImageExporter {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroImageExporter.class);
+
+	/**
+	 * Maximum time to wait for the tiles being read or written when an export fails
+	 */
+	private final static long ABORT_TIMEOUT_SECONDS = 60;
+
+	private final OmeroWebImageServer server;
+	private final int x;
+	private final int y;
+	private final int width;
+	private final int height;
+	private final int[] levels;
+	private final int zStart;
+	private final int zEnd;
+	private final int tStart;
+	private final int tEnd;
+	private final int parallelism;
+	private final Compression compression;
+
+	private OmeroImageExporter(Builder builder) {
+		this.server = builder.server;
+		this.x = builder.x;
+		this.y = builder.y;
+		this.width = builder.width;
+		this.height = builder.height;
+		this.levels = builder.levels;
+		this.zStart = builder.zStart;
+		this.zEnd = builder.zEnd;
+		this.tStart = builder.tStart;
+		this.tEnd = builder.tEnd;
+		this.parallelism = builder.parallelism;
+		this.compression = builder.compression;
+	}
+
+	/**
+	 * Create a builder to export the specified image.
+	 * By default, the whole image is exported, with all its resolution levels, z-slices and timepoints.
+	 * @param server the image to export
+	 * @return builder
+	 */
+	public static Builder builder(OmeroWebImageServer server) {
+		return new Builder(server);
+	}
+
+	/**
+	 * Write the image to the specified file.
+	 * @param path path of the OME-TIFF to write
+	 * @throws IOException if a tile cannot be read or written (the file is then deleted)
+	 * @see #writeTo(Path)
+	 */
+	public void writeTo(String path) throws IOException {
+		writeTo(Paths.get(path));
+	}
+
+	/**
+	 * Write the image to the specified file.
+	 * @param path the OME-TIFF to write (replaced if it exists)
+	 * @throws IOException if a tile cannot be read or written (the file is then deleted)
+	 */
+	public void writeTo(Path path) throws IOException {
+		boolean rgb = server.isRGB();
+		int nChannels = rgb ? 1 : server.nChannels();
+		int nZ = zEnd - zStart;
+		int nT = tEnd - tStart;
+		int tileWidth = getTileSize(server.getPreferredTileWidth());
+		int tileHeight = getTileSize(server.getPreferredTileHeight());
+
+		// Bounds of the region at each level
+		int[][] levelBounds = new int[levels.length][];
+		int[][] levelSizes = new int[levels.length][];
+		for (int i = 0; i < levels.length; i++) {
+			var resolution = server.getMetadata().getLevel(levels[i]);
+			double downsample = server.getDownsampleForResolution(levels[i]);
+			int x0 = (int)(x / downsample);
+			int y0 = (int)(y / downsample);
+			int x1 = Math.min(resolution.getWidth(), (int)Math.ceil((x + width) / downsample));
+			int y1 = Math.min(resolution.getHeight(), (int)Math.ceil((y + height) / downsample));
+			levelBounds[i] = new int[] {x0, y0};
+			levelSizes[i] = new int[] {Math.max(1, x1 - x0), Math.max(1, y1 - y0)};
+		}
+
+		String omeXML = createOMEXML(levelSizes[0], nChannels, nZ, nT, server.getDownsampleForResolution(levels[0]));
+		var writer = new OmeroTiffWriter(path, levelSizes, nChannels * nZ * nT, rgb ? 3 : 1, tileWidth, tileHeight, compression.getValue(), omeXML);
+		var pool = Executors.newFixedThreadPool(parallelism, ThreadTools.createThreadFactory("omero-export-", true));
+
+		long startTime = System.currentTimeMillis();
+		int nTiles = 0;
+		for (int i = 0; i < levels.length; i++)
+			nTiles += writer.nTilesX(i) * writer.nTilesY(i) * nZ * nT;
+		logger.info("Exporting {} to {} ({} tiles)", server.getMetadata().getName(), path, nTiles);
+
+		// JPEGs received from OMERO can be written as they are if they have the size of the tiles of the file
+		boolean passthrough = compression == Compression.JPEG && server.canReadEncodedTiles() &&
+				tileWidth == server.getPreferredTileWidth() && tileHeight == server.getPreferredTileHeight();
+		var passedThrough = new AtomicInteger();
+
+		// Bound the number of tiles in flight (or waiting to be written)
+		var permits = new Semaphore(parallelism);
+		var inFlight = ConcurrentHashMap.<CompletableFuture<?>>newKeySet();
+		var failure = new AtomicReference<Throwable>();
+		var done = new AtomicInteger();
+		int total = nTiles;
+		boolean success = false;
+		try {
+			loop:
+			for (int t = tStart; t < tEnd; t++) {
+				for (int z = zStart; z < zEnd; z++) {
+					for (int i = 0; i < levels.length; i++) {
+						for (int row = 0; row < writer.nTilesY(i); row++) {
+							for (int col = 0; col < writer.nTilesX(i); col++) {
+								permits.acquire();
+								if (failure.get() != null) {
+									permits.release();
+									break loop;
+								}
+								int lx = levelBounds[i][0] + col * tileWidth;
+								int ly = levelBounds[i][1] + row * tileHeight;
+								int w = Math.min(tileWidth, levelBounds[i][0] + levelSizes[i][0] - lx);
+								int h = Math.min(tileHeight, levelBounds[i][1] + levelSizes[i][1] - ly);
+								int firstPlane = nChannels * ((z - zStart) + nZ * (t - tStart));
+								int level = i;
+								int c0 = col;
+								int r0 = row;
+								var serverTile = getServerTile(levels[i], lx, ly, w, h, z, t);
+								CompletableFuture<?> tileFuture;
+								CompletableFuture<Void> future;
+								if (passthrough && serverTile != null && w == tileWidth && h == tileHeight) {
+									var bytesFuture = server.readEncodedTileAsync(serverTile);
+									tileFuture = bytesFuture;
+									future = bytesFuture.thenAcceptAsync(bytes -> {
+										try {
+											if (isCompatibleJPEG(bytes, tileWidth, tileHeight)) {
+												writer.writeTile(firstPlane, level, c0, r0, bytes);
+												passedThrough.incrementAndGet();
+											} else
+												writer.writeTile(firstPlane, level, c0, r0, encodeTile(OmeroImageDecoder.decode(bytes, ImageFormat.JPEG), -1, tileWidth, tileHeight));
+										} catch (IOException ex) {
+											throw new CompletionException(ex);
+										}
+									}, pool);
+								} else {
+									var imgFuture = readTile(serverTile, levels[i], lx, ly, w, h, z, t, pool);
+									tileFuture = imgFuture;
+									future = imgFuture.thenAcceptAsync(img -> {
+										try {
+											for (int c = 0; c < nChannels; c++)
+												writer.writeTile(firstPlane + c, level, c0, r0, encodeTile(img, rgb ? -1 : c, tileWidth, tileHeight));
+										} catch (IOException ex) {
+											throw new CompletionException(ex);
+										}
+									}, pool);
+								}
+								inFlight.add(tileFuture);
+								inFlight.add(future);
+								future.whenComplete((v, ex) -> {
+									inFlight.remove(tileFuture);
+									inFlight.remove(future);
+									if (ex != null)
+										failure.compareAndSet(null, ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+									else
+										logProgress(done.incrementAndGet(), total);
+									permits.release();
+								});
+							}
+						}
+					}
+				}
+			}
+			// Wait for the last tiles
+			permits.acquire(parallelism);
+			var ex = failure.get();
+			if (ex instanceof IOException)
+				throw (IOException)ex;
+			if (ex != null)
+				throw new IOException("Unable to export " + server.getMetadata().getName(), ex);
+			pool.shutdown();
+			writer.close();
+			success = true;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Export of " + server.getMetadata().getName() + " interrupted");
+		} finally {
+			if (!success)
+				abort(path, writer, pool, inFlight);
+		}
+		logger.info("Exported {} tiles to {} in {} s", total, path, GeneralTools.formatNumber((System.currentTimeMillis() - startTime) / 1000.0, 1));
+		if (compression == Compression.JPEG)
+			logger.info("{}/{} tiles written as received from OMERO, without re-encoding", passedThrough.get(), total);
+	}
+
+	/**
+	 * Stop an export that failed, and delete the incomplete file.
+	 * This method does not throw any exception, so that the cause of the failure is not masked.
+	 */
+	private static void abort(Path path, OmeroTiffWriter writer, ExecutorService pool, Collection<CompletableFuture<?>> inFlight) {
+		// Tiles that are not being read or written yet are skipped, the others must complete before the file is closed
+		for (var future: inFlight)
+			future.cancel(true);
+		pool.shutdown();
+		boolean interrupted = Thread.interrupted();
+		try {
+			long endTime = System.nanoTime() + TimeUnit.SECONDS.toNanos(ABORT_TIMEOUT_SECONDS);
+			while (!pool.isTerminated()) {
+				long remaining = endTime - System.nanoTime();
+				if (remaining <= 0) {
+					logger.warn("Tiles still being exported after {} s, stopping them", ABORT_TIMEOUT_SECONDS);
+					pool.shutdownNow();
+					break;
+				}
+				try {
+					pool.awaitTermination(remaining, TimeUnit.NANOSECONDS);
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		try {
+			writer.abort();
+		} catch (IOException ex) {
+			logger.debug("Unable to close {}: {}", path, ex.getLocalizedMessage());
+		}
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException ex) {
+			logger.warn("Unable to delete incomplete export {}: {}", path, ex.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Return the tile of the server at the specified coordinates of a level, or null if the tile of the file
+	 * does not exactly match a tile of the server.
+	 */
+	private TileRequest getServerTile(int level, int lx, int ly, int w, int h, int z, int t) {
+		var tile = server.getTileRequestManager().getTileRequest(level, lx, ly, z, t);
+		if (tile != null && tile.getTileX() == lx && tile.getTileY() == ly && tile.getTileWidth() == w && tile.getTileHeight() == h)
+			return tile;
+		return null;
+	}
+
+	/**
+	 * Read a tile, at the coordinates of the specified level. Tiles matching those of the server are read with
+	 * {@link OmeroWebImageServer#readTileAsync(TileRequest)}, others as regions.
+	 */
+	private CompletableFuture<BufferedImage> readTile(TileRequest serverTile, int level, int lx, int ly, int w, int h, int z, int t, ExecutorService pool) {
+		if (serverTile != null)
+			return server.readTileAsync(serverTile);
+
+		double downsample = server.getDownsampleForResolution(level);
+		int fullX = (int)Math.round(lx * downsample);
+		int fullY = (int)Math.round(ly * downsample);
+		var request = RegionRequest.createInstance(server.getPath(), downsample, fullX, fullY,
+				Math.min(server.getWidth() - fullX, (int)Math.round(w * downsample)),
+				Math.min(server.getHeight() - fullY, (int)Math.round(h * downsample)), z, t);
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return server.readRegion(request);
+			} catch (IOException ex) {
+				throw new CompletionException(ex);
+			}
+		}, pool);
+	}
+
+	/**
+	 * Encode a tile (padded to the tile size) with the compression of the exporter.
+	 * @param img
+	 * @param channel the channel to encode, or -1 to encode all the (RGB) bands interleaved
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @return the encoded tile
+	 * @throws IOException 
+	 */
+	private byte[] encodeTile(BufferedImage img, int channel, int tileWidth, int tileHeight) throws IOException {
+		if (compression == Compression.JPEG)
+			return encodeJPEG(img, tileWidth, tileHeight);
+
+		Raster raster = img.getRaster();
+		int nSamples = channel < 0 ? 3 : 1;
+		int w = Math.min(tileWidth, img.getWidth());
+		int h = Math.min(tileHeight, img.getHeight());
+		byte[] bytes = new byte[tileWidth * tileHeight * nSamples];
+		int[] row = new int[w * nSamples];
+		for (int yy = 0; yy < h; yy++) {
+			if (channel < 0)
+				raster.getPixels(0, yy, w, 1, row);
+			else
+				raster.getSamples(0, yy, w, 1, channel, row);
+			int offset = yy * tileWidth * nSamples;
+			for (int i = 0; i < row.length; i++)
+				bytes[offset + i] = (byte)row[i];
+		}
+		if (compression == Compression.UNCOMPRESSED)
+			return bytes;
+
+		var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+			var output = new ByteArrayOutputStream(bytes.length / 2);
+			byte[] buffer = new byte[65536];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buffer);
+				output.write(buffer, 0, n);
+			}
+			return output.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Encode an RGB tile (padded to the tile size) as a JPEG, with the quality used to request tiles from OMERO.
+	 */
+	private byte[] encodeJPEG(BufferedImage img, int tileWidth, int tileHeight) throws IOException {
+		var padded = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g2d = padded.createGraphics();
+		g2d.drawImage(img, 0, 0, null);
+		g2d.dispose();
+
+		var writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		var output = new ByteArrayOutputStream();
+		try (var stream = new MemoryCacheImageOutputStream(output)) {
+			var param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality((float)server.getJpegQuality());
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(padded, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * Return true if the specified JPEG can be written as a tile of the file as it is, i.e. if it is a baseline JPEG 
+	 * of the size of a tile, encoded as YCbCr with the chroma subsampled 2x2 (which is declared in the file).
+	 * @param bytes
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @return true if the JPEG is compatible
+	 */
+	static boolean isCompatibleJPEG(byte[] bytes, int tileWidth, int tileHeight) {
+		if (bytes.length < 4 || (bytes[0] & 0xFF) != 0xFF || (bytes[1] & 0xFF) != 0xD8)
+			return false;
+		int i = 2;
+		while (i + 4 <= bytes.length) {
+			if ((bytes[i] & 0xFF) != 0xFF)
+				return false;
+			int marker = bytes[i+1] & 0xFF;
+			if (marker == 0xFF) {
+				// Fill byte
+				i++;
+				continue;
+			}
+			int length = ((bytes[i+2] & 0xFF) << 8) | (bytes[i+3] & 0xFF);
+			if (marker == 0xC0 || marker == 0xC1) {
+				// Start of frame (baseline or extended sequential), with 3 components
+				if (length != 17 || i + 2 + length > bytes.length)
+					return false;
+				int height = ((bytes[i+5] & 0xFF) << 8) | (bytes[i+6] & 0xFF);
+				int width = ((bytes[i+7] & 0xFF) << 8) | (bytes[i+8] & 0xFF);
+				return bytes[i+4] == 8 && width == tileWidth && height == tileHeight && bytes[i+9] == 3 &&
+						(bytes[i+11] & 0xFF) == 0x22 && (bytes[i+14] & 0xFF) == 0x11 && (bytes[i+17] & 0xFF) == 0x11;
+			}
+			// Progressive, lossless or arithmetic-coded frames are not supported, and the frame must come before the scan
+			if ((marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) || marker == 0xDA)
+				return false;
+			i += 2 + length;
+		}
+		return false;
+	}
+
+	private String createOMEXML(int[] size, int nChannels, int nZ, int nT, double downsample) {
+		boolean rgb = server.isRGB();
+		var metadata = server.getMetadata();
+		var cal = metadata.getPixelCalibration();
+		var sb = new StringBuilder();
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		sb.append("<OME xmlns=\"http://www.openmicroscopy.org/Schemas/OME/2016-06\" ")
+			.append("xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" ")
+			.append("xsi:schemaLocation=\"http://www.openmicroscopy.org/Schemas/OME/2016-06 http://www.openmicroscopy.org/Schemas/OME/2016-06/ome.xsd\" ")
+			.append("Creator=\"QuPath OMERO extension\">");
+		sb.append("<Image ID=\"Image:0\" Name=\"").append(escapeXML(metadata.getName())).append("\">");
+		sb.append("<Pixels ID=\"Pixels:0\" DimensionOrder=\"XYCZT\" Type=\"uint8\" BigEndian=\"false\"")
+			.append(" Interleaved=\"").append(rgb).append("\"")
+			.append(" SizeX=\"").append(size[0]).append("\" SizeY=\"").append(size[1]).append("\"")
+			.append(" SizeC=\"").append(rgb ? 3 : nChannels).append("\" SizeZ=\"").append(nZ).append("\" SizeT=\"").append(nT).append("\"");
+		if (cal.hasPixelSizeMicrons()) {
+			sb.append(" PhysicalSizeX=\"").append(cal.getPixelWidthMicrons() * downsample).append("\" PhysicalSizeXUnit=\"\u00B5m\"")
+				.append(" PhysicalSizeY=\"").append(cal.getPixelHeightMicrons() * downsample).append("\" PhysicalSizeYUnit=\"\u00B5m\"");
+		}
+		if (cal.hasZSpacingMicrons())
+			sb.append(" PhysicalSizeZ=\"").append(cal.getZSpacingMicrons()).append("\" PhysicalSizeZUnit=\"\u00B5m\"");
+		sb.append(">");
+		if (rgb)
+			sb.append("<Channel ID=\"Channel:0:0\" SamplesPerPixel=\"3\"/>");
+		else {
+			for (int c = 0; c < nChannels; c++) {
+				var channel = server.getChannel(c);
+				sb.append("<Channel ID=\"Channel:0:").append(c).append("\" SamplesPerPixel=\"1\" Name=\"").append(escapeXML(channel.getName())).append("\"");
+				Integer color = channel.getColor();
+				if (color != null)
+					sb.append(" Color=\"").append((color << 8) | 0xFF).append("\"");
+				sb.append("/>");
+			}
+		}
+		sb.append("<TiffData IFD=\"0\" PlaneCount=\"").append(nChannels * nZ * nT).append("\"/>");
+		sb.append("</Pixels></Image></OME>");
+		return sb.toString();
+	}
+
+	private static String escapeXML(String text) {
+		if (text == null)
+			return "";
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	/**
+	 * Return the tile size used in the file: the tile size of the server if valid for a TIFF
+	 * (i.e. a multiple of 16, and not too large), 512 otherwise.
+	 */
+	private static int getTileSize(int serverTileSize) {
+		if (serverTileSize % 16 == 0 && serverTileSize <= 2048)
+			return serverTileSize;
+		return 512;
+	}
+
+	private void logProgress(int done, int total) {
+		// Log every 5%
+		if (done * 20L / total != (done - 1) * 20L / total)
+			logger.info("Exported {}/{} tiles ({}%)", done, total, done * 100L / total);
+	}
+
+
+	/**
+	 * Compression of the tiles written.
+	 */
+	public enum Compression {
+
+		/**
+		 * No compression
+		 */
+		UNCOMPRESSED(OmeroTiffWriter.COMPRESSION_NONE),
+
+		/**
+		 * Lossless Deflate (zlib) compression
+		 */
+		DEFLATE(OmeroTiffWriter.COMPRESSION_DEFLATE),
+
+		/**
+		 * Lossy JPEG compression, for RGB images only.
+		 * Tiles rendered by OMERO are written without being decoded whenever possible.
+		 */
+		JPEG(OmeroTiffWriter.COMPRESSION_JPEG);
+
+		private final int value;
+
+		private Compression(int value) {
+			this.value = value;
+		}
+
+		private int getValue() {
+			return value;
+		}
+	}
+
+
+	/**
+	 * Builder for an {@link OmeroImageExporter}.
+	 */
+	public static class Builder {
+
+		private final OmeroWebImageServer server;
+		private int x = 0;
+		private int y = 0;
+		private int width;
+		private int height;
+		private int[] levels;
+		private int zStart = 0;
+		private int zEnd;
+		private int tStart = 0;
+		private int tEnd;
+		private int parallelism = 8;
+		private Compression compression = Compression.DEFLATE;
+
+		private Builder(OmeroWebImageServer server) {
+			this.server = server;
+			this.width = server.getWidth();
+			this.height = server.getHeight();
+			this.zEnd = server.nZSlices();
+			this.tEnd = server.nTimepoints();
+			this.levels = new int[server.nResolutions()];
+			for (int i = 0; i < levels.length; i++)
+				levels[i] = i;
+		}
+
+		/**
+		 * Export only the specified region (in full resolution pixel coordinates).
+		 * @param x
+		 * @param y
+		 * @param width
+		 * @param height
+		 * @return this builder
+		 */
+		public Builder region(int x, int y, int width, int height) {
+			if (x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > server.getWidth() || y + height > server.getHeight())
+				throw new IllegalArgumentException(String.format("Invalid region (x=%d, y=%d, width=%d, height=%d)", x, y, width, height));
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			return this;
+		}
+
+		/**
+		 * Export only the specified resolution levels of the server (in increasing order of downsample),
+		 * the first being written as the full resolution of the file.
+		 * @param levels
+		 * @return this builder
+		 */
+		public Builder levels(int... levels) {
+			if (levels.length == 0)
+				throw new IllegalArgumentException("At least one level must be exported");
+			for (int i = 0; i < levels.length; i++) {
+				if (levels[i] < 0 || levels[i] >= server.nResolutions() || (i > 0 && levels[i] <= levels[i-1]))
+					throw new IllegalArgumentException("Invalid levels, must be increasing and between 0 and " + (server.nResolutions() - 1));
+			}
+			this.levels = levels.clone();
+			return this;
+		}
+
+		/**
+		 * Export only the specified z-slices.
+		 * @param start first z-slice (inclusive)
+		 * @param end last z-slice (exclusive)
+		 * @return this builder
+		 */
+		public Builder zSlices(int start, int end) {
+			if (start < 0 || end > server.nZSlices() || start >= end)
+				throw new IllegalArgumentException(String.format("Invalid z-slices (%d-%d)", start, end));
+			this.zStart = start;
+			this.zEnd = end;
+			return this;
+		}
+
+		/**
+		 * Export only the specified timepoints.
+		 * @param start first timepoint (inclusive)
+		 * @param end last timepoint (exclusive)
+		 * @return this builder
+		 */
+		public Builder timepoints(int start, int end) {
+			if (start < 0 || end > server.nTimepoints() || start >= end)
+				throw new IllegalArgumentException(String.format("Invalid timepoints (%d-%d)", start, end));
+			this.tStart = start;
+			this.tEnd = end;
+			return this;
+		}
+
+		/**
+		 * Set the maximum number of tiles requested (or encoded) at the same time.
+		 * @param parallelism
+		 * @return this builder
+		 */
+		public Builder parallelism(int parallelism) {
+			if (parallelism < 1)
+				throw new IllegalArgumentException("Parallelism must be at least 1");
+			this.parallelism = parallelism;
+			return this;
+		}
+
+		/**
+		 * Set the compression of the tiles written.
+		 * @param compression
+		 * @return this builder
+		 */
+		public Builder compression(Compression compression) {
+			if (compression == Compression.JPEG && !server.isRGB())
+				throw new IllegalArgumentException("JPEG compression is only supported for RGB images");
+			this.compression = compression;
+			return this;
+		}
+
+		/**
+		 * Build the exporter.
+		 * @return exporter
+		 */
+		public OmeroImageExporter build() {
+			return new OmeroImageExporter(this);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.util.LinkedHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.omero.OmeroTileCache.TileKey;
+
+/**
+ * Memory cache for the tiles received from OMERO, stored exactly as returned by OMERO (i.e. compressed bytes).
+ * <p>
+ * Compressed tiles are typically 10 to 20 times smaller than decoded ones, so this cache can hold the whole working set
+ * of an image (e.g. during an analysis reading it several times) while decoded tiles are only kept for as long as
+ * QuPath's own tile cache allows: when memory is short, decoded tiles are dropped first, and decoded again from this cache
+ * when needed rather than requested from OMERO again.
+ * <p>
+ * When the size of the cache exceeds {@link OmeroWebPreferences#memoryTileCacheMaxSizeMBProperty()},
+ * the least recently used tiles are evicted first. It sits in front of the {@link OmeroTileCache},
+ * and a single cache is shared by all the OMERO servers.
+ */
+final class OmeroMemoryTileCache {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroMemoryTileCache.class);
+
+	private static OmeroMemoryTileCache instance;
+
+	/**
+	 * Cached tiles, in least-recently-used order
+	 */
+	private final LinkedHashMap<TileKey, byte[]> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+	private long totalBytes = 0;
+
+	private OmeroMemoryTileCache() {}
+
+	/**
+	 * Return the memory tile cache, or {@code null} if it is disabled (i.e. its maximum size is 0).
+	 * @return cache
+	 */
+	static synchronized OmeroMemoryTileCache getInstance() {
+		if (OmeroWebPreferences.memoryTileCacheMaxSizeMBProperty().get() <= 0) {
+			instance = null;
+			return null;
+		}
+		if (instance == null)
+			instance = new OmeroMemoryTileCache();
+		return instance;
+	}
+
+	/**
+	 * Return the cached bytes of the specified tile, or {@code null} if the tile is not in the cache.
+	 * @param key
+	 * @return bytes
+	 */
+	synchronized byte[] get(TileKey key) {
+		return entries.get(key);
+	}
+
+	/**
+	 * Add the bytes of the specified tile to the cache.
+	 * The bytes are stored as they are, so must not be modified afterwards.
+	 * @param key
+	 * @param bytes
+	 */
+	void put(TileKey key, byte[] bytes) {
+		long maxBytes = OmeroWebPreferences.memoryTileCacheMaxSizeMBProperty().get() * 1024L * 1024L;
+		if (bytes.length > maxBytes)
+			return;
+		int nEvicted = 0;
+		synchronized (this) {
+			byte[] previous = entries.put(key, bytes);
+			totalBytes += bytes.length - (previous == null ? 0 : previous.length);
+			var iter = entries.values().iterator();
+			while (totalBytes > maxBytes && iter.hasNext()) {
+				totalBytes -= iter.next().length;
+				iter.remove();
+				nEvicted++;
+			}
+		}
+		if (nEvicted > 0)
+			logger.trace("Evicted {} tile(s) from the memory cache", nEvicted);
+	}
+
+	/**
+	 * Return true if the specified tile is in the cache, without updating its last access.
+	 * @param key
+	 * @return true if the tile is cached
+	 */
+	synchronized boolean contains(TileKey key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * Remove the specified tile from the cache (e.g. if its bytes cannot be decoded).
+	 * @param key
+	 */
+	synchronized void remove(TileKey key) {
+		byte[] bytes = entries.remove(key);
+		if (bytes != null)
+			totalBytes -= bytes.length;
+	}
+
+	/**
+	 * Return the current size (in bytes) of the cache.
+	 * @return size in bytes
+	 */
+	synchronized long getSizeBytes() {
+		return totalBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Memory tile cache: %d tiles, %d MB", entries.size(), totalBytes / (1024 * 1024));
+	}
+}
@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Persistent cache for the metadata of OMERO images (i.e. the responses of {@code /webgateway/imgData/{id}}),
+ * so that opening a project does not need to request the metadata of each image again.
+ * <p>
+ * Metadata is stored on disk (one JSON file per image, in {@link OmeroWebPreferences#getMetadataCacheDirectory()})
+ * and kept in memory once read. Cached metadata is used for {@link OmeroWebPreferences#metadataCacheHoursProperty()}
+ * hours after it was requested, and then requested again. If OMERO cannot be reached, expired metadata can still be used
+ * (see {@link #getExpired(String, int)}).
+ * <p>
+ * The metadata returned is shared, and must not be modified.
+ */
+final class OmeroMetadataCache {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroMetadataCache.class);
+
+	private final static String EXTENSION = ".json";
+
+	private static OmeroMetadataCache instance;
+
+	private final Path directory;
+
+	/**
+	 * Metadata already read, by relative path
+	 */
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private OmeroMetadataCache(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Return the metadata cache, or {@code null} if caching metadata is disabled.
+	 * @return cache
+	 */
+	static synchronized OmeroMetadataCache getInstance() {
+		if (OmeroWebPreferences.metadataCacheHoursProperty().get() <= 0)
+			return null;
+		var dir = OmeroWebPreferences.getMetadataCacheDirectory();
+		if (instance == null || !instance.directory.equals(dir))
+			instance = new OmeroMetadataCache(dir);
+		return instance;
+	}
+
+	/**
+	 * Return the cached metadata of the specified image, or {@code null} if it is not cached or has expired.
+	 * @param server host (and port) of the OMERO server
+	 * @param id OMERO ID of the image
+	 * @return metadata
+	 */
+	JsonObject get(String server, int id) {
+		var entry = getEntry(server, id);
+		if (entry == null)
+			return null;
+		long maxAgeMillis = OmeroWebPreferences.metadataCacheHoursProperty().get() * 3600_000L;
+		if (System.currentTimeMillis() - entry.timestamp > maxAgeMillis)
+			return null;
+		return entry.json;
+	}
+
+	/**
+	 * Return the cached metadata of the specified image even if it has expired, e.g. when it cannot be requested again.
+	 * @param server host (and port) of the OMERO server
+	 * @param id OMERO ID of the image
+	 * @return metadata, or {@code null} if it is not cached
+	 */
+	JsonObject getExpired(String server, int id) {
+		var entry = getEntry(server, id);
+		if (entry == null)
+			return null;
+		logger.warn("Using the metadata of image {} cached {} min ago", id, (System.currentTimeMillis() - entry.timestamp) / 60_000L);
+		return entry.json;
+	}
+
+	/**
+	 * Add the metadata of the specified image to the cache (replacing any previous version).
+	 * @param server host (and port) of the OMERO server
+	 * @param id OMERO ID of the image
+	 * @param json the metadata, which must not be modified afterwards
+	 */
+	void put(String server, int id, JsonObject json) {
+		String relativePath = toRelativePath(server, id);
+		entries.put(relativePath, new Entry(json, System.currentTimeMillis()));
+		Path path = directory.resolve(relativePath);
+		try {
+			Files.createDirectories(path.getParent());
+			// Write to a temporary file first, so that no other thread can read a partially-written file
+			Path temp = Files.createTempFile(path.getParent(), null, ".tmp");
+			Files.writeString(temp, json.toString(), StandardCharsets.UTF_8);
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			logger.warn("Unable to cache metadata of image {}: {}", id, ex.getLocalizedMessage());
+		}
+	}
+
+	private Entry getEntry(String server, int id) {
+		String relativePath = toRelativePath(server, id);
+		var entry = entries.get(relativePath);
+		if (entry != null)
+			return entry;
+
+		Path path = directory.resolve(relativePath);
+		try {
+			long timestamp = Files.getLastModifiedTime(path).toMillis();
+			var json = JsonParser.parseString(Files.readString(path, StandardCharsets.UTF_8)).getAsJsonObject();
+			entry = new Entry(json, timestamp);
+			entries.putIfAbsent(relativePath, entry);
+			return entry;
+		} catch (NoSuchFileException ex) {
+			return null;
+		} catch (IOException | JsonParseException | IllegalStateException ex) {
+			logger.warn("Unable to read cached metadata of image {}: {}", id, ex.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	private static String toRelativePath(String server, int id) {
+		return Path.of(server.replaceAll("[^a-zA-Z0-9.\\-]", "_"), id + EXTENSION).toString();
+	}
+
+
+	/**
+	 * Metadata of an image, with the time at which it was requested.
+	 */
+	private static class Entry {
+
+		private final JsonObject json;
+		private final long timestamp;
+
+		private Entry(JsonObject json, long timestamp) {
+			this.json = json;
+			this.timestamp = timestamp;
+		}
+	}
+}
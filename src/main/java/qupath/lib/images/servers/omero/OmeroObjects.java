@@ -21,6 +21,7 @@
 
 package qupath.lib.images.servers.omero;
 
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.net.URI;
 import java.util.ArrayList;
@@ -32,12 +33,16 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
 
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.IntegerProperty;
@@ -55,6 +60,8 @@ final class OmeroObjects {
 	
 	private final static Logger logger = LoggerFactory.getLogger(OmeroObjects.class);
 	
+	private final static Gson gson = new GsonBuilder().registerTypeAdapter(OmeroObject.class, new GsonOmeroObjectDeserializer()).setLenient().create();
+	
 	public static enum OmeroObjectType {
 		SERVER("#Server", "Server"),
 		PROJECT("http://www.openmicroscopy.org/Schemas/OME/2016-06#Project", "Project"),
@@ -127,6 +134,24 @@ final class OmeroObjects {
 	}
 	
 	
+	/**
+	 * Read an OMERO object (as returned by the OMERO API) directly from a JSON response.
+	 * Only the JSON of this object is held in memory while it is deserialized.
+	 * @param reader
+	 * @return the object, or {@code null} if it is not supported or cannot be deserialized
+	 * @throws IOException if the response cannot be read
+	 */
+	static OmeroObject readOmeroObject(JsonReader reader) throws IOException {
+		JsonElement json = JsonParser.parseReader(reader);
+		try {
+			return gson.fromJson(json, OmeroObject.class);
+		} catch (Exception e) {
+			logger.error("Error parsing OMERO object: " + e.getLocalizedMessage(), e);
+			return null;
+		}
+	}
+	
+	
 	static abstract class OmeroObject {
 		
 		@SerializedName(value = "@id")
@@ -0,0 +1,369 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.omero.OmeroTileCache.TileKey;
+
+/**
+ * Memory cache for decoded tiles, stored outside the Java heap.
+ * <p>
+ * The pixels of each tile are copied into fixed-size blocks of direct memory, allocated in large slabs
+ * up to {@link OmeroWebPreferences#offHeapCacheMaxSizeMBProperty()} and then reused, so that the memory allocated
+ * is known exactly and never exceeds the budget. When no block is free, the least recently used tiles are evicted first.
+ * The slabs are kept when the budget changes, except those beyond a smaller budget: their tiles are evicted, and
+ * their memory is returned once they are garbage collected (direct memory cannot be freed explicitly).
+ * Only the description of each tile (its color and sample models) is kept on the heap, and a new
+ * {@link BufferedImage} is created each time a tile is read.
+ * <p>
+ * This keeps a much larger working set of decoded tiles than QuPath's own tile cache (which is limited
+ * by the size of the heap), without the cost of requesting and decoding them again.
+ * A single cache is shared by all the OMERO servers.
+ * Note that direct memory is itself limited by the JVM, by default to the maximum size of the heap
+ * (see {@code -XX:MaxDirectMemorySize}).
+ */
+final class OmeroOffHeapTileCache {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroOffHeapTileCache.class);
+
+	private final static int BLOCK_SIZE = 64 * 1024;
+	private final static int SLAB_BLOCKS = 256;
+
+	private static OmeroOffHeapTileCache instance;
+
+	private long maxBytes;
+
+	private final List<ByteBuffer> slabs = new ArrayList<>();
+	private boolean canAllocate = true;
+
+	/**
+	 * Stack of the indices of the free blocks (the index of a block being slab * SLAB_BLOCKS + block in slab)
+	 */
+	private int[] freeBlocks = new int[SLAB_BLOCKS];
+	private int nFreeBlocks = 0;
+
+	/**
+	 * Cached tiles, in least-recently-used order
+	 */
+	private final LinkedHashMap<TileKey, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+	private long usedBytes = 0;
+
+	private OmeroOffHeapTileCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Return the off-heap tile cache, or {@code null} if it is disabled (i.e. its maximum size is 0).
+	 * @return cache
+	 */
+	static synchronized OmeroOffHeapTileCache getInstance() {
+		long maxBytes = OmeroWebPreferences.offHeapCacheMaxSizeMBProperty().get() * 1024L * 1024L;
+		if (maxBytes < BLOCK_SIZE) {
+			instance = null;
+			return null;
+		}
+		// Memory of a disabled cache is freed once its slabs are garbage collected
+		if (instance == null)
+			instance = new OmeroOffHeapTileCache(maxBytes);
+		else
+			instance.resize(maxBytes);
+		return instance;
+	}
+
+	/**
+	 * Return a copy of the specified tile, or {@code null} if the tile is not in the cache.
+	 * @param key
+	 * @return tile
+	 */
+	BufferedImage get(TileKey key) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry == null)
+				return null;
+			// The blocks of a pinned tile are not reused (even if it is evicted), so they can be read without the lock
+			entry.pins++;
+		}
+		try {
+			var raster = Raster.createWritableRaster(entry.sampleModel, null);
+			var buffer = raster.getDataBuffer();
+			if ((long)buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8 != entry.length)
+				return null;
+			copy(entry, buffer, false);
+			return new BufferedImage(entry.colorModel, raster, entry.alphaPremultiplied, null);
+		} finally {
+			synchronized (this) {
+				if (--entry.pins == 0 && entry.evicted)
+					releaseBlocks(entry);
+			}
+		}
+	}
+
+	/**
+	 * Add a copy of the specified tile to the cache.
+	 * Tiles that are not stored in a single array of bytes or ints per band (which includes all the tiles
+	 * decoded from OMERO) are ignored.
+	 * @param key
+	 * @param img
+	 */
+	void put(TileKey key, BufferedImage img) {
+		var raster = img.getRaster();
+		var buffer = raster.getDataBuffer();
+		if (!(buffer instanceof DataBufferByte || buffer instanceof DataBufferInt) || raster.getParent() != null ||
+				raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0 ||
+				Arrays.stream(buffer.getOffsets()).anyMatch(offset -> offset != 0))
+			return;
+
+		long length = (long)buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+		int nBlocks = (int)((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+
+		synchronized (this) {
+			if (nBlocks * (long)BLOCK_SIZE > maxBytes || entries.get(key) != null || !reserveBlocks(nBlocks))
+				return;
+			int[] blocks = Arrays.copyOfRange(freeBlocks, nFreeBlocks - nBlocks, nFreeBlocks);
+			nFreeBlocks -= nBlocks;
+			var blockSlabs = new ByteBuffer[nBlocks];
+			for (int i = 0; i < nBlocks; i++)
+				blockSlabs[i] = slabs.get(blocks[i] / SLAB_BLOCKS);
+			var entry = new Entry(blocks, blockSlabs, length, raster.getSampleModel(), img.getColorModel(), img.isAlphaPremultiplied());
+			copy(entry, buffer, true);
+			entries.put(key, entry);
+			usedBytes += length;
+		}
+	}
+
+	/**
+	 * Return the number of bytes used by the pixels of the cached tiles.
+	 * @return size in bytes
+	 */
+	synchronized long getSizeBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * Return the number of bytes of direct memory allocated by the cache (which never exceeds its maximum size).
+	 * @return allocated bytes
+	 */
+	synchronized long getAllocatedBytes() {
+		return slabs.stream().mapToLong(ByteBuffer::capacity).sum();
+	}
+
+	/**
+	 * Change the maximum size of the cache, keeping the slabs already allocated within the new size.
+	 * The tiles stored in the other slabs are evicted.
+	 */
+	private synchronized void resize(long maxBytes) {
+		if (this.maxBytes == maxBytes)
+			return;
+		this.maxBytes = maxBytes;
+		canAllocate = true;
+		long allocated = 0;
+		int nSlabs = 0;
+		while (nSlabs < slabs.size() && allocated + slabs.get(nSlabs).capacity() <= maxBytes)
+			allocated += slabs.get(nSlabs++).capacity();
+		if (nSlabs == slabs.size())
+			return;
+
+		int firstReleased = nSlabs * SLAB_BLOCKS;
+		var iter = entries.values().iterator();
+		while (iter.hasNext()) {
+			var entry = iter.next();
+			if (Arrays.stream(entry.blocks).anyMatch(block -> block >= firstReleased)) {
+				iter.remove();
+				evict(entry);
+			}
+		}
+		slabs.subList(nSlabs, slabs.size()).clear();
+		int n = 0;
+		for (int i = 0; i < nFreeBlocks; i++) {
+			if (freeBlocks[i] < firstReleased)
+				freeBlocks[n++] = freeBlocks[i];
+		}
+		nFreeBlocks = n;
+		logger.debug("Off-heap tile cache reduced to {} MB", getAllocatedBytes() / (1024 * 1024));
+	}
+
+	/**
+	 * Make sure at least the specified number of blocks are free, allocating a new slab or evicting tiles if needed.
+	 * @return false if the blocks cannot be reserved
+	 */
+	private boolean reserveBlocks(int nBlocks) {
+		while (nFreeBlocks < nBlocks) {
+			if (!allocateSlab() && !evictEldest())
+				return false;
+		}
+		return true;
+	}
+
+	private boolean allocateSlab() {
+		long remaining = maxBytes - getAllocatedBytes();
+		int nBlocks = (int)Math.min(SLAB_BLOCKS, remaining / BLOCK_SIZE);
+		if (!canAllocate || nBlocks == 0)
+			return false;
+		try {
+			slabs.add(ByteBuffer.allocateDirect(nBlocks * BLOCK_SIZE).order(ByteOrder.nativeOrder()));
+		} catch (OutOfMemoryError e) {
+			logger.warn("Unable to allocate more than {} MB for the off-heap tile cache, consider increasing -XX:MaxDirectMemorySize",
+					getAllocatedBytes() / (1024 * 1024));
+			canAllocate = false;
+			return false;
+		}
+		// Any block may be free at some point
+		if (freeBlocks.length < slabs.size() * SLAB_BLOCKS)
+			freeBlocks = Arrays.copyOf(freeBlocks, slabs.size() * SLAB_BLOCKS);
+		int firstBlock = (slabs.size() - 1) * SLAB_BLOCKS;
+		for (int i = nBlocks - 1; i >= 0; i--)
+			freeBlocks[nFreeBlocks++] = firstBlock + i;
+		return true;
+	}
+
+	private boolean evictEldest() {
+		var iter = entries.values().iterator();
+		if (!iter.hasNext())
+			return false;
+		var entry = iter.next();
+		iter.remove();
+		evict(entry);
+		return true;
+	}
+
+	/**
+	 * Release the blocks of a tile removed from the cache, or mark them to be released once the tile is no longer read.
+	 */
+	private void evict(Entry entry) {
+		usedBytes -= entry.length;
+		entry.evicted = true;
+		if (entry.pins == 0)
+			releaseBlocks(entry);
+	}
+
+	private void releaseBlocks(Entry entry) {
+		for (int i = 0; i < entry.blocks.length; i++) {
+			// Blocks of slabs released since the tile was added cannot be reused
+			int slab = entry.blocks[i] / SLAB_BLOCKS;
+			if (slab < slabs.size() && slabs.get(slab) == entry.blockSlabs[i])
+				freeBlocks[nFreeBlocks++] = entry.blocks[i];
+		}
+	}
+
+	/**
+	 * Copy the pixels of a tile between its blocks and a data buffer (with the layout of the tile).
+	 * @param entry the tile
+	 * @param buffer the data buffer
+	 * @param toBlocks true to copy the buffer to the blocks, false to copy the blocks to the buffer
+	 */
+	private static void copy(Entry entry, DataBuffer buffer, boolean toBlocks) {
+		int block = 0;
+		int position = 0;
+		int size = buffer.getSize();
+		for (int b = 0; b < buffer.getNumBanks(); b++) {
+			int offset = 0;
+			while (offset < size) {
+				if (position == BLOCK_SIZE) {
+					block++;
+					position = 0;
+				}
+				var region = getBlock(entry, block).position(position);
+				int n;
+				if (buffer instanceof DataBufferInt) {
+					int[] data = ((DataBufferInt)buffer).getData(b);
+					n = Math.min(size - offset, region.remaining() / Integer.BYTES);
+					if (toBlocks)
+						region.asIntBuffer().put(data, offset, n);
+					else
+						region.asIntBuffer().get(data, offset, n);
+					position += n * Integer.BYTES;
+				} else {
+					byte[] data = ((DataBufferByte)buffer).getData(b);
+					n = Math.min(size - offset, region.remaining());
+					if (toBlocks)
+						region.put(data, offset, n);
+					else
+						region.get(data, offset, n);
+					position += n;
+				}
+				offset += n;
+			}
+		}
+	}
+
+	private static ByteBuffer getBlock(Entry entry, int i) {
+		return entry.blockSlabs[i]
+				.slice((entry.blocks[i] % SLAB_BLOCKS) * BLOCK_SIZE, BLOCK_SIZE)
+				.order(ByteOrder.nativeOrder());
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Off-heap tile cache: %d tiles, %d/%d MB used (%d MB allocated)", entries.size(),
+				usedBytes / (1024 * 1024), maxBytes / (1024 * 1024), getAllocatedBytes() / (1024 * 1024));
+	}
+
+
+	/**
+	 * Tile stored in the cache.
+	 */
+	private static class Entry {
+
+		private final int[] blocks;
+		/**
+		 * Slab of each block, so that the blocks can be read without accessing the list of slabs
+		 */
+		private final ByteBuffer[] blockSlabs;
+		private final long length;
+		private final SampleModel sampleModel;
+		private final ColorModel colorModel;
+		private final boolean alphaPremultiplied;
+
+		/**
+		 * Number of threads reading the tile
+		 */
+		private int pins = 0;
+		private boolean evicted = false;
+
+		private Entry(int[] blocks, ByteBuffer[] blockSlabs, long length, SampleModel sampleModel, ColorModel colorModel, boolean alphaPremultiplied) {
+			this.blocks = blocks;
+			this.blockSlabs = blockSlabs;
+			this.length = length;
+			this.sampleModel = sampleModel;
+			this.colorModel = colorModel;
+			this.alphaPremultiplied = alphaPremultiplied;
+		}
+	}
+}
@@ -0,0 +1,281 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adaptive limit on the number of concurrent requests sent to one OMERO server.
+ * <p>
+ * The limit follows an AIMD (additive increase, multiplicative decrease) scheme: it grows by about one
+ * request per round-trip while all the permits are in use and the latency stays close to its baseline,
+ * and it is reduced as soon as the server responds with an overload status (5xx or 429), times out,
+ * or the latency of the last requests rises well above its baseline.
+ * <p>
+ * Requests that cannot be sent immediately wait in a queue, ordered by {@link OmeroRequestPriority} 
+ * (and then in order of arrival). The last permit is also kept for the viewer and overview requests, 
+ * so that they are never stuck behind a full window of prefetch or batch requests.
+ */
+final class OmeroRequestLimiter {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroRequestLimiter.class);
+
+	private final static int MIN_LIMIT = 1;
+	private final static int MAX_LIMIT = 64;
+	private final static int INITIAL_LIMIT = 4;
+
+	/**
+	 * Factor applied to the limit when the server is overloaded
+	 */
+	private final static double BACKOFF_RATIO = 0.75;
+
+	/**
+	 * Latency (relative to the baseline) above which the server is considered overloaded
+	 */
+	private final static double LATENCY_TOLERANCE = 1.5;
+
+	/**
+	 * Weight of the recent latency (within the tolerance) when the baseline latency increases (it decreases immediately)
+	 */
+	private final static double BASELINE_SMOOTHING = 0.01;
+
+	/**
+	 * Weight of each new sample in the recent latency, compared to the baseline (i.e. about the last 10 requests)
+	 */
+	private final static double RECENT_SMOOTHING = 0.1;
+
+	private final String name;
+	private final Queue<Waiter> waiters = new PriorityQueue<>();
+	private long nextSequence = 0;
+
+	private double limit = INITIAL_LIMIT;
+	private int inFlight = 0;
+	private double baselineLatencyNanos = 0;
+	private double recentLatencyNanos = 0;
+	private long lastBackoffNanos = System.nanoTime();
+
+	/**
+	 * Create a limiter.
+	 * @param name name of the limiter, used for logging (e.g. the host)
+	 */
+	OmeroRequestLimiter(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Request a permit to send a request.
+	 * <p>
+	 * The permit must be returned with one of the {@code release} methods once the request completes;
+	 * cancelling the returned future before it completes gives up waiting for the permit.
+	 * @param priority priority of the request
+	 * @return a future completed once the request can be sent
+	 */
+	CompletableFuture<Void> acquire(OmeroRequestPriority priority) {
+		var waiter = new Waiter(priority);
+		synchronized (this) {
+			if (canSend(priority) && (waiters.isEmpty() || waiters.peek().priority.compareTo(priority) > 0)) {
+				inFlight++;
+				waiter.future.complete(null);
+				return waiter.future;
+			}
+			waiter.sequence = nextSequence++;
+			waiters.add(waiter);
+		}
+		waiter.future.whenComplete((v, ex) -> {
+			if (waiter.future.isCancelled()) {
+				synchronized (this) {
+					waiters.remove(waiter);
+				}
+			}
+		});
+		return waiter.future;
+	}
+
+	/**
+	 * Take a permit immediately, even if the limit is reached.
+	 * <p>
+	 * This is only intended for the few requests that are useless unless sent immediately (i.e. hedged requests).
+	 * The permit must be returned with one of the {@code release} methods once the request completes.
+	 * @return a completed future, for consistency with {@link #acquire(OmeroRequestPriority)}
+	 */
+	CompletableFuture<Void> acquireNow() {
+		synchronized (this) {
+			inFlight++;
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Return a permit after a successful request.
+	 * @param latencyNanos time taken by the request (excluding the time waiting for the permit)
+	 */
+	void release(long latencyNanos) {
+		synchronized (this) {
+			// Compare the latency of the last requests rather than single responses, since the time OMERO takes 
+			// varies a lot from one request to another (e.g. whether a tile was already rendered or not)
+			if (recentLatencyNanos == 0)
+				recentLatencyNanos = latencyNanos;
+			else
+				recentLatencyNanos += (latencyNanos - recentLatencyNanos) * RECENT_SMOOTHING;
+			if (baselineLatencyNanos == 0 || recentLatencyNanos < baselineLatencyNanos)
+				baselineLatencyNanos = recentLatencyNanos;
+
+			if (recentLatencyNanos > baselineLatencyNanos * LATENCY_TOLERANCE) {
+				if (getLimit() > MIN_LIMIT)
+					backoff((long)recentLatencyNanos);
+				else
+					// Requests are slow even one at a time, so that is the new baseline (e.g. larger tiles)
+					baselineLatencyNanos = recentLatencyNanos;
+			} else {
+				// Only drift the baseline within the tolerance, so that an overload is not taken as the norm
+				baselineLatencyNanos += (recentLatencyNanos - baselineLatencyNanos) * BASELINE_SMOOTHING;
+				if (inFlight >= getLimit() || !waiters.isEmpty())
+					// Only grow when the limit is actually reached, otherwise latency tells nothing about a higher limit
+					limit = Math.min(MAX_LIMIT, limit + 1.0 / limit);
+			}
+			inFlight--;
+		}
+		grantPermits();
+	}
+
+	/**
+	 * Return a permit after the server responded that it is overloaded (or did not respond in time).
+	 */
+	void releaseOverloaded() {
+		synchronized (this) {
+			backoff(0);
+			inFlight--;
+		}
+		grantPermits();
+	}
+
+	/**
+	 * Return a permit after a request that tells nothing about the load of the server
+	 * (e.g. cancelled, or failed for an unrelated reason).
+	 */
+	void releaseIgnored() {
+		synchronized (this) {
+			inFlight--;
+		}
+		grantPermits();
+	}
+
+	/**
+	 * Return the current maximum number of concurrent requests.
+	 * @return limit
+	 */
+	synchronized int getLimit() {
+		return (int)limit;
+	}
+
+	/**
+	 * Return the number of requests currently sent (i.e. holding a permit).
+	 * @return number of requests in flight
+	 */
+	synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Return the number of requests waiting for a permit.
+	 * @return queue depth
+	 */
+	synchronized int getQueueDepth() {
+		return waiters.size();
+	}
+
+	/**
+	 * Reduce the limit, at most once per baseline round-trip (so that all the requests
+	 * in flight during an overload do not reduce it several times).
+	 * @param latencyNanos the latency of the request that triggered the backoff, or 0 if unknown
+	 */
+	private void backoff(long latencyNanos) {
+		long now = System.nanoTime();
+		if (now - lastBackoffNanos < Math.max(baselineLatencyNanos, latencyNanos / LATENCY_TOLERANCE))
+			return;
+		lastBackoffNanos = now;
+		int previous = getLimit();
+		limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+		logger.debug("Concurrent requests to {} reduced from {} to {} ({} queued)", name, previous, getLimit(), waiters.size());
+	}
+
+	/**
+	 * Return true if a request with the specified priority can be sent now (ignoring the requests waiting).
+	 */
+	private boolean canSend(OmeroRequestPriority priority) {
+		int limit = getLimit();
+		if (limit > 1 && priority.compareTo(OmeroRequestPriority.OVERVIEW) > 0)
+			limit--;
+		return inFlight < limit;
+	}
+
+	private void grantPermits() {
+		List<CompletableFuture<Void>> granted = new ArrayList<>();
+		synchronized (this) {
+			while (!waiters.isEmpty() && canSend(waiters.peek().priority)) {
+				var waiter = waiters.poll();
+				if (!waiter.future.isDone()) {
+					inFlight++;
+					granted.add(waiter.future);
+				}
+			}
+		}
+		// Complete outside the lock, since the requests are sent by dependent stages
+		for (var future: granted) {
+			if (!future.complete(null))
+				releaseIgnored();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s: %d/%d requests in flight, %d queued", name, inFlight, getLimit(), waiters.size());
+	}
+
+
+	/**
+	 * Request waiting for a permit.
+	 */
+	private static class Waiter implements Comparable<Waiter> {
+
+		private final OmeroRequestPriority priority;
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+		private long sequence;
+
+		private Waiter(OmeroRequestPriority priority) {
+			this.priority = priority;
+		}
+
+		@Override
+		public int compareTo(Waiter other) {
+			int cmp = priority.compareTo(other.priority);
+			return cmp != 0 ? cmp : Long.compare(sequence, other.sequence);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.IOException;
+
+/**
+ * Priority classes of the requests sent to OMERO, from the most to the least urgent.
+ * <p>
+ * When the number of concurrent requests is limited (see {@link OmeroRequestLimiter}), waiting requests
+ * are sent in order of priority, so that the viewer stays responsive while e.g. a script reads tiles in the background.
+ * <p>
+ * The priority of a request is given by {@link #current()}, i.e. the one set for the calling thread with
+ * {@link #callWith(OmeroRequestPriority, OmeroSingleFlight.Loader)} or, by default, inferred from the calling thread.
+ */
+enum OmeroRequestPriority {
+
+	/**
+	 * Tiles visible in a viewer
+	 */
+	VIEWER,
+
+	/**
+	 * Overview (i.e. default thumbnail) of an image, and thumbnails displayed in the browser
+	 */
+	OVERVIEW,
+
+	/**
+	 * Tiles requested in advance, in case they are needed next
+	 */
+	PREFETCH,
+
+	/**
+	 * Any other request (e.g. tiles read by a script or a command)
+	 */
+	BATCH;
+
+	/**
+	 * Prefix of the name of the threads used by QuPath to read the tiles painted in viewers
+	 */
+	private final static String VIEWER_THREAD_PREFIX = "region-store";
+
+	private final static ThreadLocal<OmeroRequestPriority> threadPriority = new ThreadLocal<>();
+
+	/**
+	 * Return the priority of the requests sent by the current thread: the one set with
+	 * {@link #callWith(OmeroRequestPriority, OmeroSingleFlight.Loader)} if any,
+	 * {@link #VIEWER} for the threads reading tiles for QuPath's viewers, and {@link #BATCH} otherwise.
+	 * @return priority
+	 */
+	static OmeroRequestPriority current() {
+		var priority = threadPriority.get();
+		if (priority != null)
+			return priority;
+		if (Thread.currentThread().getName().startsWith(VIEWER_THREAD_PREFIX))
+			return VIEWER;
+		return BATCH;
+	}
+
+	/**
+	 * Call the specified function with the priority of the current thread set to {@code priority}.
+	 * @param <T>
+	 * @param priority
+	 * @param function
+	 * @return the result of the function
+	 * @throws IOException
+	 */
+	static <T> T callWith(OmeroRequestPriority priority, OmeroSingleFlight.Loader<T> function) throws IOException {
+		var previous = threadPriority.get();
+		threadPriority.set(priority);
+		try {
+			return function.load();
+		} finally {
+			if (previous == null)
+				threadPriority.remove();
+			else
+				threadPriority.set(previous);
+		}
+	}
+}
@@ -22,27 +22,33 @@
 package qupath.lib.images.servers.omero;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.URI;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import javax.imageio.ImageIO;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
-import qupath.lib.common.GeneralTools;
 import qupath.lib.images.servers.omero.OmeroAnnotations.OmeroAnnotationType;
 import qupath.lib.images.servers.omero.OmeroObjects.Group;
 import qupath.lib.images.servers.omero.OmeroObjects.OmeroObject;
 import qupath.lib.images.servers.omero.OmeroObjects.OmeroObjectType;
 import qupath.lib.images.servers.omero.OmeroObjects.Owner;
+import qupath.lib.images.servers.omero.OmeroShapes.OmeroShape;
+import qupath.lib.images.servers.omero.OmeroTools.JsonItemReader;
+import qupath.lib.images.servers.omero.OmeroTransport.StatusException;
 import qupath.lib.io.GsonTools;
 
 /**
@@ -64,6 +70,11 @@ public final class OmeroRequests {
 	private static final String JSON_API_FILTERED_LIST = "/api/v0/m/%s/%d/%s/?%s";	// '/api/v0/m/{datasets}/{103}/{images}/?{childCount=true}'
 	private static final String JSON_API_ROIS = "/api/v0/m/rois/?image=%s";
 	
+	/**
+	 * Metadata requests currently in flight, by URI
+	 */
+	private static final OmeroSingleFlight<String, JsonObject> metadataRequests = new OmeroSingleFlight<>();
+	
 	/**
 	 * Suppress default constructor for non-instantiability
 	 */
@@ -73,6 +84,10 @@ public final class OmeroRequests {
 	
 	/**
 	 * Request the metadata of OMERO image with {@code id}.
+	 * <p>
+	 * Concurrent requests for the same metadata share a single request (and the same result, which must not be modified).
+	 * The metadata is read from the {@link OmeroMetadataCache} if it was requested recently, and added to it otherwise.
+	 * Expired cached metadata is only used if the server cannot be reached, or fails with a server error.
 	 * @param scheme server's scheme
 	 * @param host server's host
 	 * @param port server's port
@@ -81,10 +96,30 @@ public final class OmeroRequests {
 	 * @throws IOException
 	 */
 	public static JsonObject requestMetadata(String scheme, String host, int port, int id) throws IOException {
-		URL url = new URL(scheme, host, port, String.format(WEBGATEWAY_DATA, id));
-		try (InputStreamReader reader = new InputStreamReader(url.openStream())) {
-			JsonObject map = new Gson().fromJson(reader, JsonObject.class);			
-			return map;
+		URI uri = OmeroTransports.createURI(scheme, host, port, String.format(WEBGATEWAY_DATA, id));
+		var cache = OmeroMetadataCache.getInstance();
+		String server = host + (port < 0 ? "" : ":" + port);
+		JsonObject cached = cache == null ? null : cache.get(server, id);
+		if (cached != null)
+			return cached;
+		try {
+			return metadataRequests.get(uri.toString(), () -> {
+				try (InputStreamReader reader = new InputStreamReader(OmeroTransports.get(uri).getStream(uri), StandardCharsets.UTF_8)) {
+					JsonObject map = new Gson().fromJson(reader, JsonObject.class);
+					if (cache != null && map != null)
+						cache.put(server, id, map);
+					return map;
+				}
+			});
+		} catch (IOException ex) {
+			// A client error (e.g. the image was deleted or is not accessible anymore) means that the cached metadata is wrong
+			if (ex instanceof StatusException && ((StatusException)ex).getStatusCode() < 500)
+				throw ex;
+			// Otherwise, the server cannot be reached: better to open the image with metadata that might be outdated than not at all
+			cached = cache == null ? null : cache.getExpired(server, id);
+			if (cached != null)
+				return cached;
+			throw ex;
 		}
 	}
 	
@@ -116,23 +151,48 @@ public final class OmeroRequests {
 	 * @throws IOException
 	 */
 	public static JsonObject requestObjectInfo(String scheme, String host, int port, int id, OmeroObjectType type, String args) throws IOException {
-		// Create URL
-		URL url = new URL(scheme, host, port, String.format(JSON_API_INFO, type.toURLString(), id) + (args == null ? "" : args));
+		// Create URI
+		URI uri = OmeroTransports.createURI(scheme, host, port, String.format(JSON_API_INFO, type.toURLString(), id) + (args == null ? "" : args));
 		
-		// Open connection
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        int response = connection.getResponseCode();
-        
-        // Catch bad response
-        if (response != 200)
-        	throw new IOException(String.format("Connection to %s failed: Error %d.", url.getHost(), response));
-        
         // Read input stream
-        try (InputStreamReader reader = new InputStreamReader(connection.getInputStream())) {
+        try (InputStreamReader reader = new InputStreamReader(OmeroTransports.get(uri).getStream(uri), StandardCharsets.UTF_8)) {
         	return GsonTools.getInstance().fromJson(reader, JsonObject.class);
         }
 	}
 	
+	/**
+	 * Request the OMERO object with id ({@code id}) and OMERO type ({@code type}), decoding it directly from the response.
+	 * <p>
+	 * N.B: the parent of the object is not set.
+	 * 
+	 * @param scheme server's scheme
+	 * @param host server's host
+	 * @param port server's port
+	 * @param id object's OMERO id
+	 * @param type object's type
+	 * @return object, or {@code null} if it is not supported
+	 * @throws IOException
+	 * @see #requestObjectInfo(String, String, int, int, OmeroObjectType)
+	 */
+	static OmeroObject requestOmeroObject(String scheme, String host, int port, int id, OmeroObjectType type) throws IOException {
+		URI uri = OmeroTransports.createURI(scheme, host, port, String.format(JSON_API_INFO, type.toURLString(), id));
+		OmeroObject omeroObj = null;
+		try (JsonReader reader = new JsonReader(new InputStreamReader(OmeroTransports.get(uri).getStream(uri), StandardCharsets.UTF_8))) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (reader.nextName().equals("data"))
+					omeroObj = OmeroObjects.readOmeroObject(reader);
+				else
+					reader.skipValue();
+			}
+			reader.endObject();
+		} catch (IllegalStateException | JsonParseException ex) {
+			throw new IOException("Unable to parse OMERO response: " + ex.getLocalizedMessage(), ex);
+		}
+		return omeroObj;
+	}
+	
+	
 	/**
 	 * Request a list of all {@code OmeroObject}s with type {@code objectType} from the server. 
 	 * This will <b>not</b> fetch orphaned objects.
@@ -245,17 +305,37 @@ public final class OmeroRequests {
 	 * @see #requestWebClientObjectList
 	 */
 	public static List<JsonElement> requestObjectList(String scheme, String host, int port, OmeroObjectType objectType, OmeroObjectType parentType, int parentId) throws IOException {
-		URL url;
+		return requestObjectList(scheme, host, port, objectType, parentType, parentId, JsonParser::parseReader);
+	}
+	
+	/**
+	 * Request a list of {@code OmeroObject}s with type {@code objectType} and parent's id {@code parentId} from the server, 
+	 * decoding each object directly from the response with the specified reader.
+	 * 
+	 * @param <T> type of the decoded objects
+	 * @param scheme server's scheme
+	 * @param host server's host
+	 * @param port server's port
+	 * @param objectType object's type
+	 * @param parentType type of object's parent
+	 * @param parentId object's parent id
+	 * @param itemReader reader for a single object (e.g. {@link OmeroObjects#readOmeroObject(JsonReader)})
+	 * @return list of decoded objects
+	 * @throws IOException
+	 * @see #requestObjectList(String, String, int, OmeroObjectType, OmeroObjectType, int)
+	 */
+	static <T> List<T> requestObjectList(String scheme, String host, int port, OmeroObjectType objectType, OmeroObjectType parentType, int parentId, JsonItemReader<T> itemReader) throws IOException {
+		URI uri;
 		String query = "childCount=true";
 		if (parentType == OmeroObjectType.SERVER)	// Orphaned
-			url = new URL(scheme, host, port, String.format(JSON_API_LIST, objectType.toURLString(), query) + "&orphaned=true");
+			uri = OmeroTransports.createURI(scheme, host, port, String.format(JSON_API_LIST, objectType.toURLString(), query) + "&orphaned=true");
 		else if (parentId == -1)					// All OmeroObjects of type 'objectType'
-			url = new URL(scheme, host, port, String.format(JSON_API_LIST, objectType.toURLString(), query));
+			uri = OmeroTransports.createURI(scheme, host, port, String.format(JSON_API_LIST, objectType.toURLString(), query));
 		else										// All OmeroObjects of type 'objectType' with parent
-			url = new URL(scheme, host, port, String.format(JSON_API_FILTERED_LIST, parentType.toURLString(), parentId, objectType.toURLString(), query));
+			uri = OmeroTransports.createURI(scheme, host, port, String.format(JSON_API_FILTERED_LIST, parentType.toURLString(), parentId, objectType.toURLString(), query));
 
-		// Return json
-		return OmeroTools.readPaginated(url);
+		// Return decoded objects
+		return OmeroTools.readPaginated(uri, itemReader);
 		
 	}
 	
@@ -273,14 +353,10 @@ public final class OmeroRequests {
 	 * @see #requestObjectList
 	 */
 	public static JsonObject requestWebClientObjectList(String scheme, String host, int port, OmeroObjectType objectType) throws IOException {
-		URL urlOrphanedImages = new URL(scheme, host, port, String.format("/webclient/api/%s/?orphaned=true", objectType.toURLString()));
-		HttpURLConnection connection = (HttpURLConnection) urlOrphanedImages.openConnection();
-        if (connection.getResponseCode() == 200) {
-        	try (InputStreamReader reader = new InputStreamReader(connection.getInputStream())) {
-        		return GsonTools.getInstance().fromJson(reader, JsonObject.class);
-        	}
-        }
-		throw new IOException(String.format("Error %d while connecting to OMERO Webclient: %s", connection.getResponseCode(), connection.getResponseMessage()));
+		URI uri = OmeroTransports.createURI(scheme, host, port, String.format("/webclient/api/%s/", objectType.toURLString()), "orphaned=true");
+		try (InputStreamReader reader = new InputStreamReader(OmeroTransports.get(uri).getStream(uri), StandardCharsets.UTF_8)) {
+			return GsonTools.getInstance().fromJson(reader, JsonObject.class);
+		}
 	}
 	
 	/**
@@ -297,8 +373,8 @@ public final class OmeroRequests {
 	 * @throws IOException
 	 */
 	public static JsonElement requestOMEROAnnotations(String scheme, String host, int port, int id, OmeroObjectType objType, OmeroAnnotationType annType) throws IOException {
-		URL url = new URL(scheme, host, port, String.format(WEBCLIENT_READ_ANNOTATION, annType.toURLString(), objType.toString().toLowerCase(), id, System.currentTimeMillis()));
-		try (InputStreamReader reader = new InputStreamReader(url.openStream())) {
+		URI uri = OmeroTransports.createURI(scheme, host, port, String.format(WEBCLIENT_READ_ANNOTATION, annType.toURLString(), objType.toString().toLowerCase(), id, System.currentTimeMillis()));
+		try (InputStreamReader reader = new InputStreamReader(OmeroTransports.get(uri).getStream(uri), StandardCharsets.UTF_8)) {
 			return GsonTools.getInstance().fromJson(reader, JsonElement.class);
 		}
 	}
@@ -315,8 +391,29 @@ public final class OmeroRequests {
 	 * @throws IOException
 	 */
 	public static List<JsonElement> requestROIs(String scheme, String host, int port, String id) throws IOException {
-		URL url = new URL(scheme, host, port, String.format(JSON_API_ROIS, id));
-		return OmeroTools.readPaginated(url);
+		URI uri = OmeroTransports.createURI(scheme, host, port, String.format(JSON_API_ROIS, id));
+		return OmeroTools.readPaginated(uri);
+	}
+	
+	/**
+	 * Request the shapes of all the (OMERO) ROIs from the OMERO image with the specified {@code id}, 
+	 * decoding them directly from the response (which can be very large for images with many ROIs).
+	 * Shapes that are not supported are skipped.
+	 * 
+	 * @param scheme server's scheme
+	 * @param host server's host
+	 * @param port server's port
+	 * @param id object's id
+	 * @return list of shapes
+	 * @throws IOException
+	 * @see #requestROIs(String, String, int, String)
+	 */
+	static List<OmeroShape> requestShapes(String scheme, String host, int port, String id) throws IOException {
+		URI uri = OmeroTransports.createURI(scheme, host, port, String.format(JSON_API_ROIS, id));
+		List<OmeroShape> shapes = new ArrayList<>();
+		for (var roiShapes: OmeroTools.readPaginated(uri, OmeroShapes::readShapes))
+			shapes.addAll(roiShapes);
+		return shapes;
 	}
 	
 	/**
@@ -342,25 +439,19 @@ public final class OmeroRequests {
 				"\"new\":[%s],\"modified\":[]}}", id, roiJsonList.size(), String.join(", ", roiJsonList));
 		
 		// Create request
-		URL url = new URL(scheme, host, port, "/iviewer/persist_rois/");
-		var conn = url.openConnection();
-		conn.setRequestProperty("Referer", new URL(scheme, host, port, "/iviewer/?images=" + id).toString());
-		conn.setRequestProperty("X-CSRFToken", token);
-		conn.setDoOutput(true);
+		URI uri = OmeroTransports.createURI(scheme, host, port, "/iviewer/persist_rois/", null);
+		Map<String, String> headers = Map.of(
+				"Referer", OmeroTransports.createURI(scheme, host, port, "/iviewer/", "images=" + id).toString(),
+				"X-CSRFToken", token,
+				"Content-Type", "application/x-www-form-urlencoded");
 		
-		// Send JSON
-		try (OutputStream stream = conn.getOutputStream()) {
-			stream.write(request.getBytes("UTF-8"));	
-		}
+		// Send JSON & get response
+		byte[] bytes = OmeroTransports.get(uri).post(uri, headers, request.getBytes(StandardCharsets.UTF_8));
+		String response = new String(bytes, StandardCharsets.UTF_8);
+		if (response.toLowerCase().contains("error"))
+			throw new IOException(response);
 		
-		// Get response
-		try (var stream = conn.getInputStream()) {
-			String response = GeneralTools.readInputStreamAsString(stream);
-			if (response.toLowerCase().contains("error"))
-				throw new IOException(response);
-			
-			return true;
-		}
+		return true;
 	}
 
 	/**
@@ -375,9 +466,26 @@ public final class OmeroRequests {
 	 * @throws IOException
 	 */
 	public static BufferedImage requestThumbnail(String scheme, String host, int port, int id, int prefSize) throws IOException {
-		URL url = new URL(scheme, host, port, String.format(WEBGATEWAY_THUMBNAIL, id, prefSize));			
-		return ImageIO.read(url);
-		
+		URI uri = OmeroTransports.createURI(scheme, host, port, String.format(WEBGATEWAY_THUMBNAIL, id, prefSize));
+		return readImage(uri);
+
+	}
+	
+	/**
+	 * Request a thumbnail for the OMERO image of size {@code prefSize} with the specified {@code id}, 
+	 * through the transport of the specified client (with the {@link OmeroRequestPriority#OVERVIEW} priority).
+	 * 
+	 * @param client client of the server
+	 * @param id object's id
+	 * @param prefSize thumbnail's size
+	 * @return thumbnail
+	 * @throws IOException
+	 */
+	static BufferedImage requestThumbnail(OmeroWebClient client, int id, int prefSize) throws IOException {
+		var serverURI = client.getServerURI();
+		var uri = OmeroTransports.createURI(serverURI.getScheme(), serverURI.getHost(), serverURI.getPort(), String.format(WEBGATEWAY_THUMBNAIL, id, prefSize), null);
+		byte[] bytes = client.getTransport().getBytes(uri, OmeroRequestPriority.OVERVIEW);
+		return ImageIO.read(new ByteArrayInputStream(bytes));
 	}
 
 	/**
@@ -391,8 +499,8 @@ public final class OmeroRequests {
 	 * @throws IOException
 	 */
 	public static BufferedImage requestIcon(String scheme, String host, int port, String iconFilename) throws IOException {
-		URL url = new URL(scheme, host, port, String.format(WEBGATEWAY_ICON, iconFilename));
-		return ImageIO.read(url);
+		URI uri = OmeroTransports.createURI(scheme, host, port, String.format(WEBGATEWAY_ICON, iconFilename));
+		return readImage(uri);
 	}
 	
 	/**
@@ -408,8 +516,13 @@ public final class OmeroRequests {
 	 * @throws IOException
 	 */
 	public static BufferedImage requestImageIcon(String scheme, String host, int port, String iconFilename) throws IOException {
-		URL url = new URL(scheme, host, port, String.format(WEBGATEWAY_IMAGE_ICON, iconFilename));
-		return ImageIO.read(url);
+		URI uri = OmeroTransports.createURI(scheme, host, port, String.format(WEBGATEWAY_IMAGE_ICON, iconFilename));
+		return readImage(uri);
+	}
+	
+	private static BufferedImage readImage(URI uri) throws IOException {
+		byte[] bytes = OmeroTransports.get(uri).getBytes(uri);
+		return ImageIO.read(new ByteArrayInputStream(bytes));
 	}
 
 	/**
@@ -442,7 +555,7 @@ public final class OmeroRequests {
 				+ "&startdateinput="
 				+ "&enddateinput=&_=%d";
 		
-		URL url = new URL(
+		URI uri = OmeroTransports.createURI(
 				scheme, 					// Scheme
 				host, 						// Host
 				port, 						// Port
@@ -456,16 +569,8 @@ public final class OmeroRequests {
 				)
 		);
 		
-		try (InputStreamReader reader = new InputStreamReader(url.openStream())) {
-			String response = "";
-			var temp = reader.read();
-			while (temp != -1) {
-				response += (char)temp;
-				temp = reader.read();
-			}
-			
-			return response;			
-		}
+		byte[] bytes = OmeroTransports.get(uri).getBytes(uri);
+		return new String(bytes, StandardCharsets.UTF_8);
 	}
 
 	/**
@@ -475,9 +580,8 @@ public final class OmeroRequests {
 	 */
 	public static boolean isLoggedIn(URI uri) {
 		try {
-			var url = new URL(uri.getScheme(), uri.getHost(), uri.getPort(), "/api/v0/m/" + OmeroObjectType.PROJECT.toURLString());
-			var conn = (HttpURLConnection) url.openConnection();
-			return conn.getResponseCode() == 200;
+			var projectsURI = OmeroTransports.createURI(uri.getScheme(), uri.getHost(), uri.getPort(), "/api/v0/m/" + OmeroObjectType.PROJECT.toURLString(), null);
+			return OmeroTransports.get(uri).getStatusCode(projectsURI) == 200;
 		} catch (IOException ex) {
 			return false;
 		}
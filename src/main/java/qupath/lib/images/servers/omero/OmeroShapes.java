@@ -21,6 +21,7 @@
 
 package qupath.lib.images.servers.omero;
 
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.List;
@@ -30,14 +31,18 @@ import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
 
 import qupath.lib.geom.Point2;
 import qupath.lib.gui.prefs.PathPrefs;
@@ -59,6 +64,41 @@ import qupath.lib.roi.interfaces.ROI;
 class OmeroShapes {
 	
 	private final static Logger logger = LoggerFactory.getLogger(OmeroShapes.class);
+	
+	private final static Gson gson = new GsonBuilder().registerTypeAdapter(OmeroShape.class, new GsonShapeDeserializer()).setLenient().create();
+	
+	/**
+	 * Read the shapes of an OMERO ROI (as returned by the OMERO API) directly from a JSON response, 
+	 * skipping all the other fields of the ROI. Only the JSON of one shape is held in memory at a time.
+	 * Shapes that are not supported or cannot be deserialized are skipped.
+	 * @param reader
+	 * @return shapes of the ROI
+	 * @throws IOException if the response cannot be read
+	 */
+	static List<OmeroShape> readShapes(JsonReader reader) throws IOException {
+		List<OmeroShape> shapes = new ArrayList<>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (!reader.nextName().equals("shapes")) {
+				reader.skipValue();
+				continue;
+			}
+			reader.beginArray();
+			while (reader.hasNext()) {
+				JsonElement json = JsonParser.parseReader(reader);
+				try {
+					var shape = gson.fromJson(json, OmeroShape.class);
+					if (shape != null)
+						shapes.add(shape);
+				} catch (Exception e) {
+					logger.error("Error parsing shape: " + e.getLocalizedMessage(), e);
+				}
+			}
+			reader.endArray();
+		}
+		reader.endObject();
+		return shapes;
+	}
 
 	static class GsonShapeDeserializer implements JsonDeserializer<OmeroShape> {
 
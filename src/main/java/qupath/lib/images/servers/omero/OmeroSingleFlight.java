@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Coalesce concurrent identical requests, so that they share a single request to OMERO (and its result).
+ * <p>
+ * The first caller for a key performs the request; any caller asking for the same key before it
+ * completes receives the same result (or exception) instead of sending its own request.
+ * Nothing is cached once the request completes.
+ * <p>
+ * Because the result is shared, it must not be modified by the callers.
+ *
+ * @param <K> key identifying a request
+ * @param <V> result of a request
+ */
+final class OmeroSingleFlight<K, V> {
+
+	private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+	/**
+	 * Return the result of the request identified by {@code key}, calling {@code loader} only if
+	 * the same request is not already in flight.
+	 *
+	 * @param key
+	 * @param loader function performing the request
+	 * @return the result of the request
+	 * @throws IOException if the request fails
+	 */
+	V get(K key, Loader<V> loader) throws IOException {
+		while (true) {
+			var future = new CompletableFuture<V>();
+			var existing = inFlight.putIfAbsent(key, future);
+			if (existing == null)
+				return load(key, future, loader);
+
+			try {
+				return existing.get();
+			} catch (CancellationException ex) {
+				// The caller that sent the request no longer needs it, so try again
+				continue;
+			} catch (ExecutionException ex) {
+				var cause = ex.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException)cause;
+				if (cause instanceof Error)
+					throw (Error)cause;
+				throw new IOException(cause.getLocalizedMessage(), cause);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " + key);
+			}
+		}
+	}
+
+	/**
+	 * Return a future completed with the result of the request identified by {@code key},
+	 * calling {@code loader} only if the same request is not already in flight.
+	 * <p>
+	 * Cancelling the future returned to the first caller cancels the request (and the other callers
+	 * will send their own); cancelling the future returned to any other caller has no effect on the request.
+	 *
+	 * @param key
+	 * @param loader function sending the request
+	 * @return a future completed with the result of the request
+	 */
+	CompletableFuture<V> getAsync(K key, Supplier<CompletableFuture<V>> loader) {
+		var future = new CompletableFuture<V>();
+		var existing = inFlight.putIfAbsent(key, future);
+		if (existing != null) {
+			return existing.handle((value, ex) -> ex instanceof CancellationException ? getAsync(key, loader) : existing)
+					.thenCompose(f -> f);
+		}
+
+		CompletableFuture<V> loaded;
+		try {
+			loaded = loader.get();
+		} catch (RuntimeException ex) {
+			inFlight.remove(key, future);
+			future.completeExceptionally(ex);
+			throw ex;
+		}
+		loaded.whenComplete((value, ex) -> {
+			inFlight.remove(key, future);
+			if (ex == null)
+				future.complete(value);
+			else
+				future.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+		});
+		return loaded;
+	}
+
+	private V load(K key, CompletableFuture<V> future, Loader<V> loader) throws IOException {
+		try {
+			V value = loader.load();
+			future.complete(value);
+			return value;
+		} catch (InterruptedIOException ex) {
+			// Only the interrupted caller should give up, the others can send the request again
+			future.cancel(false);
+			throw ex;
+		} catch (IOException | RuntimeException | Error ex) {
+			future.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			inFlight.remove(key, future);
+		}
+	}
+
+
+	/**
+	 * Function performing a blocking request.
+	 *
+	 * @param <V> result of the request
+	 */
+	@FunctionalInterface
+	interface Loader<V> {
+
+		/**
+		 * Perform the request.
+		 * @return the result of the request
+		 * @throws IOException
+		 */
+		V load() throws IOException;
+	}
+}
@@ -0,0 +1,344 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writer for tiled, pyramidal BigTIFF files, following the OME-TIFF conventions: one IFD per plane (chained),
+ * each listing the IFDs of its lower resolutions as SubIFDs, and the OME-XML stored in the description of the first IFD.
+ * <p>
+ * Tiles are appended to the file as soon as they are written (in any order, from any thread), so that only
+ * their offsets are kept in memory; the IFDs are written when the writer is closed.
+ * Tiles must already be encoded with the compression given to the writer, and cover a whole tile
+ * (i.e. tiles at the right and bottom edges must be padded).
+ * JPEG tiles must be complete, baseline JPEG streams (i.e. without shared tables) and, for RGB images,
+ * be encoded as YCbCr with the chroma subsampled 2x2, as OMERO and ImageIO do by default.
+ */
+final class OmeroTiffWriter implements Closeable {
+
+	private final static int TYPE_ASCII = 2;
+	private final static int TYPE_SHORT = 3;
+	private final static int TYPE_LONG = 4;
+	private final static int TYPE_LONG8 = 16;
+	private final static int TYPE_IFD8 = 18;
+
+	private final static int TAG_NEW_SUBFILE_TYPE = 254;
+	private final static int TAG_IMAGE_WIDTH = 256;
+	private final static int TAG_IMAGE_LENGTH = 257;
+	private final static int TAG_BITS_PER_SAMPLE = 258;
+	private final static int TAG_COMPRESSION = 259;
+	private final static int TAG_PHOTOMETRIC = 262;
+	private final static int TAG_IMAGE_DESCRIPTION = 270;
+	private final static int TAG_SAMPLES_PER_PIXEL = 277;
+	private final static int TAG_PLANAR_CONFIGURATION = 284;
+	private final static int TAG_SOFTWARE = 305;
+	private final static int TAG_TILE_WIDTH = 322;
+	private final static int TAG_TILE_LENGTH = 323;
+	private final static int TAG_TILE_OFFSETS = 324;
+	private final static int TAG_TILE_BYTE_COUNTS = 325;
+	private final static int TAG_SUB_IFDS = 330;
+	private final static int TAG_SAMPLE_FORMAT = 339;
+	private final static int TAG_YCBCR_SUBSAMPLING = 530;
+
+	private final static int PHOTOMETRIC_MIN_IS_BLACK = 1;
+	private final static int PHOTOMETRIC_RGB = 2;
+	private final static int PHOTOMETRIC_YCBCR = 6;
+
+	/**
+	 * Compression value for uncompressed tiles
+	 */
+	final static int COMPRESSION_NONE = 1;
+
+	/**
+	 * Compression value for tiles compressed with Deflate (zlib)
+	 */
+	final static int COMPRESSION_DEFLATE = 8;
+
+	/**
+	 * Compression value for tiles compressed as JPEG (each tile being a complete JPEG stream)
+	 */
+	final static int COMPRESSION_JPEG = 7;
+
+	private final FileChannel channel;
+	private final int[][] levelSizes;
+	private final int nPlanes;
+	private final int samplesPerPixel;
+	private final int tileWidth;
+	private final int tileHeight;
+	private final int compression;
+	private final String description;
+
+	/**
+	 * Offsets and byte counts of the tiles, by plane, level and tile index
+	 */
+	private final long[][][] tileOffsets;
+	private final long[][][] tileByteCounts;
+
+	private long position;
+
+	/**
+	 * Create a writer.
+	 * @param path the file to write (replaced if it exists)
+	 * @param levelSizes width and height of each resolution level, starting from the full resolution
+	 * @param nPlanes number of planes, each written as a separate IFD (i.e. channels, z-slices and timepoints)
+	 * @param samplesPerPixel 3 for (interleaved) RGB, 1 for single-channel planes
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param compression compression of the tiles, as defined by the TIFF specification
+	 * @param description description of the first IFD (i.e. the OME-XML)
+	 * @throws IOException
+	 */
+	OmeroTiffWriter(Path path, int[][] levelSizes, int nPlanes, int samplesPerPixel, int tileWidth, int tileHeight, int compression, String description) throws IOException {
+		this.levelSizes = levelSizes;
+		this.nPlanes = nPlanes;
+		this.samplesPerPixel = samplesPerPixel;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.compression = compression;
+		this.description = description;
+		this.tileOffsets = new long[nPlanes][levelSizes.length][];
+		this.tileByteCounts = new long[nPlanes][levelSizes.length][];
+		for (int p = 0; p < nPlanes; p++) {
+			for (int l = 0; l < levelSizes.length; l++) {
+				tileOffsets[p][l] = new long[nTilesX(l) * nTilesY(l)];
+				tileByteCounts[p][l] = new long[nTilesX(l) * nTilesY(l)];
+			}
+		}
+
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		// BigTIFF header, the offset of the first IFD is set when closing
+		var header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte)'I').put((byte)'I').putShort((short)43).putShort((short)8).putShort((short)0).putLong(0L);
+		try {
+			position = write(header.flip(), 0);
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Return the number of tiles along the x-axis at the specified level.
+	 * @param level
+	 * @return number of columns of tiles
+	 */
+	int nTilesX(int level) {
+		return (levelSizes[level][0] + tileWidth - 1) / tileWidth;
+	}
+
+	/**
+	 * Return the number of tiles along the y-axis at the specified level.
+	 * @param level
+	 * @return number of rows of tiles
+	 */
+	int nTilesY(int level) {
+		return (levelSizes[level][1] + tileHeight - 1) / tileHeight;
+	}
+
+	/**
+	 * Append an encoded tile to the file.
+	 * @param plane
+	 * @param level
+	 * @param col
+	 * @param row
+	 * @param bytes the encoded tile
+	 * @throws IOException
+	 */
+	void writeTile(int plane, int level, int col, int row, byte[] bytes) throws IOException {
+		long offset;
+		synchronized (this) {
+			offset = position;
+			position += bytes.length + (bytes.length & 1);
+		}
+		// Keep offsets even, as required by the TIFF specification
+		var buffer = ByteBuffer.allocate(bytes.length + (bytes.length & 1)).put(bytes).flip();
+		write(buffer, offset);
+		int index = row * nTilesX(level) + col;
+		synchronized (this) {
+			tileOffsets[plane][level][index] = offset;
+			tileByteCounts[plane][level][index] = bytes.length;
+		}
+	}
+
+	/**
+	 * Close the file without writing the IFDs, e.g. if some tiles could not be written.
+	 * The file is then incomplete, and should be deleted.
+	 * Tiles must no longer be written (e.g. by other threads) when this method is called.
+	 * @throws IOException
+	 */
+	synchronized void abort() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Write the IFDs and close the file.
+	 * Tiles must no longer be written (e.g. by other threads) when this method is called.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			// Write the IFDs in reverse order, so that the offset of the next IFD is always known
+			long nextOffset = 0L;
+			for (int p = nPlanes - 1; p >= 0; p--) {
+				long[] subIFDs = new long[levelSizes.length - 1];
+				for (int l = 1; l < levelSizes.length; l++)
+					subIFDs[l - 1] = writeIFD(p, l, null, 0L);
+				nextOffset = writeIFD(p, 0, subIFDs, nextOffset);
+			}
+			var header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(nextOffset).flip();
+			write(header, 8);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private long writeIFD(int plane, int level, long[] subIFDs, long nextOffset) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		entries.add(Entry.ofLong(TAG_NEW_SUBFILE_TYPE, TYPE_LONG, level == 0 ? 0L : 1L));
+		entries.add(Entry.ofLong(TAG_IMAGE_WIDTH, TYPE_LONG, levelSizes[level][0]));
+		entries.add(Entry.ofLong(TAG_IMAGE_LENGTH, TYPE_LONG, levelSizes[level][1]));
+		entries.add(Entry.ofShorts(TAG_BITS_PER_SAMPLE, repeat(8, samplesPerPixel)));
+		entries.add(Entry.ofLong(TAG_COMPRESSION, TYPE_SHORT, compression));
+		entries.add(Entry.ofLong(TAG_PHOTOMETRIC, TYPE_SHORT, getPhotometricInterpretation()));
+		if (plane == 0 && level == 0 && description != null)
+			entries.add(Entry.ofAscii(TAG_IMAGE_DESCRIPTION, description));
+		entries.add(Entry.ofLong(TAG_SAMPLES_PER_PIXEL, TYPE_SHORT, samplesPerPixel));
+		entries.add(Entry.ofLong(TAG_PLANAR_CONFIGURATION, TYPE_SHORT, 1));
+		if (plane == 0 && level == 0)
+			entries.add(Entry.ofAscii(TAG_SOFTWARE, "QuPath OMERO extension"));
+		entries.add(Entry.ofLong(TAG_TILE_WIDTH, TYPE_LONG, tileWidth));
+		entries.add(Entry.ofLong(TAG_TILE_LENGTH, TYPE_LONG, tileHeight));
+		entries.add(Entry.ofLongs(TAG_TILE_OFFSETS, TYPE_LONG8, tileOffsets[plane][level]));
+		entries.add(Entry.ofLongs(TAG_TILE_BYTE_COUNTS, TYPE_LONG8, tileByteCounts[plane][level]));
+		if (subIFDs != null && subIFDs.length > 0)
+			entries.add(Entry.ofLongs(TAG_SUB_IFDS, TYPE_IFD8, subIFDs));
+		entries.add(Entry.ofShorts(TAG_SAMPLE_FORMAT, repeat(1, samplesPerPixel)));
+		if (getPhotometricInterpretation() == PHOTOMETRIC_YCBCR)
+			entries.add(Entry.ofShorts(TAG_YCBCR_SUBSAMPLING, repeat(2, 2)));
+
+		// Values that don't fit in an entry are written first
+		for (var entry: entries) {
+			if (entry.value.length > 8) {
+				entry.offset = position;
+				position += write(ByteBuffer.wrap(entry.value), position);
+				position += position & 1;
+			}
+		}
+
+		long ifdOffset = position;
+		var buffer = ByteBuffer.allocate(8 + entries.size() * 20 + 8).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putLong(entries.size());
+		for (var entry: entries) {
+			buffer.putShort((short)entry.tag).putShort((short)entry.type).putLong(entry.count);
+			if (entry.value.length > 8)
+				buffer.putLong(entry.offset);
+			else
+				buffer.put(entry.value).put(new byte[8 - entry.value.length]);
+		}
+		buffer.putLong(nextOffset);
+		position += write(buffer.flip(), position);
+		return ifdOffset;
+	}
+
+	/**
+	 * Return the photometric interpretation of the tiles, RGB JPEGs being stored as YCbCr.
+	 */
+	private int getPhotometricInterpretation() {
+		if (samplesPerPixel == 1)
+			return PHOTOMETRIC_MIN_IS_BLACK;
+		return compression == COMPRESSION_JPEG ? PHOTOMETRIC_YCBCR : PHOTOMETRIC_RGB;
+	}
+
+	private int write(ByteBuffer buffer, long offset) throws IOException {
+		int n = 0;
+		while (buffer.hasRemaining())
+			n += channel.write(buffer, offset + n);
+		return n;
+	}
+
+	private static int[] repeat(int value, int n) {
+		int[] values = new int[n];
+		Arrays.fill(values, value);
+		return values;
+	}
+
+
+	/**
+	 * IFD entry, with its value encoded in little-endian order.
+	 */
+	private static class Entry {
+
+		private final int tag;
+		private final int type;
+		private final long count;
+		private final byte[] value;
+		private long offset;
+
+		private Entry(int tag, int type, long count, byte[] value) {
+			this.tag = tag;
+			this.type = type;
+			this.count = count;
+			this.value = value;
+		}
+
+		private static Entry ofLong(int tag, int type, long value) {
+			return ofLongs(tag, type, new long[] {value});
+		}
+
+		private static Entry ofLongs(int tag, int type, long[] values) {
+			int size = type == TYPE_SHORT ? 2 : type == TYPE_LONG ? 4 : 8;
+			var buffer = ByteBuffer.allocate(values.length * size).order(ByteOrder.LITTLE_ENDIAN);
+			for (long v: values) {
+				if (size == 2)
+					buffer.putShort((short)v);
+				else if (size == 4)
+					buffer.putInt((int)v);
+				else
+					buffer.putLong(v);
+			}
+			return new Entry(tag, type, values.length, buffer.array());
+		}
+
+		private static Entry ofShorts(int tag, int[] values) {
+			var buffer = ByteBuffer.allocate(values.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+			for (int v: values)
+				buffer.putShort((short)v);
+			return new Entry(tag, TYPE_SHORT, values.length, buffer.array());
+		}
+
+		private static Entry ofAscii(int tag, String value) {
+			byte[] bytes = (value + "\0").getBytes(StandardCharsets.UTF_8);
+			return new Entry(tag, TYPE_ASCII, bytes.length, bytes);
+		}
+	}
+}
@@ -0,0 +1,485 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+
+/**
+ * Disk cache for the tiles received from OMERO.
+ * <p>
+ * Tiles are stored exactly as returned by OMERO (i.e. compressed bytes), one file per tile.
+ * When the size of the cache exceeds {@link OmeroWebPreferences#tileCacheMaxSizeMBProperty()},
+ * the least recently used tiles are deleted first.
+ * <p>
+ * The order in which tiles are used is kept in memory. It is stored as the last modified time of the files
+ * (at most every minute), so that it can be restored the next time the cache is loaded.
+ * The files already in the cache directory are listed in the background; until then, tiles are read directly from disk.
+ * <p>
+ * A single cache is shared by all the OMERO servers; its location is given by {@link OmeroWebPreferences#getTileCacheDirectory()}.
+ */
+final class OmeroTileCache {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroTileCache.class);
+
+	private final static String EXTENSION = ".tile";
+
+	/**
+	 * Interval between two updates of the last modified time of the tiles read
+	 */
+	private final static long PERSIST_INTERVAL_SECONDS = 60;
+
+	private final static ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+			ThreadTools.createThreadFactory("omero-tile-cache-", true));
+
+	private static OmeroTileCache instance;
+
+	private final Path directory;
+	private final LongSupplier maxBytes;
+
+	/**
+	 * Size (in bytes) of each cached file, by relative path, in least-recently-used order
+	 */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+	private long totalBytes = 0;
+
+	/**
+	 * True once the files already in the directory have been added to the entries
+	 */
+	private boolean loaded = false;
+	/**
+	 * Tiles removed before the entries are loaded, which must not be added back
+	 */
+	private final Set<String> removedWhileLoading = new HashSet<>();
+
+	/**
+	 * Time (in milliseconds) of the last access to each tile read since the last modified times were updated
+	 */
+	private Map<String, Long> accessTimes = new HashMap<>();
+
+	private final ScheduledFuture<?> persistTask;
+
+	/**
+	 * Create a disk tile cache, loading the tiles already in its directory in the background.
+	 * @param directory directory of the cache
+	 * @param maxBytes supplier of the maximum size of the cache, in bytes
+	 */
+	OmeroTileCache(Path directory, LongSupplier maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		executor.execute(this::loadEntries);
+		persistTask = executor.scheduleWithFixedDelay(this::persistAccessTimes, PERSIST_INTERVAL_SECONDS, PERSIST_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Return the disk tile cache, or {@code null} if caching tiles on disk is disabled.
+	 * @return cache
+	 */
+	static synchronized OmeroTileCache getInstance() {
+		if (!OmeroWebPreferences.tileCacheEnabledProperty().get())
+			return null;
+		var dir = OmeroWebPreferences.getTileCacheDirectory();
+		if (instance == null || !instance.directory.equals(dir)) {
+			if (instance != null)
+				instance.close();
+			instance = new OmeroTileCache(dir, () -> OmeroWebPreferences.tileCacheMaxSizeMBProperty().get() * 1024L * 1024L);
+		}
+		return instance;
+	}
+
+	/**
+	 * Return the cached bytes of the specified tile, or {@code null} if the tile is not in the cache.
+	 * @param key
+	 * @return bytes
+	 */
+	byte[] get(TileKey key) {
+		String relativePath = key.toRelativePath();
+		boolean known;
+		synchronized (this) {
+			// Use get() rather than containsKey() to update the access order
+			known = entries.get(relativePath) != null;
+			// Until the entries are loaded, the tile may be on disk anyway
+			if (!known && loaded)
+				return null;
+		}
+		try {
+			byte[] bytes = Files.readAllBytes(directory.resolve(relativePath));
+			synchronized (this) {
+				// Keep track of the last access, to be stored on disk for the next time the cache is loaded
+				accessTimes.put(relativePath, System.currentTimeMillis());
+				if (!known && entries.putIfAbsent(relativePath, (long)bytes.length) == null)
+					totalBytes += bytes.length;
+			}
+			return bytes;
+		} catch (NoSuchFileException ex) {
+			if (known) {
+				logger.debug("Cached tile {} was deleted", relativePath);
+				removeEntry(relativePath);
+			}
+		} catch (IOException ex) {
+			logger.warn("Unable to read cached tile {}: {}", relativePath, ex.getLocalizedMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Add the bytes of the specified tile to the cache.
+	 * @param key
+	 * @param bytes
+	 */
+	void put(TileKey key, byte[] bytes) {
+		String relativePath = key.toRelativePath();
+		Path path = directory.resolve(relativePath);
+		try {
+			Files.createDirectories(path.getParent());
+			// Write to a temporary file first, so that no other thread can read a partially-written tile
+			Path temp = Files.createTempFile(path.getParent(), null, ".tmp");
+			Files.write(temp, bytes);
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			logger.warn("Unable to cache tile {}: {}", relativePath, ex.getLocalizedMessage());
+			return;
+		}
+
+		synchronized (this) {
+			Long previous = entries.put(relativePath, (long)bytes.length);
+			totalBytes += bytes.length - (previous == null ? 0 : previous);
+		}
+		evict();
+	}
+
+	/**
+	 * Return true if the specified tile is in the cache, without updating its last access.
+	 * @param key
+	 * @return true if the tile is cached
+	 */
+	boolean contains(TileKey key) {
+		String relativePath = key.toRelativePath();
+		synchronized (this) {
+			if (entries.containsKey(relativePath))
+				return true;
+			if (loaded)
+				return false;
+		}
+		return Files.isRegularFile(directory.resolve(relativePath));
+	}
+
+	/**
+	 * Remove the specified tile from the cache (e.g. if its bytes cannot be decoded).
+	 * @param key
+	 */
+	void remove(TileKey key) {
+		String relativePath = key.toRelativePath();
+		removeEntry(relativePath);
+		try {
+			Files.deleteIfExists(directory.resolve(relativePath));
+		} catch (IOException ex) {
+			logger.warn("Unable to delete cached tile {}: {}", relativePath, ex.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Return the current size (in bytes) of the cache.
+	 * @return size in bytes
+	 */
+	synchronized long getSizeBytes() {
+		return totalBytes;
+	}
+
+	private synchronized void removeEntry(String relativePath) {
+		Long size = entries.remove(relativePath);
+		if (size != null)
+			totalBytes -= size;
+		if (!loaded)
+			removedWhileLoading.add(relativePath);
+	}
+
+	/**
+	 * Delete the least recently used tiles until the cache fits within its maximum size.
+	 */
+	private void evict() {
+		long maxBytes = this.maxBytes.getAsLong();
+		List<String> toDelete = new ArrayList<>();
+		synchronized (this) {
+			var iter = entries.entrySet().iterator();
+			while (totalBytes > maxBytes && iter.hasNext()) {
+				var entry = iter.next();
+				totalBytes -= entry.getValue();
+				toDelete.add(entry.getKey());
+				iter.remove();
+			}
+			if (!loaded)
+				removedWhileLoading.addAll(toDelete);
+		}
+		for (var relativePath: toDelete) {
+			try {
+				Files.deleteIfExists(directory.resolve(relativePath));
+			} catch (IOException ex) {
+				logger.warn("Unable to delete cached tile {}: {}", relativePath, ex.getLocalizedMessage());
+			}
+		}
+		if (!toDelete.isEmpty())
+			logger.debug("Evicted {} tile(s) from the disk cache", toDelete.size());
+	}
+
+	/**
+	 * Populate the entries from the files already in the cache directory, ordered by last access.
+	 * The directory is listed without holding the lock, and the tiles used in the meantime are kept as the most recent.
+	 */
+	private void loadEntries() {
+		Map<String, BasicFileAttributes> files = new HashMap<>();
+		try {
+			if (Files.isDirectory(directory)) {
+				Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						if (file.getFileName().toString().endsWith(EXTENSION))
+							files.put(directory.relativize(file).toString(), attrs);
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException ex) {
+						logger.debug("Unable to read attributes of {}: {}", file, ex.getLocalizedMessage());
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+		} catch (IOException ex) {
+			logger.warn("Unable to load OMERO tile cache from {}: {}", directory, ex.getLocalizedMessage());
+		}
+
+		List<String> sorted = new ArrayList<>(files.keySet());
+		sorted.sort(Comparator.comparing(p -> files.get(p).lastModifiedTime()));
+		synchronized (this) {
+			var recent = new LinkedHashMap<>(entries);
+			entries.clear();
+			for (var relativePath: sorted) {
+				if (!recent.containsKey(relativePath) && !removedWhileLoading.contains(relativePath))
+					entries.put(relativePath, files.get(relativePath).size());
+			}
+			entries.putAll(recent);
+			totalBytes = entries.values().stream().mapToLong(Long::longValue).sum();
+			removedWhileLoading.clear();
+			loaded = true;
+			logger.info("Loaded OMERO tile cache from {} ({} tiles, {} MB)", directory, entries.size(), totalBytes / (1024 * 1024));
+		}
+		evict();
+	}
+
+	/**
+	 * Set the last modified time of the tiles read since the last call, so that the order in which they were used
+	 * is kept the next time the cache is loaded.
+	 */
+	private void persistAccessTimes() {
+		Map<String, Long> times;
+		synchronized (this) {
+			if (accessTimes.isEmpty())
+				return;
+			times = accessTimes;
+			accessTimes = new HashMap<>();
+		}
+		for (var entry: times.entrySet()) {
+			try {
+				Files.setLastModifiedTime(directory.resolve(entry.getKey()), FileTime.fromMillis(entry.getValue()));
+			} catch (NoSuchFileException ex) {
+				// The tile was evicted in the meantime
+			} catch (IOException ex) {
+				logger.debug("Unable to update last access of cached tile {}: {}", entry.getKey(), ex.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Stop updating the last modified times periodically (e.g. when the cache is replaced), storing those pending.
+	 * The cache must not be used afterwards.
+	 */
+	void close() {
+		persistTask.cancel(false);
+		executor.execute(this::persistAccessTimes);
+	}
+
+	/**
+	 * Key identifying a tile rendered by an OMERO server.
+	 */
+	static class TileKey {
+
+		private final String server;
+		private final String imageId;
+		private final int level;
+		private final int x;
+		private final int y;
+		private final int width;
+		private final int height;
+		private final int z;
+		private final int t;
+		private final int channel;
+		private final String rendering;
+
+		/**
+		 * Create a key for a tile.
+		 * @param server host (and port) of the OMERO server
+		 * @param imageId OMERO ID of the image
+		 * @param level resolution level (as requested from OMERO)
+		 * @param x x-coordinate of the tile
+		 * @param y y-coordinate of the tile
+		 * @param width width of the tile
+		 * @param height height of the tile
+		 * @param z z-slice of the tile
+		 * @param t timepoint of the tile
+		 * @param rendering description of anything else affecting the rendered pixels (e.g. JPEG quality)
+		 */
+		TileKey(String server, String imageId, int level, int x, int y, int width, int height, int z, int t, String rendering) {
+			this(server, imageId, level, x, y, width, height, z, t, -1, rendering);
+		}
+
+		private TileKey(String server, String imageId, int level, int x, int y, int width, int height, int z, int t, int channel, String rendering) {
+			this.server = server;
+			this.imageId = imageId;
+			this.level = level;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.z = z;
+			this.t = t;
+			this.channel = channel;
+			this.rendering = rendering;
+		}
+
+		/**
+		 * Create a key for a different tile of the same image, plane and rendering.
+		 * @param x x-coordinate of the tile
+		 * @param y y-coordinate of the tile
+		 * @param width width of the tile
+		 * @param height height of the tile
+		 * @return tile key
+		 */
+		TileKey forTile(int x, int y, int width, int height) {
+			return new TileKey(server, imageId, level, x, y, width, height, z, t, channel, rendering);
+		}
+
+		/**
+		 * Create a key for the same tile, rendered as a single channel.
+		 * @param channel index of the channel (starting from 0)
+		 * @param rendering description of anything else affecting the rendered pixels (e.g. channel window and JPEG quality)
+		 * @return tile key
+		 */
+		TileKey forChannel(int channel, String rendering) {
+			return new TileKey(server, imageId, level, x, y, width, height, z, t, channel, rendering);
+		}
+
+		int getLevel() {
+			return level;
+		}
+
+		int getX() {
+			return x;
+		}
+
+		int getY() {
+			return y;
+		}
+
+		int getWidth() {
+			return width;
+		}
+
+		int getHeight() {
+			return height;
+		}
+
+		int getZ() {
+			return z;
+		}
+
+		int getT() {
+			return t;
+		}
+
+		/**
+		 * Return the index of the channel rendered, or -1 if all channels are rendered together (i.e. RGB).
+		 * @return channel index
+		 */
+		int getChannel() {
+			return channel;
+		}
+
+		/**
+		 * Return the path of the tile relative to the cache directory.
+		 * @return relative path
+		 */
+		String toRelativePath() {
+			String fileName = String.format("z%d-t%d-l%d-x%d-y%d-w%d-h%d-%s%s%s", z, t, level, x, y, width, height,
+					channel < 0 ? "" : "c" + channel + "-", rendering, EXTENSION);
+			return Path.of(server.replaceAll("[^a-zA-Z0-9.\\-]", "_"), imageId, fileName).toString();
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(server, imageId, level, x, y, width, height, z, t, channel, rendering);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof TileKey))
+				return false;
+			TileKey other = (TileKey)obj;
+			return level == other.level && x == other.x && y == other.y && width == other.width && height == other.height &&
+					z == other.z && t == other.t && channel == other.channel && server.equals(other.server) && imageId.equals(other.imageId) && rendering.equals(other.rendering);
+		}
+
+		@Override
+		public String toString() {
+			return toRelativePath();
+		}
+	}
+}
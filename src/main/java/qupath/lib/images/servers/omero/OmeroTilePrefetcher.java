@@ -0,0 +1,380 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.omero.OmeroTileCache.TileKey;
+
+/**
+ * Prefetcher requesting the tiles of an {@link OmeroWebImageServer} that are likely to be needed next.
+ * <p>
+ * The pan direction and zoom trend are inferred from the most recent tiles requested by QuPath.
+ * The tiles ahead of the pan direction (and those of the next resolution level when zooming)
+ * are then requested in the background, at low priority, and stored in the {@link OmeroMemoryTileCache} and {@link OmeroTileCache}.
+ * The pending prefetches of the current plane are cancelled as soon as the direction changes.
+ * <p>
+ * When the user moves through the z-slices or timepoints, the tiles of the viewport (i.e. those recently requested 
+ * at the previous plane) are also prefetched at the next planes in the same direction, as are the tiles requested 
+ * shortly afterwards, so that scrolling through a stack does not wait for each plane to be requested.
+ * <p>
+ * The bandwidth used for prefetching (by all servers) is limited by {@link OmeroWebPreferences#prefetchMaxBandwidthKBProperty()}.
+ */
+final class OmeroTilePrefetcher {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroTilePrefetcher.class);
+
+	/**
+	 * Number of tiles to prefetch ahead of each tile requested while panning
+	 */
+	private final static int LOOKAHEAD = 4;
+
+	/**
+	 * Number of recent tile requests used to infer the pan direction and zoom trend
+	 */
+	private final static int HISTORY_SIZE = 32;
+
+	/**
+	 * Tile requests older than this are ignored when inferring the pan direction and zoom trend
+	 */
+	private final static long HISTORY_MILLIS = 5000;
+
+	/**
+	 * Number of planes to prefetch ahead when moving through the z-slices or timepoints
+	 */
+	private final static int PLANE_LOOKAHEAD = 2;
+
+	/**
+	 * Time after a plane change during which the tiles requested are also prefetched at the next planes
+	 */
+	private final static long PLANE_MILLIS = 10000;
+
+	/**
+	 * Maximum number of tiles waiting to be prefetched for one server
+	 */
+	private final static int MAX_PENDING = 128;
+
+	private final static ExecutorService pool = Executors.newFixedThreadPool(2,
+			ThreadTools.createThreadFactory("omero-prefetch-", true, Thread.MIN_PRIORITY));
+
+	/**
+	 * Time at which the next prefetch request may be sent without exceeding the bandwidth budget
+	 */
+	private static long nextRequestNanos = System.nanoTime();
+
+	private final OmeroWebImageServer server;
+
+	private final Deque<TileRequested> history = new ArrayDeque<>();
+	private final Map<TileKey, Future<?>> pending = new HashMap<>();
+
+	private int lastZ = -1;
+	private int lastT = -1;
+	private int dx = 0;
+	private int dy = 0;
+	private int dLevel = 0;
+	private int dz = 0;
+	private int dt = 0;
+	private long lastPlaneChangeMillis = 0;
+
+	OmeroTilePrefetcher(OmeroWebImageServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Notify the prefetcher that a tile has been requested by QuPath.
+	 *
+	 * @param level the resolution level of the tile
+	 * @param col the column of the tile
+	 * @param row the row of the tile
+	 * @param z
+	 * @param t
+	 */
+	synchronized void tileRequested(int level, int col, int row, int z, int t) {
+		// Prefetched tiles are stored in the memory or disk tile cache
+		if (!OmeroWebPreferences.prefetchEnabledProperty().get() || !OmeroWebImageServer.canCacheTiles())
+			return;
+
+		long now = System.currentTimeMillis();
+
+		// A new plane means a new pan
+		if (z != lastZ || t != lastT) {
+			List<TileRequested> viewport = getViewport(now);
+			boolean firstPlane = lastZ < 0;
+			dz = firstPlane ? 0 : Integer.signum(z - lastZ);
+			dt = firstPlane ? 0 : Integer.signum(t - lastT);
+			lastZ = z;
+			lastT = t;
+			lastPlaneChangeMillis = now;
+			history.clear();
+			dx = 0;
+			dy = 0;
+			dLevel = 0;
+			// Keep the prefetches of the planes still ahead (which may be in flight)
+			cancel(key -> !isPlaneAhead(key.getZ(), key.getT()));
+			for (var tile: viewport)
+				schedulePlanes(tile.level, tile.col, tile.row);
+		}
+
+		history.addLast(new TileRequested(level, col, row, now));
+		while (history.size() > HISTORY_SIZE || history.peekFirst().timestamp < now - HISTORY_MILLIS)
+			history.removeFirst();
+
+		int previousDx = dx;
+		int previousDy = dy;
+		int previousDLevel = dLevel;
+		updateTrends(level);
+		if (dx != previousDx || dy != previousDy || dLevel != previousDLevel) {
+			logger.trace("Prefetch direction changed to ({}, {}), level trend {}", dx, dy, dLevel);
+			// The prefetches of other planes depend on the viewport, not on the pan direction
+			cancel(key -> key.getZ() == z && key.getT() == t);
+		}
+
+		if (dx != 0 || dy != 0) {
+			for (int k = 1; k <= LOOKAHEAD; k++)
+				schedule(level, col + k * dx, row + k * dy, z, t);
+		}
+
+		if (now - lastPlaneChangeMillis < PLANE_MILLIS)
+			schedulePlanes(level, col, row);
+
+		int nextLevel = level + dLevel;
+		if (dLevel != 0 && nextLevel >= 0 && nextLevel < server.nResolutions()) {
+			// Prefetch the tiles covering the same area at the next level
+			double scale = server.getDownsampleForResolution(level) / server.getDownsampleForResolution(nextLevel);
+			int colStart = (int)Math.floor(col * scale);
+			int colEnd = (int)Math.ceil((col + 1) * scale);
+			int rowStart = (int)Math.floor(row * scale);
+			int rowEnd = (int)Math.ceil((row + 1) * scale);
+			for (int r = rowStart; r < rowEnd; r++) {
+				for (int c = colStart; c < colEnd; c++)
+					schedule(nextLevel, c, r, z, t);
+			}
+		}
+	}
+
+	/**
+	 * Cancel all the pending prefetches, aborting those already sent.
+	 */
+	synchronized void cancel() {
+		cancel(key -> true);
+	}
+
+	private void cancel(Predicate<TileKey> predicate) {
+		var iter = pending.entrySet().iterator();
+		while (iter.hasNext()) {
+			var entry = iter.next();
+			if (predicate.test(entry.getKey())) {
+				// Remove the entry first, since cancelling the task removes it from the map too
+				iter.remove();
+				entry.getValue().cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Return the distinct tiles recently requested at the level of the most recent request (i.e. the current viewport).
+	 * @param now current time
+	 * @return the tiles of the viewport, most recent first
+	 */
+	private List<TileRequested> getViewport(long now) {
+		List<TileRequested> viewport = new ArrayList<>();
+		if (history.isEmpty())
+			return viewport;
+		int level = history.peekLast().level;
+		var iter = history.descendingIterator();
+		while (iter.hasNext()) {
+			var tile = iter.next();
+			if (tile.level == level && tile.timestamp >= now - HISTORY_MILLIS &&
+					viewport.stream().noneMatch(v -> v.col == tile.col && v.row == tile.row))
+				viewport.add(tile);
+		}
+		return viewport;
+	}
+
+	/**
+	 * Schedule the prefetch of a tile at the next planes, in the direction of the last plane change.
+	 */
+	private void schedulePlanes(int level, int col, int row) {
+		if (dz == 0 && dt == 0)
+			return;
+		for (int k = 1; k <= PLANE_LOOKAHEAD; k++) {
+			int z = lastZ + k * dz;
+			int t = lastT + k * dt;
+			if (z < 0 || z >= server.nZSlices() || t < 0 || t >= server.nTimepoints())
+				break;
+			schedule(level, col, row, z, t);
+		}
+	}
+
+	/**
+	 * Return true if the specified plane is one of those prefetched ahead of the current plane.
+	 */
+	private boolean isPlaneAhead(int z, int t) {
+		for (int k = 1; k <= PLANE_LOOKAHEAD; k++) {
+			if (z == lastZ + k * dz && t == lastT + k * dt)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Update the pan direction (by comparing the center of the older and newer tiles requested at the current level)
+	 * and the zoom trend (by comparing their mean level).
+	 * @param level the current level
+	 */
+	private void updateTrends(int level) {
+		List<TileRequested> requests = new ArrayList<>(history);
+		int half = requests.size() / 2;
+		if (half == 0) {
+			dx = 0;
+			dy = 0;
+			dLevel = 0;
+			return;
+		}
+
+		// Sum of levels, count, and sum of columns, rows & count for the current level
+		double[] older = new double[5];
+		double[] newer = new double[5];
+		for (int i = 0; i < requests.size(); i++) {
+			var request = requests.get(i);
+			double[] stats = i < requests.size() - half ? older : newer;
+			stats[0] += request.level;
+			stats[1]++;
+			if (request.level == level) {
+				stats[2] += request.col;
+				stats[3] += request.row;
+				stats[4]++;
+			}
+		}
+		dLevel = sign(newer[0] / newer[1] - older[0] / older[1]);
+
+		if (dLevel != 0 || older[4] == 0 || newer[4] == 0) {
+			dx = 0;
+			dy = 0;
+		} else {
+			dx = sign(newer[2] / newer[4] - older[2] / older[4]);
+			dy = sign(newer[3] / newer[4] - older[3] / older[4]);
+		}
+	}
+
+	/**
+	 * Return the direction of a change, ignoring changes smaller than half a tile (or level).
+	 */
+	private static int sign(double delta) {
+		if (delta >= 0.5)
+			return 1;
+		if (delta <= -0.5)
+			return -1;
+		return 0;
+	}
+
+	private void schedule(int level, int col, int row, int z, int t) {
+		var resolution = server.getMetadata().getLevel(level);
+		int tileWidth = server.getPreferredTileWidth();
+		int tileHeight = server.getPreferredTileHeight();
+		if (col < 0 || row < 0 || (long)col * tileWidth >= resolution.getWidth() || (long)row * tileHeight >= resolution.getHeight())
+			return;
+
+		TileKey key = server.createTileKey(level, col, row, z, t);
+		if (pending.containsKey(key) || pending.size() >= MAX_PENDING)
+			return;
+		if (!OmeroWebImageServer.canCacheTiles() || OmeroWebImageServer.isTileCached(key))
+			return;
+
+		// Only remove the entry of this task: it might have been cancelled and replaced by a new prefetch of the same tile
+		var future = new FutureTask<Void>(() -> prefetch(key), null) {
+			@Override
+			protected void done() {
+				synchronized (OmeroTilePrefetcher.this) {
+					pending.remove(key, this);
+				}
+			}
+		};
+		pending.put(key, future);
+		pool.execute(future);
+	}
+
+	private void prefetch(TileKey key) {
+		try {
+			awaitBandwidth();
+			long bytes = server.prefetchTile(key);
+			consumeBandwidth(bytes);
+			logger.trace("Prefetched tile {} ({} bytes)", key, bytes);
+		} catch (InterruptedException | InterruptedIOException ex) {
+			logger.trace("Prefetching tile {} cancelled", key);
+		} catch (IOException ex) {
+			logger.debug("Unable to prefetch tile {}: {}", key, ex.getLocalizedMessage());
+		}
+	}
+
+	private static void awaitBandwidth() throws InterruptedException {
+		long waitNanos;
+		synchronized (OmeroTilePrefetcher.class) {
+			waitNanos = nextRequestNanos - System.nanoTime();
+		}
+		if (waitNanos > 0)
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+	}
+
+	private static synchronized void consumeBandwidth(long bytes) {
+		long bytesPerSecond = OmeroWebPreferences.prefetchMaxBandwidthKBProperty().get() * 1024L;
+		if (bytesPerSecond <= 0)
+			return;
+		long now = System.nanoTime();
+		if (nextRequestNanos - now < 0)
+			nextRequestNanos = now;
+		nextRequestNanos += bytes * 1_000_000_000L / bytesPerSecond;
+	}
+
+
+	private static class TileRequested {
+
+		private final int level;
+		private final int col;
+		private final int row;
+		private final long timestamp;
+
+		private TileRequested(int level, int col, int row, long timestamp) {
+			this.level = level;
+			this.col = col;
+			this.row = row;
+			this.timestamp = timestamp;
+		}
+	}
+}
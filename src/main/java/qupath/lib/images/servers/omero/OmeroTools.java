@@ -23,18 +23,22 @@ package qupath.lib.images.servers.omero;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -45,6 +49,9 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
 import javafx.application.Platform;
 import qupath.lib.common.ThreadTools;
@@ -53,6 +60,7 @@ import qupath.lib.images.servers.omero.OmeroObjects.OmeroObject;
 import qupath.lib.images.servers.omero.OmeroObjects.OmeroObjectType;
 import qupath.lib.images.servers.omero.OmeroObjects.OrphanedFolder;
 import qupath.lib.images.servers.omero.OmeroObjects.Server;
+import qupath.lib.images.servers.omero.OmeroTransport.StatusException;
 import qupath.lib.io.GsonTools;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathCellObject;
@@ -72,6 +80,11 @@ public final class OmeroTools {
 	
 	private final static Logger logger = LoggerFactory.getLogger(OmeroTools.class);
 	
+	/**
+	 * Maximum number of pages of a paginated OMERO request that are read concurrently
+	 */
+	private final static int MAX_CONCURRENT_PAGES = 4;
+	
 	/**
 	 * Patterns to parse image URIs (for IDs)
 	 */
@@ -133,20 +146,9 @@ public final class OmeroTools {
 		else if (parent.getType() == OmeroObjectType.DATASET)
 			type = OmeroObjectType.IMAGE;
 
-		var gson = new GsonBuilder().registerTypeAdapter(OmeroObject.class, new OmeroObjects.GsonOmeroObjectDeserializer()).setLenient().create();
-		List<JsonElement> data = OmeroRequests.requestObjectList(uri.getScheme(), uri.getHost(),uri.getPort(), type, parent);
-		for (var d: data) {
-			gson = new GsonBuilder().registerTypeAdapter(OmeroObject.class, new OmeroObjects.GsonOmeroObjectDeserializer()).setLenient().create();
-			try {
-				var omeroObj = gson.fromJson(d, OmeroObject.class);
-				if (omeroObj != null) {
-					omeroObj.setParent(parent);
-					list.add(omeroObj);					
-				}
-			} catch (Exception e) {
-				logger.error("Error parsing OMERO object: " + e.getLocalizedMessage(), e);
-			}
-		}
+		list = OmeroRequests.requestObjectList(uri.getScheme(), uri.getHost(), uri.getPort(), type, parent.getType(), parent.getId(), OmeroObjects::readOmeroObject);
+		for (var omeroObj: list)
+			omeroObj.setParent(parent);
 		
 		return list;
 	}
@@ -267,21 +269,10 @@ public final class OmeroTools {
 	 * @throws IOException 
 	 */
 	public static List<OmeroObject> readOrphanedDatasets(URI uri, Server server) throws IOException {
-		List<OmeroObject> list = new ArrayList<>();
-		var gson = new GsonBuilder().registerTypeAdapter(OmeroObject.class, new OmeroObjects.GsonOmeroObjectDeserializer()).setLenient().create();
-	
-		var orphanedDatasets = OmeroRequests.requestObjectList(uri.getScheme(), uri.getHost(), uri.getPort(), OmeroObjectType.DATASET, true);
-		for (var d: orphanedDatasets) {
-			try {
-				OmeroObject omeroObj = gson.fromJson(d, OmeroObject.class);
-				if (omeroObj != null) {
-					omeroObj.setParent(server);
-					list.add(omeroObj);					
-				}
-			} catch (Exception e) {
-				logger.error("Error parsing OMERO object: {}", e.getLocalizedMessage());
-			}
-		}
+		var list = OmeroRequests.requestObjectList(uri.getScheme(), uri.getHost(), uri.getPort(), 
+				OmeroObjectType.DATASET, OmeroObjectType.SERVER, -1, OmeroObjects::readOmeroObject);
+		for (var omeroObj: list)
+			omeroObj.setParent(server);
 		return list;
 	}
 	
@@ -300,12 +291,7 @@ public final class OmeroTools {
 	 * @throws IOException
      */
     public static OmeroObject readOmeroObject(String scheme, String host, int port, int id, OmeroObjectType type) throws IOException {
-    	// Request json
-    	var map = OmeroRequests.requestObjectInfo(scheme, host, port, id, type);
-        
-        // Create OmeroObject
-        var gson = new GsonBuilder().registerTypeAdapter(OmeroObject.class, new OmeroObjects.GsonOmeroObjectDeserializer()).setLenient().create();
-        return gson.fromJson(map.get("data").getAsJsonObject(), OmeroObject.class);
+    	return OmeroRequests.requestOmeroObject(scheme, host, port, id, type);
     }
     
     /**
@@ -459,7 +445,7 @@ public final class OmeroTools {
 	 */
 	public static BufferedImage getThumbnail(OmeroWebImageServer server, int imageId, int prefSize) {
 		try {
-			return OmeroRequests.requestThumbnail(server.getScheme(), server.getHost(), server.getPort(), imageId, prefSize);			
+			return OmeroRequests.requestThumbnail(server.getWebclient(), imageId, prefSize);
 		} catch (IOException ex) {
 			logger.warn("Error requesting the thumbnail: {}", ex.getLocalizedMessage());
 			return null;
@@ -476,6 +462,9 @@ public final class OmeroTools {
 	 */
 	public static BufferedImage getThumbnail(URI uri, int id, int prefSize) {
 		try {
+			var client = OmeroWebClients.getClientFromServerURI(uri);
+			if (client != null)
+				return OmeroRequests.requestThumbnail(client, id, prefSize);
 			return OmeroRequests.requestThumbnail(uri.getScheme(), uri.getHost(), uri.getPort(), id, prefSize);
 		} catch (IOException ex) {
 			logger.warn("Error requesting the thumbnail: {}", ex.getLocalizedMessage());
@@ -535,41 +524,147 @@ public final class OmeroTools {
      * (see <a href="https://docs.openmicroscopy.org/omero/5.6.1/developers/json-api.html#pagination">OMERO API docs</a>).
      * Using this helper method ensures that all the requested data is retrieved.
      * 
-     * @param url
+     * @param uri
      * @return list of {@code Json Element}s
      * @throws IOException
+     * @see #readPaginated(URI, JsonItemReader)
      */
-	// TODO: Consider using parallel/asynchronous requests
-    static List<JsonElement> readPaginated(URL url) throws IOException {
-    	List<JsonElement> jsonList = new ArrayList<>();
-        String symbol = (url.getQuery() != null && !url.getQuery().isEmpty()) ? "&" : "?";
-
-        // Open connection
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        int response = connection.getResponseCode();
-        
-        // Catch bad response
-        if (response != 200)
-        	return jsonList;
+    static List<JsonElement> readPaginated(URI uri) throws IOException {
+    	return readPaginated(uri, JsonParser::parseReader);
+    }
+    
+    /**
+     * Read all the items of a paginated OMERO request, decoding each item directly from the response 
+     * with the specified reader (so that the whole response is never held in memory as JSON). 
+     * Items that are decoded as {@code null} are skipped.
+     * <p>
+     * Once the first page gives the total number of items, the other pages are requested concurrently
+     * (up to {@value #MAX_CONCURRENT_PAGES} at a time) with the priority of the current thread, 
+     * and their items are returned in order.
+     * 
+     * @param <T> type of the items
+     * @param uri
+     * @param itemReader reader for a single item of the list
+     * @return list of items
+     * @throws IOException
+     */
+    static <T> List<T> readPaginated(URI uri, JsonItemReader<T> itemReader) throws IOException {
+    	List<T> list = new ArrayList<>();
+        String symbol = (uri.getQuery() != null && !uri.getQuery().isEmpty()) ? "&" : "?";
+        var transport = OmeroTransports.get(uri);
 
-        JsonObject map;
-        try (InputStreamReader reader = new InputStreamReader(connection.getInputStream())) {
-        	map = GsonTools.getInstance().fromJson(reader, JsonObject.class);
+        InputStream stream;
+        try {
+        	stream = transport.getStream(uri);
+        } catch (StatusException ex) {
+        	// Catch bad response
+        	logger.debug(ex.getLocalizedMessage());
+        	return list;
         }
 
-        map.get("data").getAsJsonArray().forEach(jsonList::add);
-    	JsonObject meta = map.getAsJsonObject("meta");
-        int offset = 0;
-        int totalCount = meta.get("totalCount").getAsInt();
-        int limit = meta.get("limit").getAsInt();
-        while (offset + limit < totalCount) {
-            offset += limit;
-            URL nextURL = new URL(url + symbol + "offset=" + offset);
-            InputStreamReader newPageReader = new InputStreamReader(nextURL.openStream());
-            JsonObject newPageMap = GsonTools.getInstance().fromJson(newPageReader, JsonObject.class);
-            newPageMap.get("data").getAsJsonArray().forEach(jsonList::add);
-        }
-        return jsonList;
+        int[] meta = readPage(stream, itemReader, list);
+        int totalCount = meta[0];
+        int limit = meta[1];
+        if (limit <= 0 || limit >= totalCount)
+        	return list;
+        
+        List<URI> pageURIs = new ArrayList<>();
+        for (int offset = limit; offset < totalCount; offset += limit)
+        	pageURIs.add(URI.create(uri + symbol + "offset=" + offset));
+        long startTime = System.currentTimeMillis();
+        for (var page: readPages(transport, pageURIs, itemReader))
+        	list.addAll(page);
+        logger.debug("Read {} items from {} pages of {} in {} ms", list.size(), pageURIs.size() + 1, uri, System.currentTimeMillis() - startTime);
+        return list;
+    }
+    
+    /**
+     * Read the specified pages of a paginated OMERO request concurrently, on the executor of the transport.
+     * At most {@value #MAX_CONCURRENT_PAGES} pages are read at a time, each worker reading the next page once done.
+     * @param transport
+     * @param uris the URIs of the pages
+     * @param itemReader
+     * @return the items of each page, in the same order as the URIs
+     * @throws IOException if any page cannot be read (the other requests are then cancelled)
+     */
+    private static <T> List<List<T>> readPages(OmeroTransport transport, List<URI> uris, JsonItemReader<T> itemReader) throws IOException {
+    	if (uris.size() == 1)
+    		return Collections.singletonList(readPage(transport, uris.get(0), itemReader));
+    	
+    	var priority = OmeroRequestPriority.current();
+    	List<List<T>> pages = new ArrayList<>(Collections.nCopies(uris.size(), null));
+    	var nextPage = new AtomicInteger();
+    	List<FutureTask<Void>> workers = new ArrayList<>();
+    	for (int w = 0; w < Math.min(uris.size(), MAX_CONCURRENT_PAGES); w++) {
+    		var worker = new FutureTask<Void>(() -> OmeroRequestPriority.callWith(priority, () -> {
+    			int i;
+    			while ((i = nextPage.getAndIncrement()) < uris.size())
+    				pages.set(i, readPage(transport, uris.get(i), itemReader));
+    			return null;
+    		}));
+    		workers.add(worker);
+    		transport.getExecutor().execute(worker);
+    	}
+    	try {
+    		for (var worker: workers)
+    			OmeroTransport.await(uris.get(0), worker);
+    		return pages;
+    	} finally {
+    		// Stop the other workers if a page failed (or the calling thread was interrupted)
+    		nextPage.set(uris.size());
+    		for (var worker: workers)
+    			worker.cancel(true);
+    	}
+    }
+    
+    private static <T> List<T> readPage(OmeroTransport transport, URI uri, JsonItemReader<T> itemReader) throws IOException {
+    	List<T> page = new ArrayList<>();
+    	readPage(transport.getStream(uri), itemReader, page);
+    	return page;
+    }
+    
+    /**
+     * Read a page of a paginated OMERO response, adding its items to the specified list.
+     * @param stream the response
+     * @param itemReader
+     * @param list
+     * @return the total count of items and the maximum number of items per page
+     * @throws IOException
+     */
+    private static <T> int[] readPage(InputStream stream, JsonItemReader<T> itemReader, List<T> list) throws IOException {
+    	int[] meta = new int[2];
+    	try (JsonReader reader = new JsonReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+    		reader.beginObject();
+    		while (reader.hasNext()) {
+    			String name = reader.nextName();
+    			if (name.equals("data")) {
+    				reader.beginArray();
+    				while (reader.hasNext()) {
+    					T item = itemReader.read(reader);
+    					if (item != null)
+    						list.add(item);
+    				}
+    				reader.endArray();
+    			} else if (name.equals("meta")) {
+    				reader.beginObject();
+    				while (reader.hasNext()) {
+    					String metaName = reader.nextName();
+    					if (metaName.equals("totalCount"))
+    						meta[0] = reader.nextInt();
+    					else if (metaName.equals("limit"))
+    						meta[1] = reader.nextInt();
+    					else
+    						reader.skipValue();
+    				}
+    				reader.endObject();
+    			} else
+    				reader.skipValue();
+    		}
+    		reader.endObject();
+    	} catch (IllegalStateException | JsonParseException ex) {
+    		throw new IOException("Unable to parse OMERO response: " + ex.getLocalizedMessage(), ex);
+    	}
+    	return meta;
     }
    
     
@@ -671,10 +766,8 @@ public final class OmeroTools {
         	break;
         case PROJECT:
         	for (String id: ids) {
-        		var data = OmeroRequests.requestObjectList(uri.getScheme(), uri.getHost(), uri.getPort(), OmeroObjectType.DATASET, Integer.parseInt(id));
-    			for (int i = 0; i < data.size(); i++) {
-        			tempIds.add(data.get(i).getAsJsonObject().get("@id").getAsString());
-        		}
+        		tempIds.addAll(OmeroRequests.requestObjectList(uri.getScheme(), uri.getHost(), uri.getPort(), 
+        				OmeroObjectType.DATASET, OmeroObjectType.PROJECT, Integer.parseInt(id), OmeroTools::readObjectId));
         	}
         	ids =  new ArrayList<>(tempIds);
         	tempIds.clear();
@@ -682,10 +775,8 @@ public final class OmeroTools {
         	
         case DATASET:
         	for (String id: ids) {
-        		var data = OmeroRequests.requestObjectList(uri.getScheme(), uri.getHost(), uri.getPort(), OmeroObjectType.IMAGE, Integer.parseInt(id));
-    			for (int i = 0; i < data.size(); i++) {
-    				tempIds.add(data.get(i).getAsJsonObject().get("@id").getAsString());
-    			}	
+        		tempIds.addAll(OmeroRequests.requestObjectList(uri.getScheme(), uri.getHost(), uri.getPort(), 
+        				OmeroObjectType.IMAGE, OmeroObjectType.DATASET, Integer.parseInt(id), OmeroTools::readObjectId));
         	}
         	ids = new ArrayList<>(tempIds);
         	tempIds.clear();
@@ -705,4 +796,42 @@ public final class OmeroTools {
         
 		return URI.create(sb.toString());
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Read the ID of an OMERO object (as a String), skipping all its other fields.
+	 * @param reader
+	 * @return id
+	 * @throws IOException
+	 */
+	private static String readObjectId(JsonReader reader) throws IOException {
+		String id = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (reader.nextName().equals("@id"))
+				id = reader.nextString();
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		return id;
+	}
+	
+	
+	/**
+	 * Reader for a single item of a JSON response, which decodes the item directly from the response.
+	 *
+	 * @param <T> type of the item
+	 * @see OmeroTools#readPaginated(URI, JsonItemReader)
+	 */
+	@FunctionalInterface
+	interface JsonItemReader<T> {
+		
+		/**
+		 * Read the next value of the reader (and only this value).
+		 * @param reader
+		 * @return the item, or {@code null} if it should be skipped
+		 * @throws IOException
+		 */
+		T read(JsonReader reader) throws IOException;
+	}
+}
@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * Transport through which all the requests sent to one OMERO server go.
+ * <p>
+ * The default implementation is {@link OmeroHttpTransport}. Other implementations (e.g. to record or replay requests,
+ * or to simulate a slow server) can be used by setting the factory of {@link OmeroTransports}.
+ *
+ * @see OmeroTransports#get(URI)
+ */
+interface OmeroTransport extends AutoCloseable {
+
+	/**
+	 * Send a GET request to the specified {@code uri} asynchronously.
+	 * <p>
+	 * Cancelling the returned future aborts the request if it is still in flight.
+	 *
+	 * @param uri
+	 * @param priority
+	 * @return a future completed with the response body, or exceptionally with an {@link IOException}
+	 *         if the request fails or the server does not respond with {@code 200 OK}
+	 */
+	CompletableFuture<byte[]> getBytesAsync(URI uri, OmeroRequestPriority priority);
+
+	/**
+	 * Send a GET request to the specified {@code uri} and return a stream of the body of the response,
+	 * so that large responses can be read without being held in memory. The stream must be closed by the caller.
+	 *
+	 * @param uri
+	 * @return response body
+	 * @throws IOException if the request fails or the server does not respond with {@code 200 OK}
+	 */
+	InputStream getStream(URI uri) throws IOException;
+
+	/**
+	 * Send a GET request to the specified {@code uri} and return the status code of the response (ignoring its body),
+	 * e.g. to check whether an object can be accessed.
+	 *
+	 * @param uri
+	 * @return status code
+	 * @throws IOException if the request fails
+	 */
+	int getStatusCode(URI uri) throws IOException;
+
+	/**
+	 * Send a POST request to the specified {@code uri} and return the body of the response.
+	 * POST requests are never retried.
+	 *
+	 * @param uri
+	 * @param headers headers of the request (e.g. {@code X-CSRFToken})
+	 * @param body body of the request
+	 * @return response body
+	 * @throws IOException if the request fails or the server does not respond with {@code 200 OK}
+	 */
+	byte[] post(URI uri, Map<String, String> headers, byte[] body) throws IOException;
+
+	/**
+	 * Return the executor used to handle the responses, which can also be used for other
+	 * (short) tasks related to the requests of this transport.
+	 * @return executor
+	 */
+	Executor getExecutor();
+
+	/**
+	 * Release the resources of this transport (e.g. its threads), aborting any request still in flight.
+	 * The transport must not be used afterwards.
+	 */
+	@Override
+	void close();
+
+	/**
+	 * Send a GET request to the specified {@code uri} asynchronously, with the priority of the current thread.
+	 *
+	 * @param uri
+	 * @return a future completed with the response body
+	 * @see #getBytesAsync(URI, OmeroRequestPriority)
+	 */
+	default CompletableFuture<byte[]> getBytesAsync(URI uri) {
+		return getBytesAsync(uri, OmeroRequestPriority.current());
+	}
+
+	/**
+	 * Send a GET request to the specified {@code uri} and return the body of the response.
+	 *
+	 * @param uri
+	 * @return response body
+	 * @throws IOException if the request fails or the server does not respond with {@code 200 OK}
+	 * @see #getBytes(URI, OmeroRequestPriority)
+	 */
+	default byte[] getBytes(URI uri) throws IOException {
+		return getBytes(uri, OmeroRequestPriority.current());
+	}
+
+	/**
+	 * Send a GET request with the specified priority to the specified {@code uri} and return the body of the response.
+	 *
+	 * @param uri
+	 * @param priority
+	 * @return response body
+	 * @throws IOException if the request fails or the server does not respond with {@code 200 OK}
+	 * @see #getBytesAsync(URI, OmeroRequestPriority)
+	 */
+	default byte[] getBytes(URI uri, OmeroRequestPriority priority) throws IOException {
+		return await(uri, getBytesAsync(uri, priority));
+	}
+
+	/**
+	 * Wait for the result of a request, cancelling it if the current thread is interrupted.
+	 * @param <T> type of the result
+	 * @param uri uri of the request
+	 * @param future the pending request
+	 * @return result
+	 * @throws IOException if the request failed
+	 */
+	static <T> T await(URI uri, Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while requesting " + uri);
+		} catch (ExecutionException ex) {
+			var cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+
+	/**
+	 * Exception thrown when the server does not respond with {@code 200 OK}.
+	 */
+	static class StatusException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int statusCode;
+
+		StatusException(URI uri, int statusCode) {
+			super(String.format("Connection to %s failed: Error %d.", uri.getHost(), statusCode));
+			this.statusCode = statusCode;
+		}
+
+		/**
+		 * Return the status code of the response.
+		 * @return status code
+		 */
+		int getStatusCode() {
+			return statusCode;
+		}
+	}
+}
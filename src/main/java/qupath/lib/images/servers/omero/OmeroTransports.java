@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Keeps track of the transport of each OMERO server, so that all the requests sent to a server
+ * (whether through its {@link OmeroWebClient} or the static methods of {@link OmeroRequests}) share the same connections
+ * and the same limit of concurrent requests.
+ */
+final class OmeroTransports {
+
+	/**
+	 * Transports by server (scheme, host and port)
+	 */
+	private final static Map<String, OmeroTransport> transports = new HashMap<>();
+
+	private static Function<URI, OmeroTransport> factory = uri -> new OmeroHttpTransport(uri.getHost());
+
+	/**
+	 * Suppress default constructor for non-instantiability
+	 */
+	private OmeroTransports() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Return the transport of the server of the specified {@code uri}, creating it if needed.
+	 * @param uri any URI of the server (e.g. of an image)
+	 * @return transport
+	 */
+	static synchronized OmeroTransport get(URI uri) {
+		return transports.computeIfAbsent(getKey(uri), s -> factory.apply(uri));
+	}
+
+	private static String getKey(URI uri) {
+		String server = uri.getScheme() + "://" + uri.getHost() + (uri.getPort() < 0 ? "" : ":" + uri.getPort());
+		return server.toLowerCase();
+	}
+
+	/**
+	 * Set the factory used to create the transport of each server (by default, an {@link OmeroHttpTransport}).
+	 * The transports created previously are closed.
+	 * @param factory function creating a transport from a URI of its server
+	 */
+	static synchronized void setFactory(Function<URI, OmeroTransport> factory) {
+		OmeroTransports.factory = Objects.requireNonNull(factory);
+		transports.values().forEach(OmeroTransport::close);
+		transports.clear();
+	}
+
+	/**
+	 * Close the transport of the server of the specified {@code uri} (if any), e.g. when logging out.
+	 * A new transport is created if the server is requested again.
+	 * @param uri any URI of the server
+	 */
+	static synchronized void close(URI uri) {
+		var transport = transports.remove(getKey(uri));
+		if (transport != null)
+			transport.close();
+	}
+
+	/**
+	 * Create a URI for the specified server and path, quoting any character of
+	 * the query that is not allowed in a URI (e.g. '{@code |}' or '{@code "}').
+	 *
+	 * @param scheme
+	 * @param host
+	 * @param port
+	 * @param path
+	 * @param query
+	 * @return uri
+	 * @throws IOException
+	 */
+	static URI createURI(String scheme, String host, int port, String path, String query) throws IOException {
+		try {
+			return new URI(scheme, null, host, port, path, query, null);
+		} catch (URISyntaxException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	/**
+	 * Create a URI for the specified server and file (i.e. a path optionally followed by '{@code ?}' and a query),
+	 * quoting any character of the query that is not allowed in a URI.
+	 *
+	 * @param scheme
+	 * @param host
+	 * @param port
+	 * @param file
+	 * @return uri
+	 * @throws IOException
+	 * @see #createURI(String, String, int, String, String)
+	 */
+	static URI createURI(String scheme, String host, int port, String file) throws IOException {
+		int ind = file.indexOf('?');
+		if (ind < 0)
+			return createURI(scheme, host, port, file, null);
+		return createURI(scheme, host, port, file.substring(0, ind), file.substring(ind + 1));
+	}
+}
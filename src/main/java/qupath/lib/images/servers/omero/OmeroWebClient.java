@@ -22,15 +22,12 @@
 package qupath.lib.images.servers.omero;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.reflect.Type;
 import java.net.Authenticator;
 import java.net.ConnectException;
 import java.net.CookieHandler;
 import java.net.CookieManager;
 import java.net.CookiePolicy;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.PasswordAuthentication;
 import java.net.URI;
@@ -70,10 +67,11 @@ import javafx.scene.control.Label;
 import javafx.scene.control.PasswordField;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.GridPane;
-import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.dialogs.Dialogs;
+import qupath.lib.images.servers.omero.OmeroCircuitBreaker.OpenCircuitException;
 import qupath.lib.images.servers.omero.OmeroObjects.Group;
 import qupath.lib.images.servers.omero.OmeroObjects.OmeroObjectType;
+import qupath.lib.images.servers.omero.OmeroTransport.StatusException;
 import qupath.lib.io.GsonTools;
 
 /**
@@ -179,67 +177,46 @@ public class OmeroWebClient {
 			this.token = getCSRFToken();
 
 		String url = omeroURLs.get(URL_LOGIN);
-		HttpURLConnection connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
-		connection.setRequestProperty("X-CSRFToken", this.token);
-		connection.setRequestMethod("POST");
-		connection.setRequestProperty("Referer", url + ":" + omeroServerInfo.port);
-		connection.setUseCaches(false);
-
-		connection.setDoInput(true);
-		connection.setDoOutput(true);
-		
+		Map<String, String> headers = Map.of(
+				"X-CSRFToken", this.token,
+				"Referer", url + ":" + omeroServerInfo.port,
+				"Content-Type", "application/x-www-form-urlencoded");
 		
 		var charset = StandardCharsets.UTF_8;
-		try (OutputStream stream = connection.getOutputStream()) {
-			// To avoid storing the password in a String: create ByteBuffers and concatenate them, then convert to byte[]
-			String s = String.join("&", "server=" + serverID, "username=" + authentication.getUserName(), "password=");
-			CharBuffer charBuffer = CharBuffer.wrap(authentication.getPassword());
-			byte[] sBytes = s.getBytes(charset);
-			byte[] out = new byte[sBytes.length + charBuffer.length() * 4];
-			ByteBuffer byteBuffer = ByteBuffer.wrap(out);
-			byteBuffer.put(sBytes);
-			var encoder = charset.newEncoder();
-			encoder.encode(charBuffer, byteBuffer, true);
-			stream.write(out, 0, byteBuffer.position());
-			
+		// To avoid storing the password in a String: create ByteBuffers and concatenate them, then convert to byte[]
+		String s = String.join("&", "server=" + serverID, "username=" + authentication.getUserName(), "password=");
+		CharBuffer charBuffer = CharBuffer.wrap(authentication.getPassword());
+		byte[] sBytes = s.getBytes(charset);
+		byte[] out = new byte[sBytes.length + charBuffer.length() * 4];
+		ByteBuffer byteBuffer = ByteBuffer.wrap(out);
+		byteBuffer.put(sBytes);
+		var encoder = charset.newEncoder();
+		encoder.encode(charBuffer, byteBuffer, true);
+		byte[] body = Arrays.copyOf(out, byteBuffer.position());
+		try {
+			byte[] response = getTransport().post(URI.create(url), headers, body);
+			return new String(response, charset);
+		} finally {
 			// Fill the traces of password with '0'
 			Arrays.fill(authentication.getPassword(), (char) 0);
 			Arrays.fill(out, (byte)0);
+			Arrays.fill(body, (byte)0);
 			Arrays.fill(charBuffer.array(), (char)0);
 			Arrays.fill(byteBuffer.array(), (byte)0);
 			encoder.reset();
 			System.gc();
 		}
-
-//	        var client = HttpClient.newBuilder()
-//	        		.build();
-//	        var request = HttpRequest.newBuilder(URI.create(url))
-//	        		.header("X-CSRFToken", this.token)
-//	        		.header("Referer", url)
-//	        		.header("Cookie", "csrftoken=" + this.token)
-//	        		.POST(BodyPublishers.ofString(s)).build();
-//	        try {
-//				System.err.println(client.send(request, BodyHandlers.ofString()).body());
-//			} catch (InterruptedException e) {
-//				e.printStackTrace();
-//			}
-
-		try (InputStream input = connection.getInputStream()) {
-			return GeneralTools.readInputStreamAsString(input);
-		}
 	}
 
 	private int keepAlive() {
 		try {
 			logger.debug("Attempting to keep connection alive...");
-			var pingURL = new URL(serverURI.getScheme(), serverURI.getHost(), serverURI.getPort(), "/webclient/keepalive_ping/?_=" + System.currentTimeMillis());
-			HttpURLConnection connection = (HttpURLConnection) pingURL.openConnection();
-			connection.setRequestProperty("Content-Type", "application/json");
-			connection.setRequestMethod("GET");
-			connection.setDoInput(true);
-			int response = connection.getResponseCode();
-			connection.disconnect();
-			return response;
+			var pingURI = OmeroTransports.createURI(serverURI.getScheme(), serverURI.getHost(), serverURI.getPort(), "/webclient/keepalive_ping/", "_=" + System.currentTimeMillis());
+			return getTransport().getStatusCode(pingURI);
+		} catch (OpenCircuitException e) {
+			// The server is temporarily unresponsive (e.g. during maintenance), try again with the next ping
+			logger.debug("Skipping keep-alive: {}", e.getLocalizedMessage());
+			return 0;
 		} catch (IOException e) {
 			logger.warn("Error trying to keep connection alive. Client will shut down now.", e.getLocalizedMessage());
 			return -1;
@@ -279,14 +256,8 @@ public class OmeroWebClient {
 				throw new OperationNotSupportedException("Type not supported: " + type);
 			}	
 			
-			URL url = new URL(uri.getScheme(), uri.getHost(), uri.getPort(), query + id);
-			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-			connection.setRequestProperty("Content-Type", "application/json");
-			connection.setRequestMethod("GET");
-			connection.setDoInput(true);
-			int response = connection.getResponseCode();
-			connection.disconnect();
-			return response == 200;
+			URI objectURI = OmeroTransports.createURI(uri.getScheme(), uri.getHost(), uri.getPort(), query + id, null);
+			return OmeroTransports.get(uri).getStatusCode(objectURI) == 200;
 		} catch (IOException | OperationNotSupportedException ex) {
 			logger.warn("Error attempting to access OMERO object", ex.getLocalizedMessage());
 			return false;
@@ -298,6 +269,14 @@ public class OmeroWebClient {
 		return token;
 	}
 	
+	/**
+	 * Return the transport shared by all the requests sent to this client's server.
+	 * @return transport
+	 */
+	OmeroTransport getTransport() {
+		return OmeroTransports.get(serverURI);
+	}
+	
 	StringProperty usernameProperty() {
 		return username;
 	}
@@ -477,19 +456,17 @@ public class OmeroWebClient {
 	 */
 	public void logOut() {
 		try {
-			URL url = new URL(serverURI.getScheme(), serverURI.getHost(), serverURI.getPort(), "/webclient/logout/");
-			HttpURLConnection connection = (HttpURLConnection)url.openConnection();
-			connection.setRequestProperty("X-CSRFToken", token);
-			connection.setRequestProperty("Content-Type", "application/json");
-			connection.setRequestProperty("Referer", url + ":" + omeroServerInfo.port);
-			connection.setRequestMethod("POST");
-			connection.setDoOutput(true);
-			connection.setDoInput(true);
-			int response = connection.getResponseCode();
-			connection.disconnect();
-			
-			if (response != 200 && response != 403)
-				throw new IOException("Server returned " + response);
+			URI uri = OmeroTransports.createURI(serverURI.getScheme(), serverURI.getHost(), serverURI.getPort(), "/webclient/logout/", null);
+			Map<String, String> headers = Map.of(
+					"X-CSRFToken", token,
+					"Content-Type", "application/json",
+					"Referer", uri + ":" + omeroServerInfo.port);
+			try {
+				getTransport().post(uri, headers, new byte[0]);
+			} catch (StatusException ex) {
+				if (ex.getStatusCode() != 403)
+					throw new IOException("Server returned " + ex.getStatusCode());
+			}
 			
 			loggedIn.set(false);
 			timer.cancel();
@@ -497,6 +474,9 @@ public class OmeroWebClient {
 			username.set("");
 		} catch (IOException e) {
 			logger.error("Could not logout.", e.getLocalizedMessage());
+		} finally {
+			// Stop the threads of the transport, which will be created again if needed
+			OmeroTransports.close(serverURI);
 		}
 	}
 	
@@ -532,36 +512,23 @@ public class OmeroWebClient {
 		return map.get("data").toString();
 	}
 
-	private static String getJSONString(String base, String... query) throws MalformedURLException, IOException {
+	private String getJSONString(String base, String... query) throws MalformedURLException, IOException {
 
 		StringBuilder sb = new StringBuilder(base);
 		for (String q : query)
 			sb.append(q);
 
-		HttpURLConnection connection = (HttpURLConnection) URI.create(sb.toString()).toURL().openConnection();
-		connection.setRequestProperty("Content-Type", "application/json");
-		connection.setRequestMethod("GET");
-		connection.setDoInput(true);
-		
-		// In case of '301 Permanently moved' (sometimes happens when 'http' instead of 'https')
-		var code = connection.getResponseCode();
-		if (code == 301) {
-			var redirectedLink = connection.getHeaderField("Location");
-			logger.error("Could not reach {}. Source permanently moved to {}", connection.getURL().toString(), redirectedLink != null ? redirectedLink : "unknown");
-			throw new IOException(code + ": " + connection.getResponseMessage());
-		}
-		
-		try (InputStream stream = connection.getInputStream()) {
-			return GeneralTools.readInputStreamAsString(stream);
-		}
+		// Redirections (e.g. from 'http' to 'https') are followed by the transport
+		byte[] bytes = getTransport().getBytes(URI.create(sb.toString()));
+		return new String(bytes, StandardCharsets.UTF_8);
 	}
 
-	private static <T> T parseJSON(Class<T> cls, String base, String... query) throws JsonSyntaxException, MalformedURLException, IOException {
+	private <T> T parseJSON(Class<T> cls, String base, String... query) throws JsonSyntaxException, MalformedURLException, IOException {
 		return GsonTools.getInstance().fromJson(getJSONString(base, query), cls);
 	}
 
 	@SuppressWarnings("unchecked")
-	private static <T> T parseJSON(Type type, String base, String... query) throws JsonSyntaxException, MalformedURLException, IOException {
+	private <T> T parseJSON(Type type, String base, String... query) throws JsonSyntaxException, MalformedURLException, IOException {
 		return (T) GsonTools.getInstance().fromJson(getJSONString(base, query), type);
 	}
 	
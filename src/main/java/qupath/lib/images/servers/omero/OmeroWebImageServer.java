@@ -22,29 +22,42 @@
 package qupath.lib.images.servers.omero;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import javax.imageio.ImageIO;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import qupath.lib.awt.common.BufferedImageTools;
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.common.ColorTools;
 import qupath.lib.images.servers.AbstractTileableImageServer;
 import qupath.lib.images.servers.ImageChannel;
 import qupath.lib.images.servers.ImageServerBuilder;
@@ -52,15 +65,19 @@ import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
 import qupath.lib.images.servers.ImageServerMetadata;
 import qupath.lib.images.servers.PixelType;
 import qupath.lib.images.servers.TileRequest;
-import qupath.lib.images.servers.omero.OmeroShapes.OmeroShape;
+import qupath.lib.images.servers.omero.OmeroImageDecoder.ImageFormat;
+import qupath.lib.images.servers.omero.OmeroTileCache.TileKey;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjectReader;
+import qupath.lib.regions.RegionRequest;
 
 /**
  * ImageServer that reads pixels using the OMERO web API.
  * <p>
- * Note that this does not provide access to the raw data, but rather RGB tiles only in the manner of a web viewer. 
- * Consequently, only RGB images are supported and some small changes in pixel values can be expected due to compression.
+ * Note that this does not provide access to the raw data, but rather rendered tiles only in the manner of a web viewer. 
+ * Images that are not 8-bit RGB are read one channel at a time, with each channel rendered as 8-bit greyscale 
+ * over its full range of values. Consequently, pixel values are rescaled to 8-bit and some small changes can be expected due to compression, 
+ * unless a lossless format is requested (e.g. with the args {@code --format png}).
  * 
  * @author Pete Bankhead
  *
@@ -75,7 +92,19 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 	private final String scheme;
 	private final int port;
 
-	private ImageServerMetadata originalMetadata;
+	private volatile ImageServerMetadata originalMetadata;
+	
+	/**
+	 * Metadata set before the original metadata was requested from OMERO (e.g. the metadata stored in a project), 
+	 * used until the original metadata is needed
+	 */
+	private ImageServerMetadata storedMetadata;
+	
+	/**
+	 * Lock held while the original metadata is requested, so that it is requested only once without holding 
+	 * the monitor of this server (used by {@link #getMetadata()} and {@link #setMetadata(ImageServerMetadata)})
+	 */
+	private final Object initializeLock = new Object();
 
 	/**
 	 * Image OMERO ID
@@ -96,6 +125,100 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 	 * Quality of requested JPEG.
 	 */
 	private double quality = DEFAULT_JPEG_QUALITY;
+	
+	/**
+	 * Format of the requested regions (JPEG if none is specified in the args)
+	 */
+	private ImageFormat format = ImageFormat.JPEG;
+	
+	/**
+	 * Maximum width and height of the tiles rendered by OMERO (default value of {@code omero.pixeldata.max_tile_length})
+	 */
+	private static final int MAX_TILE_LENGTH = 1024;
+	
+	/**
+	 * Number of tiles along each dimension requested together, as a single super-tile (1 if tiles are requested individually)
+	 */
+	private int superTileSize = 1;
+	
+	/**
+	 * Super-tile size requested in the args, checked against the tile size once the metadata is known
+	 */
+	private int requestedSuperTileSize = 1;
+	
+	/**
+	 * True once OMERO returned an incomplete super-tile, so that this is only reported once
+	 */
+	private volatile boolean incompleteSuperTileReported = false;
+	
+	/**
+	 * Most recently requested super-tiles, from which neighbouring tiles can be read without decoding the super-tile again
+	 */
+	private final Map<TileKey, BufferedImage> recentSuperTiles = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<TileKey, BufferedImage> eldest) {
+			return size() > 4;
+		}
+	});
+	
+	/**
+	 * Tile requests currently in flight (shared by all servers, since different servers can read the same image)
+	 */
+	private static final OmeroSingleFlight<TileKey, BufferedImage> tileRequests = new OmeroSingleFlight<>();
+	
+	/**
+	 * Requests of the bytes of tiles currently in flight, shared by the reads and the prefetches of tiles
+	 * (so that a tile being prefetched is not requested a second time when the viewer needs it)
+	 */
+	private static final OmeroSingleFlight<TileKey, byte[]> tileBytesRequests = new OmeroSingleFlight<>();
+	
+	/**
+	 * Set while the current thread reads the level below a tile computed locally, so that these reads are not
+	 * mistaken for tiles requested by the viewer
+	 */
+	private static final ThreadLocal<Boolean> readingLevelBelow = new ThreadLocal<>();
+	
+	/**
+	 * Prefetcher requesting the tiles likely to be needed next by the viewer.
+	 */
+	private final OmeroTilePrefetcher prefetcher = new OmeroTilePrefetcher(this);
+	
+	/**
+	 * Range of values (min, max) of each channel, when channels are requested separately (or null for RGB images)
+	 */
+	private double[][] channelWindows;
+	
+	/**
+	 * True if OMERO has no pyramid for this image, in which case regions are requested at full resolution 
+	 * and the lower resolutions are computed from them (see {@link #readDownsampledTile(TileRequest, TileKey)})
+	 */
+	private boolean renderRegions;
+	
+	/**
+	 * Color model of the tiles, when channels are requested separately
+	 */
+	private ColorModel colorModel;
+	
+	/**
+	 * Path of the OMERO endpoint rendering image regions, formatted with the image ID, z and t
+	 */
+	private static final String RENDER_IMAGE_REGION = "/webgateway/render_image_region/%s/%d/%d/";
+	
+	/**
+	 * Rendering settings used to request RGB regions (channels mapped to red, green and blue, not inverted)
+	 */
+	private static final String RENDERING_SETTINGS_RGB = "&c=1|0:255$FF0000,2|0:255$00FF00,3|0:255$0000FF" +
+			"&maps=[{\"inverted\":{\"enabled\":false}},{\"inverted\":{\"enabled\":false}},{\"inverted\":{\"enabled\":false}}]" +
+			"&m=c&p=normal";
+	
+	/**
+	 * Rendering settings used to request a single channel as greyscale, formatted with the channel (starting from 1) 
+	 * and the range of values mapped to 0-255
+	 */
+	private static final String RENDERING_SETTINGS_CHANNEL = "&c=%d|%s:%s$FFFFFF" +
+			"&maps=[{\"inverted\":{\"enabled\":false}}]" +
+			"&m=g&p=normal";
 
 //	/**
 //	 * There appears to be a max size (hard-coded?) in OMERO, so we need to make sure we don't exceed that.
@@ -122,13 +245,34 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 	 * @throws IOException
 	 */
 	OmeroWebImageServer(URI uri, OmeroWebClient client, String...args) throws IOException {
+		this(uri, client, false, args);
+	}
+	
+	/**
+	 * Instantiate an OMERO server, optionally without requesting the metadata of the image from OMERO.
+	 * <p>
+	 * When created lazily, the server only requests the metadata of the image when it is first needed, 
+	 * i.e. when pixels are read or if the metadata is needed before any metadata is set with 
+	 * {@link #setMetadata(ImageServerMetadata)} (as QuPath does when building a server for a project entry).
+	 * Any error with the image is then only reported when the metadata is requested, and 
+	 * {@link #getOriginalMetadata()} throws an {@link UncheckedIOException} if it cannot be requested.
+	 * Servers built to import images (i.e. to create their builders) are never lazy, since their builders hold the metadata.
+	 * 
+	 * @param uri
+	 * @param client
+	 * @param lazy true to defer requesting the metadata until it is needed
+	 * @param args
+	 * @throws IOException
+	 * @see #OmeroWebImageServer(URI, OmeroWebClient, String...)
+	 */
+	OmeroWebImageServer(URI uri, OmeroWebClient client, boolean lazy, String...args) throws IOException {
 		super();
 		this.uri = uri;
 		this.scheme = uri.getScheme();
 		this.host = uri.getHost();
 		this.port = uri.getPort();
 		this.client = client;
-		this.originalMetadata = buildMetadata();
+		this.id = parseId(uri);
 		// Args are stored in the JSON - passwords and usernames must not be included!
 		// Do an extra check to ensure someone hasn't accidentally passed one
 		var invalid = Arrays.asList("--password", "-p", "-u", "--username", "-password");
@@ -150,24 +294,90 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 					}
 				}
 			}
+			if (arg.equals("--format")) {
+				if (i < args.length-1) {
+					var parsedFormat = ImageFormat.fromString(args[i+1]);
+					if (parsedFormat != null)
+						format = parsedFormat;
+					else
+						logger.error("Requested format '{}' is invalid, must be one of jpeg, png or tif. I will use {} instead.", args[i+1], format);
+				}
+			}
+			if (arg.equals("--supertile")) {
+				if (i < args.length-1) {
+					try {
+						requestedSuperTileSize = Integer.parseInt(args[i+1]);
+					} catch (NumberFormatException ex) {
+						logger.error("Unable to parse super-tile size from {}", args[i+1], ex);
+					}
+				}
+			}
 		}
 		this.args = args;
+		if (!lazy)
+			initialize();
 		
 		// Add URI to the client's list of URIs
 		client.addURI(uri);
 	}
 	
-	protected ImageServerMetadata buildMetadata() throws IOException {
+	private static String parseId(URI uri) {
 		String uriQuery = uri.getQuery();
 		if (uriQuery != null && !uriQuery.isEmpty() && uriQuery.startsWith("show=image-")) {
 			Pattern pattern = Pattern.compile("show=image-(\\d+)");
 			Matcher matcher = pattern.matcher(uriQuery);
 			if (matcher.find())
-				this.id = matcher.group(1);
+				return matcher.group(1);
 		}
-		if (this.id == null)
-			this.id = uri.getFragment();
-
+		return uri.getFragment();
+	}
+	
+	/**
+	 * Request the metadata of the image from OMERO (unless already done), and apply any metadata set in the meantime.
+	 * @throws IOException if the metadata cannot be requested
+	 */
+	private void initialize() throws IOException {
+		synchronized (initializeLock) {
+			if (originalMetadata != null)
+				return;
+			var metadata = buildMetadata();
+			
+			if (requestedSuperTileSize != 1) {
+				int maxSize = Math.max(1, MAX_TILE_LENGTH / Math.max(metadata.getPreferredTileWidth(), metadata.getPreferredTileHeight()));
+				if (requestedSuperTileSize >= 1 && requestedSuperTileSize <= maxSize) {
+					superTileSize = requestedSuperTileSize;
+				} else {
+					superTileSize = Math.max(1, Math.min(requestedSuperTileSize, maxSize));
+					logger.warn("Requested super-tile size '{}' is invalid, must be between 1 and {}. I will use {} instead.", requestedSuperTileSize, maxSize, superTileSize);
+				}
+			}
+			
+			// Publish the metadata and apply the stored metadata at once, so that getMetadata() never sees one without the other
+			synchronized (this) {
+				originalMetadata = metadata;
+				if (storedMetadata != null) {
+					try {
+						super.setMetadata(storedMetadata);
+					} catch (IllegalArgumentException ex) {
+						logger.warn("The metadata stored for {} no longer matches the image on OMERO, it will be ignored: {}", uri, ex.getLocalizedMessage());
+					}
+					storedMetadata = null;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Request the metadata of the image from OMERO if the server was created lazily, and it has not been requested yet.
+	 * This must be called before reading pixels, which depends on it.
+	 * @throws IOException if the metadata cannot be requested
+	 */
+	private void ensureInitialized() throws IOException {
+		if (originalMetadata == null)
+			initialize();
+	}
+	
+	protected ImageServerMetadata buildMetadata() throws IOException {
 		int sizeX;
 		int sizeY;
 
@@ -221,20 +431,33 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 		}
 		
 		
-		List<ImageChannel> channels = null;
-		if (sizeC == 3)
+		List<ImageChannel> channels;
+		if (sizeC == 3 && (pixelsType == null || "uint8".equals(pixelsType))) {
 			channels = ImageChannel.getDefaultRGBChannels();
-//		else if (sizeC == 1)
-//			channels = ImageChannel.getDefaultChannelList(1);
-		
-		if (channels == null || (pixelsType != null && !"uint8".equals(pixelsType)))
-			throw new IOException("Only 8-bit RGB images supported! Selected image has " + sizeC + " channel(s) & pixel type " + pixelsType);
+			channelWindows = null;
+		} else {
+			// Other images are requested one channel at a time, each rendered as 8-bit greyscale
+			if (!map.has("channels") || map.getAsJsonArray("channels").size() != sizeC)
+				throw new IOException("Unable to read the channels of the selected image (" + sizeC + " channel(s) & pixel type " + pixelsType + ")");
+			channels = new ArrayList<>();
+			channelWindows = new double[sizeC][];
+			JsonArray channelsJson = map.getAsJsonArray("channels");
+			for (int c = 0; c < sizeC; c++) {
+				JsonObject channel = channelsJson.get(c).getAsJsonObject();
+				channels.add(parseChannel(channel, c));
+				channelWindows[c] = parseChannelWindow(channel);
+			}
+			isRGB = false;
+			logger.debug("Image {} will be read as {} channel(s) rendered as 8-bit (original pixel type {})", id, sizeC, pixelsType);
+		}
 			
 		var levelBuilder = new ImageServerMetadata.ImageResolutionLevel.Builder(sizeX, sizeY);
 		
+		renderRegions = true;
 		if (map.getAsJsonPrimitive("tiles").getAsBoolean()) {
 			int levels = map.getAsJsonPrimitive("levels").getAsInt();
 			if (levels > 1) {
+				renderRegions = false;
 				JsonObject zoom = map.getAsJsonObject("zoomLevelScaling");
 				for (int i = 0; i < levels; i++) {
 					levelBuilder.addLevelByDownsample(1.0 / zoom.getAsJsonPrimitive(Integer.toString(i)).getAsDouble());
@@ -253,17 +476,27 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 				tileSize = new int[] {sizeX, sizeY};
 			}
 		} else {
+			levelBuilder.addFullResolutionLevel();
 			int tileSizeX = Math.min(sizeX, 3192);
 			int tileSizeY = Math.min(sizeY, 3192);
 			tileSize = new int[] {tileSizeX, tileSizeY};
 		}
+		
+		if (renderRegions) {
+			// OMERO has no pyramid for this image, so lower resolutions are computed locally (until the image fits in one tile)
+			double downsample = 2;
+			while (sizeX / (downsample / 2) > tileSize[0] || sizeY / (downsample / 2) > tileSize[1]) {
+				levelBuilder.addLevelByDownsample(downsample);
+				downsample *= 2;
+			}
+		}
 
 		if (map.has("nominalMagnification"))
 			magnification = map.getAsJsonPrimitive("nominalMagnification").getAsDouble();
 		
 		ImageServerMetadata.Builder builder = new ImageServerMetadata.Builder(getClass(), uri.toString(), sizeX, sizeY)
 				.sizeT(sizeT)
-				.channels(ImageChannel.getDefaultRGBChannels())
+				.channels(channels)
 				.sizeZ(sizeZ)
 //				.args(args)
 				.name(imageName)
@@ -285,8 +518,46 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 		return builder.build();
 	}
 
+	/**
+	 * Create a channel from its JSON representation in the image metadata.
+	 * @param channel
+	 * @param c index of the channel
+	 * @return channel
+	 */
+	private static ImageChannel parseChannel(JsonObject channel, int c) {
+		String name = channel.has("label") && !channel.get("label").isJsonNull() ? channel.get("label").getAsString() : "Channel " + (c+1);
+		Integer color = ImageChannel.getDefaultChannelColor(c);
+		if (channel.has("color") && !channel.get("color").isJsonNull()) {
+			try {
+				int rgb = Integer.parseInt(channel.get("color").getAsString(), 16);
+				color = ColorTools.packRGB((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+			} catch (NumberFormatException ex) {
+				logger.warn("Unable to parse color of channel {}: {}", name, ex.getLocalizedMessage());
+			}
+		}
+		return ImageChannel.getInstance(name, color);
+	}
+	
+	/**
+	 * Return the range of values of a channel (from its JSON representation in the image metadata), 
+	 * which is mapped to 0-255 when the channel is rendered.
+	 * @param channel
+	 * @return {min, max}
+	 */
+	private static double[] parseChannelWindow(JsonObject channel) {
+		if (!channel.has("window"))
+			return new double[] {0, 255};
+		JsonObject window = channel.getAsJsonObject("window");
+		// Use the full range of the channel (rather than the current display range), so that all the values are preserved
+		if (window.has("min") && window.has("max"))
+			return new double[] {window.get("min").getAsDouble(), window.get("max").getAsDouble()};
+		return new double[] {window.get("start").getAsDouble(), window.get("end").getAsDouble()};
+	}
+	
 	@Override
 	protected String createID() {
+		if (format.isLossless())
+			return getClass().getName() + ": " + uri.toString() + " format=" + format.getQueryValue();
 		return getClass().getName() + ": " + uri.toString() + " quality=" + quality;
 	}
 
@@ -306,28 +577,21 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 	 */
 	@Override
 	public Collection<PathObject> readPathObjects() throws IOException {
+		ensureInitialized();
 
 		//		URL urlROIs = new URL(
 		//				scheme, host, port, "/webgateway/get_rois_json/" + id
 		//				);
 
 		// Options are: Rectangle, Ellipse, Point, Line, Polyline, Polygon and Label
-		var data = OmeroRequests.requestROIs(scheme, host, port, id);
+		// Shapes are decoded directly from the response, which can be very large
+		var shapes = OmeroRequests.requestShapes(scheme, host, port, id);
 		List<PathObject> list = new ArrayList<>();
-		var gson = new GsonBuilder().registerTypeAdapter(OmeroShape.class, new OmeroShapes.GsonShapeDeserializer()).setLenient().create();
-			
-		for (int i = 0; i < data.size(); i++) {
-			JsonObject roiJson = data.get(i).getAsJsonObject();
-			JsonArray shapesJson = roiJson.getAsJsonArray("shapes");
-			
-			for (int j = 0; j < shapesJson.size(); j++) {
-				try {
-					var shape = gson.fromJson(shapesJson.get(j), OmeroShape.class);
-					if (shape != null)
-						list.add(shape.createAnnotation());
-				} catch (Exception e) {
-					logger.error("Error parsing shape: " + e.getLocalizedMessage(), e);
-				}
+		for (var shape: shapes) {
+			try {
+				list.add(shape.createAnnotation());
+			} catch (Exception e) {
+				logger.error("Error parsing shape: " + e.getLocalizedMessage(), e);
 			}
 		}
 		return list;
@@ -340,29 +604,87 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 
 	@Override
 	public ImageServerMetadata getOriginalMetadata() {
+		try {
+			ensureInitialized();
+		} catch (IOException ex) {
+			throw new UncheckedIOException("Unable to request the metadata of " + uri, ex);
+		}
 		return originalMetadata;
 	}
+	
+	/**
+	 * Return the metadata of the image, without requesting it from OMERO if this server was created lazily 
+	 * and metadata was already set with {@link #setMetadata(ImageServerMetadata)}.
+	 */
+	@Override
+	public ImageServerMetadata getMetadata() {
+		synchronized (this) {
+			if (originalMetadata == null && storedMetadata != null)
+				return storedMetadata;
+		}
+		return super.getMetadata();
+	}
+	
+	/**
+	 * Set the metadata of the image. If this server was created lazily and the original metadata has not been 
+	 * requested from OMERO yet, the metadata is only checked against it once it is requested.
+	 */
+	@Override
+	public void setMetadata(ImageServerMetadata metadata) {
+		synchronized (this) {
+			if (originalMetadata == null) {
+				storedMetadata = Objects.requireNonNull(metadata);
+				return;
+			}
+		}
+		super.setMetadata(metadata);
+	}
 
 	@Override
 	protected BufferedImage readTile(TileRequest request) throws IOException {
+		ensureInitialized();
 
 		int level = request.getLevel();
 
-		int targetWidth = request.getTileWidth();
-		int targetHeight = request.getTileHeight();
-
-		String urlFile;
+		// Note!  It's important to use the preferred tile size so that the correct x & y can be used
+		int col = request.getTileX() / getPreferredTileWidth();
+		int row = request.getTileY() / getPreferredTileHeight();
+		TileKey key = createTileKey(level, col, row, request.getZ(), request.getT());
+		notifyPrefetcher(level, col, row, request.getZ(), request.getT());
 
-		if (nResolutions() > 1) {
-			int x = request.getTileX() / getPreferredTileWidth();
-			int y = request.getTileY() / getPreferredTileHeight();
+		var offHeapCache = OmeroOffHeapTileCache.getInstance();
+		BufferedImage img = offHeapCache == null ? null : offHeapCache.get(key);
+		if (img == null) {
+			img = readUncachedTile(request, key);
+			if (offHeapCache != null)
+				offHeapCache.put(key, img);
+		}
+		return img;
+	}
+	
+	/**
+	 * Tell the prefetcher that the viewer read the specified tile. Other reads (e.g. by an analysis or an export)
+	 * are ignored, since they say nothing about the tiles the viewer will need next.
+	 */
+	private void notifyPrefetcher(int level, int col, int row, int z, int t) {
+		if (OmeroRequestPriority.current() == OmeroRequestPriority.VIEWER && readingLevelBelow.get() == null)
+			prefetcher.tileRequested(level, col, row, z, t);
+	}
+	
+	/**
+	 * Read a tile that is not in the off-heap tile cache (if any).
+	 * @param request
+	 * @param key the key of the tile
+	 * @return tile
+	 * @throws IOException
+	 */
+	private BufferedImage readUncachedTile(TileRequest request, TileKey key) throws IOException {
+		int level = request.getLevel();
 
-			// Note!  It's important to use the preferred tile size so that the correct x & y can be used
-			//			int width = request.getTileWidth();
-			//			int height = request.getTileHeight();
-			int width = getPreferredTileWidth();
-			int height = getPreferredTileHeight();
+		int targetWidth = request.getTileWidth();
+		int targetHeight = request.getTileHeight();
 
+		if (!renderRegions) {
 			// It's crucial not to request tiles that are too large, but the AbstractTileableImageServer should deal with this
 //			// Incorporate max size OMERO supports
 //			if (targetWidth > OMERO_MAX_SIZE || targetHeight > OMERO_MAX_SIZE) {
@@ -384,41 +706,683 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 //				return img;
 //			}		
 
-			urlFile = "/webgateway/render_image_region/" + id + 
-					"/" + request.getZ() + 
-					"/" + request.getT() +
-					"/?tile=" + level + "," + x + "," + y + "," + width + "," + height +
-					"&c=1|0:255$FF0000,2|0:255$00FF00,3|0:255$0000FF" +
-					"&maps=[{%22inverted%22:{%22enabled%22:false}},{%22inverted%22:{%22enabled%22:false}},{%22inverted%22:{%22enabled%22:false}}]" +
-					"&m=c&p=normal&q=" + quality;
-
-			URL url = new URL(scheme, host, port, urlFile);
-
-			BufferedImage img = ImageIO.read(url);
-
-			return img;
+			if (superTileSize > 1)
+				return requestFromSuperTile(key);
+			return requestTile(key);
 		}
 		
+		// If OMERO has no pyramid, lower resolutions are computed locally
+		if (level > 0)
+			return readDownsampledTile(request, key);
+		
 		// If resolution == 1
-		int x = request.getTileX();
-		int y = request.getTileY();
+		BufferedImage img = requestTile(key);
+
+		return BufferedImageTools.resize(img, targetWidth, targetHeight, allowSmoothInterpolation());
+	}
+	
+	/**
+	 * Create the key identifying a tile of this image, as it is requested from OMERO.
+	 * 
+	 * @param level the resolution level of the tile
+	 * @param col the column of the tile (in units of the preferred tile width)
+	 * @param row the row of the tile (in units of the preferred tile height)
+	 * @param z
+	 * @param t
+	 * @return tile key
+	 */
+	TileKey createTileKey(int level, int col, int row, int z, int t) {
 		int width = getPreferredTileWidth();
 		int height = getPreferredTileHeight();
+		String server = host + (port < 0 ? "" : ":" + port);
+		String rendering = format.isLossless() ? format.getQueryValue() : "q" + quality;
+		if (!renderRegions)
+			return new TileKey(server, id, level, col, row, width, height, z, t, rendering);
+		// Lower resolutions of images without a pyramid are computed locally (and cached as PNG)
+		if (level > 0)
+			return new TileKey(server, id, level, col, row, width, height, z, t, rendering + "-downsampled");
+		// Images without a pyramid are requested by region, using pixel coordinates
+		return new TileKey(server, id, 0, col * width, row * height, width, height, z, t, rendering);
+	}
+	
+	/**
+	 * Create the URI used to request the specified tile from OMERO.
+	 * @param key
+	 * @return uri
+	 * @throws IOException
+	 */
+	private URI createTileURI(TileKey key) throws IOException {
+		String query;
+		if (!renderRegions)
+			query = "tile=" + key.getLevel() + "," + key.getX() + "," + key.getY() + "," + key.getWidth() + "," + key.getHeight();
+		else
+			query = "region=" + key.getX() + "," + key.getY() + "," + key.getWidth() + "," + key.getHeight();
+		int channel = key.getChannel();
+		if (channel < 0)
+			query += RENDERING_SETTINGS_RGB;
+		else
+			query += String.format(RENDERING_SETTINGS_CHANNEL, channel + 1,
+					formatWindowValue(channelWindows[channel][0]), formatWindowValue(channelWindows[channel][1]));
+		if (format.isLossless())
+			query += "&format=" + format.getQueryValue();
+		else
+			query += "&q=" + quality;
+		
+		String path = String.format(RENDER_IMAGE_REGION, id, key.getZ(), key.getT());
+		return OmeroTransports.createURI(scheme, host, port, path, query);
+	}
+	
+	/**
+	 * Read the specified tile asynchronously, without blocking the calling thread while it is requested from OMERO.
+	 * <p>
+	 * Cancelling the returned future aborts the request sent to OMERO if it is still in flight, so that tiles 
+	 * which are no longer needed (e.g. because the viewer has moved on) don't compete with those that are.
+	 * <p>
+	 * Unlike {@link #readRegion(qupath.lib.regions.RegionRequest)}, the tile read is not added to QuPath's tile cache.
+	 * 
+	 * @param request the tile to read
+	 * @return a future completed with the tile
+	 */
+	public CompletableFuture<BufferedImage> readTileAsync(TileRequest request) {
+		BufferedImage cachedTile = getCachedTile(request);
+		if (cachedTile != null)
+			return CompletableFuture.completedFuture(cachedTile);
+		try {
+			ensureInitialized();
+		} catch (IOException ex) {
+			return CompletableFuture.failedFuture(ex);
+		}
 
-		urlFile = "/webgateway/render_image_region/" + id + 
-				"/" + request.getZ() + 
-				"/" + request.getT() +
-				"/?region=" + x + "," + y + "," + width + "," + height +
-				"&c=1|0:255$FF0000,2|0:255$00FF00,3|0:255$0000FF" +
-				"&maps=[{%22inverted%22:{%22enabled%22:false}},{%22inverted%22:{%22enabled%22:false}},{%22inverted%22:{%22enabled%22:false}}]" +
-				"&m=c&p=normal&q=" + quality;			
+		int col = request.getTileX() / getPreferredTileWidth();
+		int row = request.getTileY() / getPreferredTileHeight();
+		TileKey key = createTileKey(request.getLevel(), col, row, request.getZ(), request.getT());
+		notifyPrefetcher(request.getLevel(), col, row, request.getZ(), request.getT());
 
+		var offHeapCache = OmeroOffHeapTileCache.getInstance();
+		BufferedImage offHeapTile = offHeapCache == null ? null : offHeapCache.get(key);
+		if (offHeapTile != null)
+			return CompletableFuture.completedFuture(offHeapTile);
 
-		URL url = new URL(scheme, host, port, urlFile);
+		var future = readUncachedTileAsync(request, key);
+		if (offHeapCache != null)
+			future.thenAccept(img -> offHeapCache.put(key, img));
+		return future;
+	}
+	
+	/**
+	 * Asynchronous version of {@link #readUncachedTile(TileRequest, TileKey)}.
+	 * @param request
+	 * @param key the key of the tile
+	 * @return a future completed with the tile
+	 */
+	private CompletableFuture<BufferedImage> readUncachedTileAsync(TileRequest request, TileKey key) {
+		// The priority is given by the calling thread, not by the thread completing the request
+		var priority = OmeroRequestPriority.current();
+		if (renderRegions && request.getLevel() > 0) {
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					return OmeroRequestPriority.callWith(priority, () -> readDownsampledTile(request, key));
+				} catch (IOException ex) {
+					throw new CompletionException(ex);
+				}
+			}, client.getTransport().getExecutor());
+		}
 
-		BufferedImage img = ImageIO.read(url);
+		if (!renderRegions && superTileSize > 1) {
+			TileKey superKey = createSuperTileKey(key);
+			BufferedImage superTile = recentSuperTiles.get(superKey);
+			if (superTile != null)
+				return CompletableFuture.completedFuture(cropSuperTile(superTile, superKey, key));
+			var future = tileRequests.getAsync(superKey, () -> channelWindows == null ? requestImageAsync(superKey, false) : requestChannelsAsync(superKey));
+			var cropped = future.thenCompose(img -> {
+				// Request the tile on its own if the super-tile cannot be used
+				if (!isCompleteSuperTile(img, superKey))
+					return tileRequests.getAsync(key, () -> channelWindows == null ? requestImageAsync(key, false) : requestChannelsAsync(key));
+				recentSuperTiles.put(superKey, img);
+				return CompletableFuture.completedFuture(cropSuperTile(img, superKey, key));
+			});
+			cropped.whenComplete((img, ex) -> {
+				if (cropped.isCancelled())
+					future.cancel(true);
+			});
+			return cropped;
+		}
 
-		return BufferedImageTools.resize(img, targetWidth, targetHeight, allowSmoothInterpolation());
+		var future = tileRequests.getAsync(key, () -> channelWindows == null ? requestImageAsync(key, false) : requestChannelsAsync(key));
+		if (!renderRegions)
+			return future;
+		
+		var resized = future.thenApply(img -> BufferedImageTools.resize(img, request.getTileWidth(), request.getTileHeight(), allowSmoothInterpolation()));
+		resized.whenComplete((img, ex) -> {
+			if (resized.isCancelled())
+				future.cancel(true);
+		});
+		return resized;
+	}
+	
+	/**
+	 * Read a tile from the super-tile containing it, i.e. the block of {@code superTileSize x superTileSize} 
+	 * neighbouring tiles requested from OMERO in a single request.
+	 * <p>
+	 * Concurrent requests for tiles of the same super-tile share a single request, and the most recent 
+	 * super-tiles are kept in memory so that their tiles can be read without decoding them again.
+	 * If OMERO does not return the whole super-tile (e.g. because it exceeds a limit of the server), the tile is requested on its own.
+	 * 
+	 * @param key the tile to read
+	 * @return tile
+	 * @throws IOException
+	 */
+	private BufferedImage requestFromSuperTile(TileKey key) throws IOException {
+		TileKey superKey = createSuperTileKey(key);
+		BufferedImage superTile = recentSuperTiles.get(superKey);
+		if (superTile == null) {
+			superTile = requestTile(superKey);
+			if (!isCompleteSuperTile(superTile, superKey))
+				return requestTile(key);
+			recentSuperTiles.put(superKey, superTile);
+		}
+		return cropSuperTile(superTile, superKey, key);
+	}
+	
+	/**
+	 * Create the key of the super-tile containing the specified tile. 
+	 * Since OMERO's {@code tile} parameter gives the position in units of the tile size, this is simply a larger tile.
+	 * @param key
+	 * @return super-tile key
+	 */
+	private TileKey createSuperTileKey(TileKey key) {
+		return key.forTile(key.getX() / superTileSize, key.getY() / superTileSize, 
+				key.getWidth() * superTileSize, key.getHeight() * superTileSize);
+	}
+	
+	/**
+	 * Check that OMERO returned the whole super-tile (which might be cropped at the image bounds).
+	 * @param superTile
+	 * @param superKey
+	 * @return true if all the tiles of the super-tile can be read from it
+	 */
+	private boolean isCompleteSuperTile(BufferedImage superTile, TileKey superKey) {
+		var resolution = getMetadata().getLevel(superKey.getLevel());
+		int expectedWidth = Math.min(superKey.getWidth(), resolution.getWidth() - superKey.getX() * superKey.getWidth());
+		int expectedHeight = Math.min(superKey.getHeight(), resolution.getHeight() - superKey.getY() * superKey.getHeight());
+		if (superTile.getWidth() >= expectedWidth && superTile.getHeight() >= expectedHeight)
+			return true;
+		
+		if (!incompleteSuperTileReported) {
+			incompleteSuperTileReported = true;
+			logger.warn("OMERO returned a {}x{} super-tile instead of {}x{}, tiles will be requested individually (try a smaller --supertile)", 
+					superTile.getWidth(), superTile.getHeight(), expectedWidth, expectedHeight);
+		} else
+			logger.debug("OMERO returned a {}x{} super-tile instead of {}x{}", superTile.getWidth(), superTile.getHeight(), expectedWidth, expectedHeight);
+		return false;
+	}
+	
+	/**
+	 * Copy the specified tile from its complete super-tile.
+	 * @param superTile
+	 * @param superKey
+	 * @param key
+	 * @return tile
+	 */
+	private BufferedImage cropSuperTile(BufferedImage superTile, TileKey superKey, TileKey key) {
+		int x = (key.getX() % superTileSize) * key.getWidth();
+		int y = (key.getY() % superTileSize) * key.getHeight();
+		int width = Math.min(key.getWidth(), superTile.getWidth() - x);
+		int height = Math.min(key.getHeight(), superTile.getHeight() - y);
+		WritableRaster raster = superTile.getRaster().createCompatibleWritableRaster(width, height);
+		raster.setRect(-x, -y, superTile.getRaster());
+		return new BufferedImage(superTile.getColorModel(), raster, superTile.isAlphaPremultiplied(), null);
+	}
+	
+	/**
+	 * Read a tile of a resolution level computed locally, i.e. for an image without a pyramid in OMERO.
+	 * <p>
+	 * The tile is downsampled from the level below (itself read from the tile cache, downsampled or requested 
+	 * from OMERO at full resolution), and stored in the tile caches so that it only needs to be computed once.
+	 * 
+	 * @param request the tile to read
+	 * @param key the key of the tile
+	 * @return tile
+	 * @throws IOException
+	 */
+	private BufferedImage readDownsampledTile(TileRequest request, TileKey key) throws IOException {
+		return tileRequests.get(key, () -> {
+			BufferedImage img = readCachedDownsampledTile(key);
+			if (img != null)
+				return img;
+			
+			var region = RegionRequest.createInstance(getPath(), getDownsampleForResolution(request.getLevel() - 1), 
+					request.getImageX(), request.getImageY(), request.getImageWidth(), request.getImageHeight(), request.getZ(), request.getT());
+			var previous = readingLevelBelow.get();
+			readingLevelBelow.set(Boolean.TRUE);
+			try {
+				img = BufferedImageTools.resize(readRegion(region), request.getTileWidth(), request.getTileHeight(), true);
+			} finally {
+				if (previous == null)
+					readingLevelBelow.remove();
+			}
+			cacheDownsampledTile(key, img);
+			return img;
+		});
+	}
+	
+	/**
+	 * Read a tile computed locally from the tile caches.
+	 * Multi-channel tiles are cached one channel at a time, as greyscale PNG images.
+	 * @param key
+	 * @return the tile, or null if it (or any of its channels) is not cached
+	 */
+	private BufferedImage readCachedDownsampledTile(TileKey key) {
+		if (!canCacheTiles())
+			return null;
+		try {
+			if (channelWindows == null) {
+				byte[] bytes = getCachedBytes(key);
+				return bytes == null ? null : OmeroImageDecoder.decode(bytes, ImageFormat.PNG);
+			}
+			List<BufferedImage> channels = new ArrayList<>();
+			for (int c = 0; c < channelWindows.length; c++) {
+				byte[] bytes = getCachedBytes(createChannelKey(key, c));
+				if (bytes == null)
+					return null;
+				channels.add(OmeroImageDecoder.decodeGreyscale(bytes, ImageFormat.PNG));
+			}
+			return mergeChannels(channels);
+		} catch (IOException ex) {
+			logger.warn("Unable to decode cached tile {}, it will be computed again: {}", key, ex.getLocalizedMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Store a tile computed locally in the tile caches, as PNG (one image per channel for multi-channel images).
+	 * @param key
+	 * @param img
+	 */
+	private void cacheDownsampledTile(TileKey key, BufferedImage img) {
+		if (!canCacheTiles())
+			return;
+		try {
+			if (channelWindows == null) {
+				cacheBytes(key, encodePNG(img));
+				return;
+			}
+			var raster = img.getRaster();
+			var channel = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+			for (int c = 0; c < channelWindows.length; c++) {
+				channel.getRaster().setSamples(0, 0, img.getWidth(), img.getHeight(), 0, 
+						raster.getSamples(0, 0, img.getWidth(), img.getHeight(), c, (int[])null));
+				cacheBytes(createChannelKey(key, c), encodePNG(channel));
+			}
+		} catch (IOException ex) {
+			logger.warn("Unable to cache tile {}: {}", key, ex.getLocalizedMessage());
+		}
+	}
+	
+	private static byte[] encodePNG(BufferedImage img) throws IOException {
+		var stream = new ByteArrayOutputStream();
+		if (!ImageIO.write(img, "png", stream))
+			throw new IOException("No PNG writer available");
+		return stream.toByteArray();
+	}
+	
+	/**
+	 * Request the specified tile, either as a single RGB image or one channel at a time.
+	 * @param key
+	 * @return tile
+	 * @throws IOException
+	 */
+	private BufferedImage requestTile(TileKey key) throws IOException {
+		if (channelWindows == null)
+			return requestImage(key);
+		
+		return tileRequests.get(key, () -> {
+			var future = requestChannelsAsync(key);
+			try {
+				return future.get();
+			} catch (InterruptedException ex) {
+				future.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while requesting " + key);
+			} catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				if (cause instanceof CompletionException && cause.getCause() != null)
+					cause = cause.getCause();
+				if (cause instanceof IOException)
+					throw new IOException(cause.getLocalizedMessage(), cause);
+				throw new IOException(cause);
+			}
+		});
+	}
+	
+	/**
+	 * Request all the channels of the specified tile in parallel (each rendered as 8-bit greyscale), 
+	 * and merge them into a single image.
+	 * The channels are decoded into pooled images, which are released once merged.
+	 * Cancelling the returned future aborts the requests sent to OMERO if they are still in flight.
+	 * 
+	 * @param key the tile to request
+	 * @return a future completed with the merged channels
+	 */
+	private CompletableFuture<BufferedImage> requestChannelsAsync(TileKey key) {
+		List<CompletableFuture<BufferedImage>> futures = new ArrayList<>();
+		for (int c = 0; c < channelWindows.length; c++) {
+			TileKey channelKey = createChannelKey(key, c);
+			futures.add(requestImageAsync(channelKey, true));
+		}
+		var merged = CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+				.thenApply(v -> mergeChannels(futures.stream().map(CompletableFuture::join).collect(Collectors.toList())));
+		merged.whenComplete((img, ex) -> {
+			if (merged.isCancelled())
+				futures.forEach(f -> f.cancel(true));
+		});
+		return merged;
+	}
+	
+	/**
+	 * Merge the (greyscale) images of each channel into a single 8-bit image.
+	 * @param channels
+	 * @return merged image
+	 */
+	private BufferedImage mergeChannels(List<BufferedImage> channels) {
+		int width = channels.get(0).getWidth();
+		int height = channels.get(0).getHeight();
+		WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, width, height, channels.size(), null);
+		int[] samples = null;
+		for (int c = 0; c < channels.size(); c++) {
+			// The rendered channel might be returned as RGB, in which case all bands are the same
+			samples = channels.get(c).getRaster().getSamples(0, 0, width, height, 0, samples);
+			raster.setSamples(0, 0, width, height, c, samples);
+		}
+		channels.forEach(OmeroImageDecoder::release);
+		if (colorModel == null)
+			colorModel = ColorModelFactory.createColorModel(PixelType.UINT8, getMetadata().getChannels());
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+	
+	/**
+	 * Create the key identifying a single channel of a tile, as it is requested from OMERO.
+	 * @param key the key of the tile
+	 * @param channel the index of the channel
+	 * @return tile key
+	 */
+	private TileKey createChannelKey(TileKey key, int channel) {
+		double[] window = channelWindows[channel];
+		String rendering = formatWindowValue(window[0]) + "-" + formatWindowValue(window[1]) + "-" +
+				(format.isLossless() ? format.getQueryValue() : "q" + quality);
+		return key.forChannel(channel, rendering);
+	}
+	
+	private static String formatWindowValue(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE)
+			return Long.toString((long)value);
+		return Double.toString(value);
+	}
+	
+	/**
+	 * Asynchronous version of {@link #requestImage(TileKey)}, without coalescing identical requests.
+	 * Cancelling the returned future aborts the request sent to OMERO if it is still in flight.
+	 * 
+	 * @param key the tile to request
+	 * @param greyscale true if the tile should be decoded as greyscale (into a pooled image)
+	 * @return a future completed with the tile
+	 */
+	private CompletableFuture<BufferedImage> requestImageAsync(TileKey key, boolean greyscale) {
+		var transport = client.getTransport();
+		var priority = OmeroRequestPriority.current();
+		var result = new CompletableFuture<BufferedImage>();
+		CompletableFuture.supplyAsync(() -> readCachedTile(key, greyscale), transport.getExecutor()).thenCompose(img -> {
+			if (img != null || result.isDone())
+				return CompletableFuture.completedFuture(img);
+			URI uri;
+			try {
+				uri = createTileURI(key);
+			} catch (IOException ex) {
+				return CompletableFuture.failedFuture(ex);
+			}
+			var bytesFuture = tileBytesRequests.getAsync(key, () -> transport.getBytesAsync(uri, priority));
+			// Abort the request if the tile is no longer needed
+			result.whenComplete((r, ex) -> bytesFuture.cancel(true));
+			return bytesFuture.thenApply(bytes -> {
+				try {
+					return decodeTile(key, uri, bytes, greyscale);
+				} catch (IOException ex) {
+					throw new CompletionException(ex);
+				}
+			});
+		}).whenComplete((img, ex) -> {
+			if (ex == null)
+				result.complete(img);
+			else
+				result.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+		});
+		return result;
+	}
+	
+	/**
+	 * Request the region rendered by OMERO for the specified tile, through the transport of the client.
+	 * <p>
+	 * The bytes received are stored in the memory and disk tile caches (if enabled), so that they don't 
+	 * need to be requested again the next time the image is opened.
+	 * Concurrent requests for the same tile (e.g. from different threads) share a single request.
+	 * 
+	 * @param key the tile to request
+	 * @return image
+	 * @throws IOException
+	 */
+	private BufferedImage requestImage(TileKey key) throws IOException {
+		return tileRequests.get(key, () -> {
+			BufferedImage img = readCachedTile(key, false);
+			if (img != null)
+				return img;
+			
+			URI uri = createTileURI(key);
+			var transport = client.getTransport();
+			return decodeTile(key, uri, tileBytesRequests.get(key, () -> transport.getBytes(uri)), false);
+		});
+	}
+	
+	/**
+	 * Read the specified tile from the tile caches.
+	 * @param key
+	 * @param greyscale true if the tile should be decoded as greyscale (into a pooled image)
+	 * @return the tile, or null if it is not cached (or cannot be decoded)
+	 */
+	private BufferedImage readCachedTile(TileKey key, boolean greyscale) {
+		byte[] bytes = getCachedBytes(key);
+		if (bytes == null)
+			return null;
+		try {
+			return greyscale ? OmeroImageDecoder.decodeGreyscale(bytes, format) : OmeroImageDecoder.decode(bytes, format);
+		} catch (IOException ex) {
+			logger.warn("Unable to decode cached tile {}, it will be requested again: {}", key, ex.getLocalizedMessage());
+			removeCachedBytes(key);
+			return null;
+		}
+	}
+	
+	/**
+	 * Return true if the bytes of the tiles received from OMERO can be cached, in memory or on disk.
+	 * @return true if any tile cache is enabled
+	 */
+	static boolean canCacheTiles() {
+		return OmeroMemoryTileCache.getInstance() != null || OmeroTileCache.getInstance() != null;
+	}
+	
+	/**
+	 * Return true if the bytes of the specified tile are in the memory or disk tile cache.
+	 * @param key
+	 * @return true if the tile is cached
+	 */
+	static boolean isTileCached(TileKey key) {
+		var memoryCache = OmeroMemoryTileCache.getInstance();
+		if (memoryCache != null && memoryCache.contains(key))
+			return true;
+		var cache = OmeroTileCache.getInstance();
+		return cache != null && cache.contains(key);
+	}
+	
+	/**
+	 * Return the bytes of the specified tile from the memory tile cache or, failing that, from the disk tile cache
+	 * (in which case they are also added to the memory cache).
+	 * @param key
+	 * @return the bytes, or null if the tile is not cached
+	 */
+	private static byte[] getCachedBytes(TileKey key) {
+		var memoryCache = OmeroMemoryTileCache.getInstance();
+		byte[] bytes = memoryCache == null ? null : memoryCache.get(key);
+		if (bytes != null)
+			return bytes;
+		var cache = OmeroTileCache.getInstance();
+		bytes = cache == null ? null : cache.get(key);
+		if (bytes != null && memoryCache != null)
+			memoryCache.put(key, bytes);
+		return bytes;
+	}
+	
+	/**
+	 * Add the bytes of the specified tile to the memory and disk tile caches (if enabled).
+	 * @param key
+	 * @param bytes
+	 */
+	private static void cacheBytes(TileKey key, byte[] bytes) {
+		var memoryCache = OmeroMemoryTileCache.getInstance();
+		if (memoryCache != null)
+			memoryCache.put(key, bytes);
+		var cache = OmeroTileCache.getInstance();
+		if (cache != null)
+			cache.put(key, bytes);
+	}
+	
+	private static void removeCachedBytes(TileKey key) {
+		var memoryCache = OmeroMemoryTileCache.getInstance();
+		if (memoryCache != null)
+			memoryCache.remove(key);
+		var cache = OmeroTileCache.getInstance();
+		if (cache != null)
+			cache.remove(key);
+	}
+	
+	/**
+	 * Decode the bytes of a tile received from OMERO, and add them to the tile caches.
+	 * @param key
+	 * @param uri the URI used to request the tile
+	 * @param bytes
+	 * @param greyscale true if the tile should be decoded as greyscale (into a pooled image)
+	 * @return the decoded tile
+	 * @throws IOException if the bytes cannot be decoded
+	 */
+	private BufferedImage decodeTile(TileKey key, URI uri, byte[] bytes, boolean greyscale) throws IOException {
+		BufferedImage img;
+		try {
+			img = greyscale ? OmeroImageDecoder.decodeGreyscale(bytes, format) : OmeroImageDecoder.decode(bytes, format);
+		} catch (IOException ex) {
+			throw new IOException("Unable to decode the image returned by " + uri, ex);
+		}
+		cacheBytes(key, bytes);
+		return img;
+	}
+	
+	/**
+	 * Return true if the tiles of this image are rendered by OMERO as RGB JPEGs at all resolution levels,
+	 * i.e. if {@link #readEncodedTileAsync(TileRequest)} can be used.
+	 * @return true if the encoded tiles can be read
+	 */
+	boolean canReadEncodedTiles() {
+		getOriginalMetadata();
+		return !renderRegions && channelWindows == null && !format.isLossless();
+	}
+
+	/**
+	 * Return the quality of the JPEGs requested from OMERO.
+	 * @return quality, between 0 and 1
+	 */
+	double getJpegQuality() {
+		return quality;
+	}
+
+	/**
+	 * Read the specified tile as encoded by OMERO (i.e. a JPEG), without decoding it.
+	 * The tile is read from the tile caches if possible, and added to them otherwise.
+	 * <p>
+	 * This is only available when {@link #canReadEncodedTiles()} returns true.
+	 *
+	 * @param request the tile to read
+	 * @return a future completed with the encoded tile
+	 */
+	CompletableFuture<byte[]> readEncodedTileAsync(TileRequest request) {
+		if (!canReadEncodedTiles())
+			throw new UnsupportedOperationException("Encoded tiles are only available for RGB images rendered as JPEG by OMERO");
+		// Initialized by canReadEncodedTiles()
+		int col = request.getTileX() / getPreferredTileWidth();
+		int row = request.getTileY() / getPreferredTileHeight();
+		TileKey key = createTileKey(request.getLevel(), col, row, request.getZ(), request.getT());
+		byte[] cached = getCachedBytes(key);
+		if (cached != null)
+			return CompletableFuture.completedFuture(cached);
+		URI uri;
+		try {
+			uri = createTileURI(key);
+		} catch (IOException ex) {
+			return CompletableFuture.failedFuture(ex);
+		}
+		var transport = client.getTransport();
+		var priority = OmeroRequestPriority.current();
+		var future = tileBytesRequests.getAsync(key, () -> transport.getBytesAsync(uri, priority));
+		future.thenAccept(bytes -> cacheBytes(key, bytes));
+		return future;
+	}
+
+	/**
+	 * Request the specified tile from OMERO and store it in the tile caches, without decoding it.
+	 * Nothing is requested if the tile is already cached, or if the tile caches are disabled.
+	 * 
+	 * @param key the tile to prefetch
+	 * @return the number of bytes received
+	 * @throws IOException
+	 */
+	long prefetchTile(TileKey key) throws IOException {
+		ensureInitialized();
+		// Tiles computed locally are only cached when read
+		if (renderRegions && key.getLevel() > 0)
+			return 0L;
+		if (!renderRegions && superTileSize > 1)
+			key = createSuperTileKey(key);
+		if (channelWindows == null)
+			return prefetchImage(key);
+		long bytes = 0L;
+		for (int c = 0; c < channelWindows.length; c++)
+			bytes += prefetchImage(createChannelKey(key, c));
+		return bytes;
+	}
+	
+	private long prefetchImage(TileKey key) throws IOException {
+		if (!canCacheTiles() || isTileCached(key))
+			return 0L;
+		URI uri = createTileURI(key);
+		var transport = client.getTransport();
+		// If the tile is read while it is prefetched, the read waits for this request rather than sending its own
+		byte[] bytes = tileBytesRequests.get(key, () -> {
+			byte[] received = transport.getBytes(uri, OmeroRequestPriority.PREFETCH);
+			cacheBytes(key, received);
+			return received;
+		});
+		return bytes.length;
+	}
+	
+	/**
+	 * Read the default thumbnail with the {@link OmeroRequestPriority#OVERVIEW} priority, 
+	 * since it is typically displayed as the overview of a viewer.
+	 */
+	@Override
+	public BufferedImage getDefaultThumbnail(int z, int t) throws IOException {
+		return OmeroRequestPriority.callWith(OmeroRequestPriority.OVERVIEW, () -> super.getDefaultThumbnail(z, t));
+	}
+	
+	@Override
+	public void close() throws Exception {
+		prefetcher.cancel();
+		super.close();
 	}
 	
 	
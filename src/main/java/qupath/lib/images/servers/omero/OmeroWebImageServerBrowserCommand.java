@@ -99,7 +99,6 @@ import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.GridPane;
-import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
@@ -348,7 +347,7 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		tree.setOnMouseClicked(e -> {
 	        if (e.getClickCount() == 2) {
 	        	var selectedItem = tree.getSelectionModel().getSelectedItem();
-	        	if (selectedItem != null && selectedItem.getValue().getType() == OmeroObjectType.IMAGE && isSupported(selectedItem.getValue())) {
+	        	if (selectedItem != null && selectedItem.getValue().getType() == OmeroObjectType.IMAGE) {
 	        		if (qupath.getProject() == null) {
 						try {
 							qupath.openImage(qupath.getViewer(), createObjectURI(selectedItem.getValue()), true, true);
@@ -582,13 +581,8 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 				return "Import OMERO " + selected.get(0).getValue().getType().toString().toLowerCase() + " to QuPath";
 		}, tree.getSelectionModel().selectedItemProperty()));
 		
-		// Disable import button if no item is selected or selected item is not compatible
-		importBtn.disableProperty().bind(
-				Bindings.size(tree.getSelectionModel().getSelectedItems()).lessThan(1).or(
-						Bindings.createBooleanBinding(() -> !tree.getSelectionModel().getSelectedItems().stream().allMatch(obj -> isSupported(obj.getValue())),
-								tree.getSelectionModel().selectedItemProperty())
-						)
-				);
+		// Disable import button if no item is selected
+		importBtn.disableProperty().bind(Bindings.size(tree.getSelectionModel().getSelectedItems()).lessThan(1));
 		
 		// Import button will fetch all the images in the selected object(s) and check their validity
 		importBtn.setOnMouseClicked(e -> {
@@ -609,7 +603,7 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 							return getChildren(uri).parallelStream();
 						return Stream.of(uri);
 					})
-					.filter(obj -> isSupported(obj))
+					.filter(obj -> obj.getType() == OmeroObjectType.IMAGE)
 					.map(obj -> createObjectURI(obj))
 					.toArray(String[]::new);
 			if (validUris.length == 0) {
@@ -956,29 +950,6 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
 		return wi;
 	}
 	
-	/**
-	 * Return whether the image type is supported by QuPath.
-	 * @param omeroObj
-	 * @return isSupported
-	 */
-	private static boolean isSupported(OmeroObject omeroObj) {
-		if (omeroObj == null || omeroObj.getType() != OmeroObjectType.IMAGE)
-			return true;
-		return isUint8((Image)omeroObj) && has3Channels((Image)omeroObj);
-	}
-	
-	private static boolean isUint8(Image image) {
-		if (image == null)
-			return false;
-		return image.getPixelType().equals("uint8");
-	}
-	
-	private static boolean has3Channels(Image image) {
-		if (image == null)
-			return false;
-		return Integer.parseInt(getObjectInfo(7, image).getValue()) == 3;
-	}
-	
 	/**
 	 * Set the specified item and its children to the specified expanded mode
 	 * @param item
@@ -1062,29 +1033,6 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
         		name = item.getName();
         		GridPane gp = new GridPane();
             	gp.addRow(0, tooltipCanvas, new Label(name));
-            	if (!isSupported(item)) {
-            		setOpacity(0.5);
-            		Label notSupportedLabel = new Label("Image not supported:");
-            		notSupportedLabel.setStyle("-fx-text-fill: red;");
-            		
-            		// Clarify to the user WHY it's not supported
-            		Label uint8 = new Label();
-            		if (isUint8((Image)item)) {
-            			uint8.setText("- uint8 " + Character.toString((char)10003));
-            		} else {
-            			uint8.setText("- uint8 " + Character.toString((char)10007));
-            			uint8.setStyle("-fx-text-fill: red;");
-            		}
-            		Label has3Channels = new Label();
-            		if (has3Channels((Image)item)) {
-            			has3Channels.setText("- 3 channels " + Character.toString((char)10003));
-            		} else {
-            			has3Channels.setText("- 3 channels " + Character.toString((char)10007));
-            			has3Channels.setStyle("-fx-text-fill: red;");
-            		}
-            		gp.addRow(1, notSupportedLabel, new HBox(uint8, has3Channels));
-            	}
-            	
             	tooltip.setOnShowing(e -> {
             		// Image tooltip shows the thumbnail (could show icon for other items, but icon is very low quality)
             		if (thumbnailBank.containsKey(item.getId()))
@@ -1105,8 +1053,6 @@ public class OmeroWebImageServerBrowserCommand implements Runnable {
             	tooltip.setGraphic(gp);
             } else {
             	name = item.getName();
-            	if (!isSupported(item))
-            		setOpacity(0.5);
             }
         	
         	// Paint icon
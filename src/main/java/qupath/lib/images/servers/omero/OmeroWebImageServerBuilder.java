@@ -29,12 +29,18 @@ import java.net.URISyntaxException;
 import java.nio.file.AccessDeniedException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import qupath.lib.common.ThreadTools;
 import qupath.lib.gui.dialogs.Dialogs;
+import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerBuilder;
 
@@ -50,19 +56,41 @@ public class OmeroWebImageServerBuilder implements ImageServerBuilder<BufferedIm
 
 	final private static Logger logger = LoggerFactory.getLogger(OmeroWebImageServerBuilder.class);
 
+	/**
+	 * Build a server for the specified image.
+	 * <p>
+	 * If {@link OmeroWebPreferences#lazyServersProperty()} is enabled, the server only requests the metadata of the image 
+	 * when it is needed (which is not the case when opening an image of a project, since its metadata is stored in the project).
+	 * In this case, the access to the image is not checked either if a client is already logged in to the server,
+	 * so that building a server does not need any request.
+	 */
 	@Override
 	public ImageServer<BufferedImage> buildServer(URI uri, String...args) {
-		if (canConnectToOmero(uri, args)) {
+		boolean lazy = OmeroWebPreferences.lazyServersProperty().get();
+		if ((lazy && isLoggedIn(uri)) || canConnectToOmero(uri, args)) {
 			try {
 				URI serverUri = OmeroTools.getServerURI(uri);
 				OmeroWebClient client = OmeroWebClients.getClientFromServerURI(serverUri);
-				return new OmeroWebImageServer(uri, client, args);
+				return new OmeroWebImageServer(uri, client, lazy, args);
 			} catch (IOException e) {
 				Dialogs.showErrorNotification("OMERO web server", uri.toString() + " - " + e.getLocalizedMessage());
 			}
 		}
 		return null;
 	}
+	
+	/**
+	 * Return true if a client is already logged in to the server of the specified URI.
+	 * @param uri
+	 * @return true if logged in
+	 */
+	private static boolean isLoggedIn(URI uri) {
+		var serverUri = OmeroTools.getServerURI(uri);
+		if (serverUri == null)
+			return false;
+		var client = OmeroWebClients.getClientFromServerURI(serverUri);
+		return client != null && client.isLoggedIn();
+	}
 
 
 	@Override
@@ -74,13 +102,7 @@ public class OmeroWebImageServerBuilder implements ImageServerBuilder<BufferedIm
 			try {
 				if (canConnectToOmero(uri, args)) {
 					List<URI> uris = OmeroTools.getURIs(uri);
-					for (var subURI: uris) {
-						try (var server = buildServer(subURI, args)) {
-							builders.add(server.getBuilder());
-						} catch (Exception e) {
-							logger.debug("Unable to create OMERO server", e.getLocalizedMessage());
-						}
-					}					
+					builders.addAll(createBuilders(uris, args));
 				}
 				
 			} catch (IOException e) {
@@ -90,6 +112,72 @@ public class OmeroWebImageServerBuilder implements ImageServerBuilder<BufferedIm
 
 		return UriImageSupport.createInstance(this.getClass(), supportLevel, builders);
 	}
+	
+	/**
+	 * Create the server builders of all the specified images (e.g. the images of a dataset or project), 
+	 * in the same order. Images that cannot be opened are skipped.
+	 * <p>
+	 * The access to the images has already been checked with the URI they were expanded from, so the servers 
+	 * are built directly with the client of the OMERO server, and the only request made for each image is the 
+	 * request of its metadata (which is cached). Several images are handled in parallel.
+	 * 
+	 * @param uris
+	 * @param args
+	 * @return builders
+	 */
+	private static List<ServerBuilder<BufferedImage>> createBuilders(List<URI> uris, String...args) {
+		if (uris.isEmpty())
+			return Collections.emptyList();
+		
+		URI serverUri = OmeroTools.getServerURI(uris.get(0));
+		OmeroWebClient client = OmeroWebClients.getClientFromServerURI(serverUri);
+		int nImages = uris.size();
+		if (nImages == 1) {
+			var builder = createBuilder(uris.get(0), client, args);
+			return builder == null ? Collections.emptyList() : Collections.singletonList(builder);
+		}
+		
+		int nThreads = Math.min(nImages, Math.max(1, PathPrefs.numCommandThreadsProperty().get()));
+		logger.info("Checking {} OMERO images ({} threads)", nImages, nThreads);
+		long startTime = System.currentTimeMillis();
+		
+		var pool = Executors.newFixedThreadPool(nThreads, ThreadTools.createThreadFactory("omero-image-support-", true));
+		var nDone = new AtomicInteger();
+		int logInterval = Math.max(10, nImages / 10);
+		try {
+			List<CompletableFuture<ServerBuilder<BufferedImage>>> futures = new ArrayList<>();
+			for (var subURI: uris) {
+				futures.add(CompletableFuture.supplyAsync(() -> {
+					var builder = createBuilder(subURI, client, args);
+					int n = nDone.incrementAndGet();
+					if (n % logInterval == 0 && n < nImages)
+						logger.info("Checked {}/{} OMERO images", n, nImages);
+					return builder;
+				}, pool));
+			}
+			List<ServerBuilder<BufferedImage>> builders = new ArrayList<>();
+			for (var future: futures) {
+				var builder = future.join();
+				if (builder != null)
+					builders.add(builder);
+			}
+			logger.info("Checked {} OMERO images in {} ms ({} could not be opened)", 
+					nImages, System.currentTimeMillis() - startTime, nImages - builders.size());
+			return builders;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	private static ServerBuilder<BufferedImage> createBuilder(URI uri, OmeroWebClient client, String...args) {
+		// Never lazy: the builder holds the metadata of the image, so it is requested when the server is created
+		try (var server = new OmeroWebImageServer(uri, client, args)) {
+			return server.getBuilder();
+		} catch (Exception e) {
+			logger.debug("Unable to create OMERO server for {}: {}", uri, e.getLocalizedMessage());
+			return null;
+		}
+	}
 
 	/**
 	 * Check whether QuPath can connect to the OMERO server & the OMERO object the given URI represents.
@@ -0,0 +1,301 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.StringProperty;
+import qupath.fx.prefs.controlsfx.PropertyItemBuilder;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.prefs.PathPrefs;
+
+/**
+ * Persistent preferences of the OMERO web extension.
+ * <p>
+ * These can be modified from QuPath's preference pane (under the 'OMERO web' category) or from a script.
+ */
+public final class OmeroWebPreferences {
+
+	private final static String CATEGORY = "OMERO web";
+
+	private final static BooleanProperty tileCacheEnabled = PathPrefs.createPersistentPreference("omero.web.tileCache.enabled", true);
+	private final static IntegerProperty tileCacheMaxSizeMB = PathPrefs.createPersistentPreference("omero.web.tileCache.maxSizeMB", 2048);
+	private final static StringProperty tileCacheDirectory = PathPrefs.createPersistentPreference("omero.web.tileCache.directory", "");
+
+	private final static IntegerProperty memoryTileCacheMaxSizeMB = PathPrefs.createPersistentPreference("omero.web.memoryTileCache.maxSizeMB", 256);
+	private final static IntegerProperty offHeapCacheMaxSizeMB = PathPrefs.createPersistentPreference("omero.web.offHeapCache.maxSizeMB", 0);
+
+	private final static BooleanProperty lazyServers = PathPrefs.createPersistentPreference("omero.web.lazyServers", true);
+	private final static IntegerProperty metadataCacheHours = PathPrefs.createPersistentPreference("omero.web.metadataCache.hours", 24);
+
+	private final static BooleanProperty prefetchEnabled = PathPrefs.createPersistentPreference("omero.web.prefetch.enabled", true);
+	private final static IntegerProperty prefetchMaxBandwidthKB = PathPrefs.createPersistentPreference("omero.web.prefetch.maxBandwidthKB", 4096);
+
+	private final static IntegerProperty requestMaxRetries = PathPrefs.createPersistentPreference("omero.web.requests.maxRetries", 2);
+	private final static BooleanProperty requestHedging = PathPrefs.createPersistentPreference("omero.web.requests.hedging", false);
+	private final static IntegerProperty connectTimeoutSeconds = PathPrefs.createPersistentPreference("omero.web.requests.connectTimeoutSeconds", 20);
+	private final static IntegerProperty requestTimeoutSeconds = PathPrefs.createPersistentPreference("omero.web.requests.timeoutSeconds", 60);
+	private final static IntegerProperty circuitBreakerFailures = PathPrefs.createPersistentPreference("omero.web.requests.circuitBreakerFailures", 5);
+
+	/**
+	 * Suppress default constructor for non-instantiability
+	 */
+	private OmeroWebPreferences() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Property indicating whether the tiles received from OMERO should be cached on disk.
+	 * @return tileCacheEnabled property
+	 */
+	public static BooleanProperty tileCacheEnabledProperty() {
+		return tileCacheEnabled;
+	}
+
+	/**
+	 * Property for the maximum size (in MB) of the disk tile cache. The least recently used
+	 * tiles are deleted when this size is exceeded.
+	 * @return tileCacheMaxSizeMB property
+	 */
+	public static IntegerProperty tileCacheMaxSizeMBProperty() {
+		return tileCacheMaxSizeMB;
+	}
+
+	/**
+	 * Property for the directory of the disk tile cache. If empty, a default directory is used.
+	 * @return tileCacheDirectory property
+	 * @see #getTileCacheDirectory()
+	 */
+	public static StringProperty tileCacheDirectoryProperty() {
+		return tileCacheDirectory;
+	}
+
+	/**
+	 * Property for the maximum size (in MB) of the memory cache of the (compressed) tiles received from OMERO,
+	 * or 0 to disable it. The least recently used tiles are evicted when this size is exceeded.
+	 * @return memoryTileCacheMaxSizeMB property
+	 */
+	public static IntegerProperty memoryTileCacheMaxSizeMBProperty() {
+		return memoryTileCacheMaxSizeMB;
+	}
+
+	/**
+	 * Property for the maximum size (in MB) of the off-heap cache of decoded tiles, or 0 to disable it.
+	 * Changes apply to the tiles read afterwards, the tiles already cached being discarded.
+	 * @return offHeapCacheMaxSizeMB property
+	 */
+	public static IntegerProperty offHeapCacheMaxSizeMBProperty() {
+		return offHeapCacheMaxSizeMB;
+	}
+
+	/**
+	 * Property indicating whether the servers of OMERO images should only request the metadata of their image when needed.
+	 * This avoids a request per image when opening a project (where the metadata of each image is already stored),
+	 * but any error with an image is then only reported when it is read.
+	 * @return lazyServers property
+	 */
+	public static BooleanProperty lazyServersProperty() {
+		return lazyServers;
+	}
+
+	/**
+	 * Property for the number of hours during which the metadata of an image is read from the disk metadata cache
+	 * rather than requested from OMERO, or 0 to always request it.
+	 * @return metadataCacheHours property
+	 * @see #getMetadataCacheDirectory()
+	 */
+	public static IntegerProperty metadataCacheHoursProperty() {
+		return metadataCacheHours;
+	}
+
+	/**
+	 * Property indicating whether the tiles likely to be needed next by the viewer should be
+	 * requested in advance. Prefetched tiles are stored in the memory and disk tile caches, so this has no effect if both are disabled.
+	 * @return prefetchEnabled property
+	 */
+	public static BooleanProperty prefetchEnabledProperty() {
+		return prefetchEnabled;
+	}
+
+	/**
+	 * Property for the maximum bandwidth (in KB/s) used to prefetch tiles, or 0 for no limit.
+	 * @return prefetchMaxBandwidthKB property
+	 */
+	public static IntegerProperty prefetchMaxBandwidthKBProperty() {
+		return prefetchMaxBandwidthKB;
+	}
+
+	/**
+	 * Property for the maximum number of times a request is retried when it fails for a reason
+	 * that might be transient (e.g. a timeout or a server error), or 0 to never retry.
+	 * @return requestMaxRetries property
+	 */
+	public static IntegerProperty requestMaxRetriesProperty() {
+		return requestMaxRetries;
+	}
+
+	/**
+	 * Property indicating whether a duplicate request should be sent when a tile takes longer than
+	 * usual (i.e. than 95% of the recent requests), the first response being used.
+	 * This reduces the impact of slow server workers, at the cost of a few more requests.
+	 * @return requestHedging property
+	 */
+	public static BooleanProperty requestHedgingProperty() {
+		return requestHedging;
+	}
+
+	/**
+	 * Property for the maximum time (in seconds) allowed to connect to an OMERO server.
+	 * Only used for the servers connected to afterwards (i.e. after restarting QuPath).
+	 * @return connectTimeoutSeconds property
+	 */
+	public static IntegerProperty connectTimeoutSecondsProperty() {
+		return connectTimeoutSeconds;
+	}
+
+	/**
+	 * Property for the maximum time (in seconds) allowed to receive a response once a request is sent,
+	 * or to receive the next bytes of a response being read.
+	 * @return requestTimeoutSeconds property
+	 */
+	public static IntegerProperty requestTimeoutSecondsProperty() {
+		return requestTimeoutSeconds;
+	}
+
+	/**
+	 * Property for the number of consecutive failed requests after which requests to a server are paused
+	 * (failing immediately) until the server responds again, or 0 to never pause requests.
+	 * @return circuitBreakerFailures property
+	 * @see OmeroCircuitBreaker
+	 */
+	public static IntegerProperty circuitBreakerFailuresProperty() {
+		return circuitBreakerFailures;
+	}
+
+	/**
+	 * Return the directory of the disk tile cache, i.e. the one specified by {@link #tileCacheDirectoryProperty()}
+	 * or (if none) a directory inside the QuPath user directory (or the temporary directory if there is no user directory).
+	 * @return tile cache directory
+	 */
+	public static Path getTileCacheDirectory() {
+		String dir = tileCacheDirectory.get();
+		if (dir != null && !dir.isBlank())
+			return Paths.get(dir);
+		String userPath = PathPrefs.getUserPath();
+		if (userPath != null)
+			return Paths.get(userPath, "cache", "omero-tiles");
+		return Paths.get(System.getProperty("java.io.tmpdir"), "qupath-omero-tiles");
+	}
+
+	/**
+	 * Return the directory of the disk metadata cache, i.e. a directory inside the QuPath user directory
+	 * (or the temporary directory if there is no user directory).
+	 * @return metadata cache directory
+	 */
+	public static Path getMetadataCacheDirectory() {
+		String userPath = PathPrefs.getUserPath();
+		if (userPath != null)
+			return Paths.get(userPath, "cache", "omero-metadata");
+		return Paths.get(System.getProperty("java.io.tmpdir"), "qupath-omero-metadata");
+	}
+
+	/**
+	 * Add the preferences of the extension to the preference pane of QuPath.
+	 * @param qupath
+	 */
+	static void installPreferences(QuPathGUI qupath) {
+		var items = qupath.getPreferencePane().getPropertySheet().getItems();
+		items.add(new PropertyItemBuilder<>(tileCacheEnabled, Boolean.class)
+				.name("Cache tiles on disk")
+				.category(CATEGORY)
+				.description("Store the tiles received from OMERO on disk, so that images can be reopened without requesting them again.")
+				.build());
+		items.add(new PropertyItemBuilder<>(tileCacheMaxSizeMB, Integer.class)
+				.name("Tile cache size (MB)")
+				.category(CATEGORY)
+				.description("Maximum size of the disk tile cache. The least recently used tiles are deleted first.")
+				.build());
+		items.add(new PropertyItemBuilder<>(tileCacheDirectory, String.class)
+				.name("Tile cache directory")
+				.category(CATEGORY)
+				.description("Directory of the disk tile cache. Leave empty to use a directory inside the QuPath user directory.")
+				.build());
+		items.add(new PropertyItemBuilder<>(memoryTileCacheMaxSizeMB, Integer.class)
+				.name("Memory tile cache size (MB)")
+				.category(CATEGORY)
+				.description("Memory used to keep the compressed tiles received from OMERO (decoded again when needed), or 0 to disable this cache.")
+				.build());
+		items.add(new PropertyItemBuilder<>(offHeapCacheMaxSizeMB, Integer.class)
+				.name("Off-heap tile cache size (MB)")
+				.category(CATEGORY)
+				.description("Memory (outside the Java heap) used to keep decoded tiles, or 0 to disable this cache. Limited by the JVM option -XX:MaxDirectMemorySize.")
+				.build());
+		items.add(new PropertyItemBuilder<>(lazyServers, Boolean.class)
+				.name("Open images lazily")
+				.category(CATEGORY)
+				.description("Only request the metadata of an image when it is needed, using the metadata stored in the project otherwise.")
+				.build());
+		items.add(new PropertyItemBuilder<>(metadataCacheHours, Integer.class)
+				.name("Metadata cache duration (hours)")
+				.category(CATEGORY)
+				.description("Number of hours during which the metadata of an image is read from disk rather than requested from OMERO again, or 0 to always request it.")
+				.build());
+		items.add(new PropertyItemBuilder<>(prefetchEnabled, Boolean.class)
+				.name("Prefetch tiles")
+				.category(CATEGORY)
+				.description("Request in advance the tiles likely to be needed next when panning or zooming (requires the memory or disk tile cache).")
+				.build());
+		items.add(new PropertyItemBuilder<>(prefetchMaxBandwidthKB, Integer.class)
+				.name("Prefetch bandwidth (KB/s)")
+				.category(CATEGORY)
+				.description("Maximum bandwidth used to prefetch tiles, or 0 for no limit.")
+				.build());
+		items.add(new PropertyItemBuilder<>(requestMaxRetries, Integer.class)
+				.name("Request retries")
+				.category(CATEGORY)
+				.description("Maximum number of times a failed tile request is retried (with an increasing delay), or 0 to never retry.")
+				.build());
+		items.add(new PropertyItemBuilder<>(requestHedging, Boolean.class)
+				.name("Hedge slow requests")
+				.category(CATEGORY)
+				.description("Send a duplicate tile request when the first one is slower than usual, and use the first response.")
+				.build());
+		items.add(new PropertyItemBuilder<>(connectTimeoutSeconds, Integer.class)
+				.name("Connection timeout (s)")
+				.category(CATEGORY)
+				.description("Maximum time allowed to connect to an OMERO server (used after restarting QuPath).")
+				.build());
+		items.add(new PropertyItemBuilder<>(requestTimeoutSeconds, Integer.class)
+				.name("Request timeout (s)")
+				.category(CATEGORY)
+				.description("Maximum time allowed to wait for a response from OMERO (or for the rest of a response) before the request fails.")
+				.build());
+		items.add(new PropertyItemBuilder<>(circuitBreakerFailures, Integer.class)
+				.name("Pause requests after failures")
+				.category(CATEGORY)
+				.description("Number of consecutive failed requests after which requests to an unresponsive server fail immediately until it responds again, or 0 to disable.")
+				.build());
+	}
+}
@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.omero.OmeroImageDecoder.ImageFormat;
+
+/**
+ * Benchmark of the size and decoding time of tiles in each {@link ImageFormat}, comparing
+ * {@code ImageIO.read(InputStream)} (as tiles were decoded before {@link OmeroImageDecoder}) with
+ * {@link OmeroImageDecoder#decode(byte[], ImageFormat)}.
+ * <p>
+ * Tiles are synthetic RGB images with smooth structures and some noise, which compress roughly like rendered
+ * brightfield tiles. Options (all optional) are given as {@code --name value}: {@code size} (tile width and height, px),
+ * {@code iterations} (decodes per format and method) and {@code runs}, e.g. with
+ * {@code gradlew omeroBenchmark -Pbenchmark=OmeroImageDecoderBenchmark --args="--size 256"}.
+ */
+class OmeroImageDecoderBenchmark {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroImageDecoderBenchmark.class);
+
+	/**
+	 * Run the benchmark.
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int size = 512;
+		int nIterations = 200;
+		int nRuns = 3;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			int value = Integer.parseInt(args[i + 1]);
+			switch (args[i]) {
+			case "--size":
+				size = value;
+				break;
+			case "--iterations":
+				nIterations = value;
+				break;
+			case "--runs":
+				nRuns = value;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		var img = createTile(size);
+		logger.info("Decoding {}x{} px RGB tiles {} times per run", size, size, nIterations);
+		for (var format : ImageFormat.values()) {
+			byte[] bytes = encode(img, format);
+			logger.info("{}: {} KB per tile", format, bytes.length / 1024);
+			for (int run = 0; run < nRuns; run++) {
+				double imageIOTime = time(nIterations, () -> ImageIO.read(new ByteArrayInputStream(bytes)));
+				double decoderTime = time(nIterations, () -> OmeroImageDecoder.decode(bytes, format));
+				logger.info("{} run {}: ImageIO.read(InputStream) {} ms/tile, decoder {} ms/tile", format, run + 1,
+						String.format("%.2f", imageIOTime), String.format("%.2f", decoderTime));
+			}
+		}
+	}
+
+	/**
+	 * Decode the same tile repeatedly, and return the mean time in milliseconds.
+	 */
+	private static double time(int nIterations, TileDecoder decoder) throws IOException {
+		long startTime = System.nanoTime();
+		for (int i = 0; i < nIterations; i++) {
+			if (decoder.decode() == null)
+				throw new IOException("Unable to decode a tile");
+		}
+		return (System.nanoTime() - startTime) / 1e6 / nIterations;
+	}
+
+	private static BufferedImage createTile(int size) {
+		var img = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+		var random = new Random(42L);
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				double structure = Math.sin(x * 0.05) * Math.cos(y * 0.03) + Math.sin((x + y) * 0.01);
+				int noise = (int)(random.nextGaussian() * 8);
+				int r = clip(220 - (int)(structure * 40) + noise);
+				int g = clip(180 - (int)(structure * 60) + noise);
+				int b = clip(210 - (int)(structure * 20) + noise);
+				img.setRGB(x, y, r << 16 | g << 8 | b);
+			}
+		}
+		return img;
+	}
+
+	private static int clip(int value) {
+		return Math.max(0, Math.min(255, value));
+	}
+
+	private static byte[] encode(BufferedImage img, ImageFormat format) throws IOException {
+		var output = new ByteArrayOutputStream();
+		if (!ImageIO.write(img, format.getImageIOName(), output))
+			throw new IOException("No writer for " + format);
+		return output.toByteArray();
+	}
+
+	@FunctionalInterface
+	private static interface TileDecoder {
+
+		BufferedImage decode() throws IOException;
+
+	}
+
+}
@@ -0,0 +1,181 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.GsonBuilder;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import qupath.lib.images.servers.omero.OmeroShapes.OmeroShape;
+
+/**
+ * Benchmark of reading the ROIs of an image with many shapes from a {@link OmeroMockServer}, comparing
+ * the tree of {@code JsonElement}s of all pages deserialized shape by shape (as ROIs were read before
+ * {@link OmeroShapes#readShapes(com.google.gson.stream.JsonReader)}) with the shapes decoded directly from the responses.
+ * <p>
+ * The peak heap is the largest heap usage after a garbage collection (i.e. roughly the most data kept alive at once),
+ * so it is more accurate with a small heap (e.g. {@code -Xmx256m}), which is collected more often.
+ * It includes the (small) pages built by the mock server, which runs in the same JVM.
+ * Options (all optional) are given as {@code --name value}: {@code rois}, {@code points} (per polygon) and {@code runs}, e.g. with
+ * {@code gradlew omeroBenchmark -Pbenchmark=OmeroJsonBenchmark --args="--rois 20000"}.
+ */
+class OmeroJsonBenchmark {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroJsonBenchmark.class);
+
+	/**
+	 * Run the benchmark.
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int nRois = 20_000;
+		int nPoints = 140;
+		int nRuns = 3;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			int value = Integer.parseInt(args[i + 1]);
+			switch (args[i]) {
+			case "--rois":
+				nRois = value;
+				break;
+			case "--points":
+				nPoints = value;
+				break;
+			case "--runs":
+				nRuns = value;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		var builder = OmeroMockServer.builder()
+				.roisPerImage(nRois)
+				.pointsPerRoi(nPoints);
+		try (var server = builder.build()) {
+			URI uri = server.getURI();
+			logger.info("Reading {} polygons of {} points, with {} MB max heap", nRois, nPoints, Runtime.getRuntime().maxMemory() / (1024 * 1024));
+			for (int run = 0; run < nRuns; run++) {
+				long bytesSent = server.getBytesSent();
+				var tree = measure(() -> readTree(uri));
+				double sizeMB = (server.getBytesSent() - bytesSent) / (1024.0 * 1024.0);
+				var streaming = measure(() -> OmeroRequests.requestShapes(uri.getScheme(), uri.getHost(), uri.getPort(), "1"));
+				if (tree.nShapes != nRois || streaming.nShapes != nRois)
+					throw new IllegalStateException("Expected " + nRois + " shapes, but read " + tree.nShapes + " and " + streaming.nShapes);
+				logger.info("Run {} ({} MB of JSON): tree {} ms, {} MB peak heap; streaming {} ms, {} MB peak heap",
+						run + 1, String.format("%.1f", sizeMB), tree.millis, tree.peakMB, streaming.millis, streaming.peakMB);
+			}
+			OmeroTransports.close(uri);
+		}
+	}
+
+	/**
+	 * Read all the pages as JsonElements, then deserialize each shape.
+	 */
+	private static List<OmeroShape> readTree(URI serverURI) throws Exception {
+		var data = OmeroRequests.requestROIs(serverURI.getScheme(), serverURI.getHost(), serverURI.getPort(), "1");
+		var gson = new GsonBuilder().registerTypeAdapter(OmeroShape.class, new OmeroShapes.GsonShapeDeserializer()).setLenient().create();
+		List<OmeroShape> shapes = new ArrayList<>();
+		for (var roiElement : data) {
+			for (var shapeElement : roiElement.getAsJsonObject().getAsJsonArray("shapes")) {
+				var shape = gson.fromJson(shapeElement, OmeroShape.class);
+				if (shape != null)
+					shapes.add(shape);
+			}
+		}
+		return shapes;
+	}
+
+	private static Result measure(ShapeReader reader) throws Exception {
+		var listener = new PeakHeapListener();
+		System.gc();
+		long baseline = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		for (var gc : ManagementFactory.getGarbageCollectorMXBeans())
+			((NotificationEmitter)gc).addNotificationListener(listener, null, null);
+		try {
+			long startTime = System.nanoTime();
+			var shapes = reader.read();
+			long millis = (System.nanoTime() - startTime) / 1_000_000;
+			// Notifications are sent asynchronously
+			Thread.sleep(100);
+			return new Result(shapes.size(), millis, Math.max(0, listener.peak.get() - baseline) / (1024 * 1024));
+		} finally {
+			for (var gc : ManagementFactory.getGarbageCollectorMXBeans())
+				((NotificationEmitter)gc).removeNotificationListener(listener);
+		}
+	}
+
+	/**
+	 * Record the largest heap usage after a garbage collection.
+	 */
+	private static class PeakHeapListener implements NotificationListener {
+
+		private final AtomicLong peak = new AtomicLong();
+
+		@Override
+		public void handleNotification(Notification notification, Object handback) {
+			if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+				return;
+			var info = GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+			long used = 0;
+			for (var usage : info.getGcInfo().getMemoryUsageAfterGc().values())
+				used += usage.getUsed();
+			peak.accumulateAndGet(used, Math::max);
+		}
+
+	}
+
+	private static class Result {
+
+		private final int nShapes;
+		private final long millis;
+		private final long peakMB;
+
+		private Result(int nShapes, long millis, long peakMB) {
+			this.nShapes = nShapes;
+			this.millis = millis;
+			this.peakMB = peakMB;
+		}
+
+	}
+
+	@FunctionalInterface
+	private static interface ShapeReader {
+
+		List<OmeroShape> read() throws Exception;
+
+	}
+
+}
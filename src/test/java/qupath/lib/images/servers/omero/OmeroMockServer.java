@@ -0,0 +1,877 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import qupath.lib.common.ThreadTools;
+
+/**
+ * Local OMERO.web serving synthetic projects, datasets, images, ROIs and tiles, with a configurable latency,
+ * bandwidth and number of workers. It is used to benchmark and load-test the extension without a real OMERO server,
+ * e.g. to reproduce throughput problems offline.
+ * <p>
+ * The mock implements the subset of the JSON API, webgateway and webclient endpoints requested by the extension.
+ * All the images are RGB (8-bit), and all requests are accepted without logging in.
+ * It can be started from code:
+ * <pre>{@code
+ * try (var server = OmeroMockServer.builder().latency(50).bandwidth(10_000_000).build()) {
+ *     var uri = server.getURI().resolve("/webclient/?show=image-1");
+ *     ...
+ * }
+ * }</pre>
+ * or from the command line (see {@link #main(String[])}), e.g. with {@code gradlew omeroMockServer --args="--latency 50"}.
+ * <p>
+ * The mock is part of the test sources, since it relies on the {@code jdk.httpserver} module 
+ * (which is not necessarily part of the runtime QuPath is distributed with).
+ */
+final class OmeroMockServer implements AutoCloseable {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroMockServer.class);
+
+	private static final String CSRF_TOKEN = "mock-csrf-token";
+
+	private static final String SCHEMA = "http://www.openmicroscopy.org/Schemas/OME/2016-06#";
+
+	/**
+	 * Default (and maximum) number of objects per page of the JSON API, as in OMERO.web
+	 */
+	private static final int DEFAULT_LIMIT = 200;
+	private static final int MAX_LIMIT = 500;
+
+	/**
+	 * Size of the chunks in which responses are written, when the bandwidth is limited
+	 */
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	private static final Pattern PATTERN_OBJECTS = Pattern.compile("/api/v0/m/(projects|datasets|images)/(?:(\\d+)/?(?:(datasets|images)/?)?)?");
+	private static final Pattern PATTERN_IMAGE_DATA = Pattern.compile("/webgateway/imgData/(\\d+)/?");
+	private static final Pattern PATTERN_RENDER_REGION = Pattern.compile("/webgateway/render_image_region/(\\d+)/(\\d+)/(\\d+)/?");
+	private static final Pattern PATTERN_THUMBNAIL = Pattern.compile("/webgateway/render_thumbnail/(\\d+)(?:/(\\d+))?/?");
+
+	static {
+		// Send responses without waiting for the client's ACK (Nagle's algorithm), otherwise many requests take 40 ms more
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final Builder builder;
+	private final HttpServer server;
+	private final ExecutorService pool;
+
+	/**
+	 * Encoded tiles, by size and format (all tiles of the same size are identical)
+	 */
+	private final Map<String, byte[]> encodedImages = new ConcurrentHashMap<>();
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	/**
+	 * Time (from {@link System#nanoTime()}) at which the next chunk can be sent without exceeding the bandwidth
+	 */
+	private long nextSendNanos = System.nanoTime();
+
+	private OmeroMockServer(Builder builder) throws IOException {
+		this.builder = builder;
+		server = HttpServer.create(new InetSocketAddress("localhost", builder.port), 0);
+		pool = Executors.newFixedThreadPool(builder.workers, ThreadTools.createThreadFactory("omero-mock-", true));
+		server.setExecutor(pool);
+		server.createContext("/", this::handle);
+		server.start();
+		logger.info("Mock OMERO.web started at {} ({} images)", getURI(), getImageCount());
+	}
+
+	/**
+	 * Create a builder to configure and start a mock server.
+	 * @return builder
+	 */
+	static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Return the URI of the server (e.g. {@code http://localhost:4080}).
+	 * @return uri
+	 */
+	URI getURI() {
+		return URI.create("http://localhost:" + server.getAddress().getPort());
+	}
+
+	/**
+	 * Return the number of requests received since the server was started.
+	 * @return request count
+	 */
+	long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * Return the number of bytes sent in response bodies since the server was started.
+	 * @return bytes sent
+	 */
+	long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Return the total number of images served.
+	 * @return image count
+	 */
+	int getImageCount() {
+		return builder.projects * builder.datasetsPerProject * builder.imagesPerDataset;
+	}
+
+	/**
+	 * Stop the server, waiting at most one second for the requests in progress.
+	 */
+	@Override
+	public void close() {
+		server.stop(1);
+		pool.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requestCount.incrementAndGet();
+		try (exchange) {
+			if (builder.latency > 0)
+				Thread.sleep(builder.latency);
+			String path = exchange.getRequestURI().getPath();
+			var query = parseQuery(exchange.getRequestURI().getRawQuery());
+			boolean isPost = "POST".equalsIgnoreCase(exchange.getRequestMethod());
+			if (isPost)
+				exchange.getRequestBody().readAllBytes();
+			route(exchange, path, query, isPost);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (IOException | UncheckedIOException ex) {
+			// Most likely the client aborted the request
+			logger.debug("Unable to respond to {}: {}", exchange.getRequestURI(), ex.getLocalizedMessage());
+		} catch (RuntimeException ex) {
+			logger.warn("Error handling " + exchange.getRequestURI(), ex);
+		}
+	}
+
+	private void route(HttpExchange exchange, String path, Map<String, String> query, boolean isPost) throws IOException, InterruptedException {
+		String base = getURI().toString();
+		Matcher matcher;
+		if (path.equals("/api/") || path.equals("/api")) {
+			var version = new JsonObject();
+			version.addProperty("version", "0");
+			version.addProperty("url:base", base + "/api/v0/");
+			sendJson(exchange, data(array(version)));
+		} else if (path.equals("/api/v0/")) {
+			var json = new JsonObject();
+			for (String name: new String[] {"servers", "login", "token", "projects", "datasets", "images"})
+				json.addProperty("url:" + name, base + "/api/v0/" + (name.equals("projects") || name.equals("datasets") || name.equals("images") ? "m/" : "") + name + "/");
+			sendJson(exchange, json);
+		} else if (path.equals("/api/v0/servers/")) {
+			var json = new JsonObject();
+			json.addProperty("id", 1);
+			json.addProperty("host", "localhost");
+			json.addProperty("port", 4064);
+			json.addProperty("server", "omero");
+			sendJson(exchange, data(array(json)));
+		} else if (path.equals("/api/v0/token/")) {
+			var json = new JsonObject();
+			json.addProperty("data", CSRF_TOKEN);
+			sendJson(exchange, json);
+		} else if (path.equals("/api/v0/login/") && isPost) {
+			var context = new JsonObject();
+			context.addProperty("userId", 2);
+			context.addProperty("userName", "mock");
+			context.addProperty("groupId", 3);
+			context.addProperty("groupName", "mock-group");
+			var json = new JsonObject();
+			json.addProperty("success", true);
+			json.add("eventContext", context);
+			sendJson(exchange, json);
+		} else if (path.equals("/webclient/keepalive_ping/") || path.equals("/webclient/logout/")) {
+			send(exchange, 200, "text/plain", "OK".getBytes(StandardCharsets.UTF_8));
+		} else if ((matcher = PATTERN_OBJECTS.matcher(path)).matches()) {
+			sendObjects(exchange, matcher, query);
+		} else if (path.equals("/api/v0/m/rois/")) {
+			sendRois(exchange, parseInt(query.get("image"), -1), query);
+		} else if ((matcher = PATTERN_IMAGE_DATA.matcher(path)).matches()) {
+			int id = Integer.parseInt(matcher.group(1));
+			if (isImage(id))
+				sendJson(exchange, createImageData(id));
+			else
+				sendError(exchange, 404);
+		} else if ((matcher = PATTERN_RENDER_REGION.matcher(path)).matches()) {
+			sendRegion(exchange, Integer.parseInt(matcher.group(1)), query);
+		} else if ((matcher = PATTERN_THUMBNAIL.matcher(path)).matches()) {
+			int size = matcher.group(2) == null ? 96 : Integer.parseInt(matcher.group(2));
+			sendImage(exchange, size, size, "jpeg");
+		} else if (path.startsWith("/static/webgateway/img/") || path.startsWith("/static/webclient/image/")) {
+			sendImage(exchange, 16, 16, "png");
+		} else if (path.equals("/webclient/api/annotations/")) {
+			var json = new JsonObject();
+			json.add("annotations", new JsonArray());
+			json.add("experimenters", new JsonArray());
+			sendJson(exchange, json);
+		} else if (path.equals("/webclient/api/images/") || path.equals("/webclient/api/datasets/")) {
+			var json = new JsonObject();
+			json.add(path.contains("images") ? "images" : "datasets", new JsonArray());
+			sendJson(exchange, json);
+		} else if (path.equals("/webclient/load_searching/form/")) {
+			send(exchange, 200, "text/html", "<html><body>No results found</body></html>".getBytes(StandardCharsets.UTF_8));
+		} else if (path.equals("/iviewer/persist_rois/") && isPost) {
+			var json = new JsonObject();
+			json.add("ids", new JsonObject());
+			sendJson(exchange, json);
+		} else {
+			sendError(exchange, 404);
+		}
+	}
+
+
+	/*
+	 * Synthetic data. Objects are numbered from 1, so that project p contains datasets
+	 * (p-1)*D+1 to p*D, and dataset d contains images (d-1)*I+1 to d*I.
+	 */
+
+	private boolean isImage(int id) {
+		return id >= 1 && id <= getImageCount();
+	}
+
+	private int getCount(String type) {
+		switch (type) {
+		case "projects":
+			return builder.projects;
+		case "datasets":
+			return builder.projects * builder.datasetsPerProject;
+		default:
+			return getImageCount();
+		}
+	}
+
+	private void sendObjects(HttpExchange exchange, Matcher matcher, Map<String, String> query) throws IOException, InterruptedException {
+		String type = matcher.group(1);
+		String childType = matcher.group(3);
+		if (matcher.group(2) == null) {
+			// Orphaned objects are never used by the mock
+			if ("true".equals(query.get("orphaned")))
+				sendPage(exchange, type, 0, 0, query);
+			else
+				sendPage(exchange, type, 1, getCount(type), query);
+			return;
+		}
+		int id = Integer.parseInt(matcher.group(2));
+		if (id < 1 || id > getCount(type)) {
+			sendError(exchange, 404);
+			return;
+		}
+		if (childType == null) {
+			sendJson(exchange, data(createObject(type, id)));
+			return;
+		}
+		int nChildren = type.equals("projects") ? builder.datasetsPerProject : builder.imagesPerDataset;
+		if (type.equals("images") || (type.equals("projects") != childType.equals("datasets")))
+			sendError(exchange, 404);
+		else
+			sendPage(exchange, childType, (id - 1) * nChildren + 1, nChildren, query);
+	}
+
+	private void sendPage(HttpExchange exchange, String type, int firstId, int count, Map<String, String> query) throws IOException, InterruptedException {
+		int offset = Math.max(0, parseInt(query.get("offset"), 0));
+		int limit = Math.min(MAX_LIMIT, Math.max(1, parseInt(query.get("limit"), DEFAULT_LIMIT)));
+		var array = new JsonArray();
+		for (int i = offset; i < Math.min(count, offset + limit); i++)
+			array.add(createObject(type, firstId + i));
+		sendJson(exchange, page(array, count, limit));
+	}
+
+	private JsonObject createObject(String type, int id) {
+		var json = new JsonObject();
+		String base = getURI().toString();
+		json.addProperty("@id", id);
+		var details = new JsonObject();
+		var owner = new JsonObject();
+		owner.addProperty("@id", 2);
+		owner.addProperty("FirstName", "Mock");
+		owner.addProperty("LastName", "User");
+		owner.addProperty("UserName", "mock");
+		details.add("owner", owner);
+		var group = new JsonObject();
+		group.addProperty("@id", 3);
+		group.addProperty("Name", "mock-group");
+		details.add("group", group);
+		json.add("omero:details", details);
+
+		switch (type) {
+		case "projects":
+			json.addProperty("@type", SCHEMA + "Project");
+			json.addProperty("Name", "Project " + id);
+			json.addProperty("omero:childCount", builder.datasetsPerProject);
+			json.addProperty("url:project", base + "/api/v0/m/projects/" + id + "/");
+			json.addProperty("url:datasets", base + "/api/v0/m/projects/" + id + "/datasets/");
+			break;
+		case "datasets":
+			json.addProperty("@type", SCHEMA + "Dataset");
+			json.addProperty("Name", "Dataset " + id);
+			json.addProperty("omero:childCount", builder.imagesPerDataset);
+			json.addProperty("url:dataset", base + "/api/v0/m/datasets/" + id + "/");
+			json.addProperty("url:images", base + "/api/v0/m/datasets/" + id + "/images/");
+			break;
+		default:
+			json.addProperty("@type", SCHEMA + "Image");
+			json.addProperty("Name", "Image " + id);
+			json.addProperty("url:image", base + "/api/v0/m/images/" + id + "/");
+			var pixels = new JsonObject();
+			pixels.addProperty("SizeX", builder.width);
+			pixels.addProperty("SizeY", builder.height);
+			pixels.addProperty("SizeZ", 1);
+			pixels.addProperty("SizeC", 3);
+			pixels.addProperty("SizeT", 1);
+			pixels.add("PhysicalSizeX", createLength(builder.pixelSize));
+			pixels.add("PhysicalSizeY", createLength(builder.pixelSize));
+			var pixelType = new JsonObject();
+			pixelType.addProperty("value", "uint8");
+			pixels.add("Type", pixelType);
+			json.add("Pixels", pixels);
+		}
+		return json;
+	}
+
+	private static JsonObject createLength(double value) {
+		var json = new JsonObject();
+		json.addProperty("Symbol", "\u00b5m");
+		json.addProperty("Value", value);
+		return json;
+	}
+
+	private JsonObject createImageData(int id) {
+		var json = new JsonObject();
+		json.addProperty("id", id);
+		var size = new JsonObject();
+		size.addProperty("width", builder.width);
+		size.addProperty("height", builder.height);
+		size.addProperty("c", 3);
+		size.addProperty("z", 1);
+		size.addProperty("t", 1);
+		json.add("size", size);
+		var pixelSize = new JsonObject();
+		pixelSize.addProperty("x", builder.pixelSize);
+		pixelSize.addProperty("y", builder.pixelSize);
+		json.add("pixel_size", pixelSize);
+		var meta = new JsonObject();
+		meta.addProperty("imageId", id);
+		meta.addProperty("imageName", "Image " + id);
+		meta.addProperty("pixelsType", "uint8");
+		json.add("meta", meta);
+
+		var channels = new JsonArray();
+		String[] colors = {"FF0000", "00FF00", "0000FF"};
+		for (int c = 0; c < 3; c++) {
+			var channel = new JsonObject();
+			channel.addProperty("label", "Channel " + (c + 1));
+			channel.addProperty("color", colors[c]);
+			channel.addProperty("active", true);
+			var window = new JsonObject();
+			window.addProperty("min", 0);
+			window.addProperty("max", 255);
+			window.addProperty("start", 0);
+			window.addProperty("end", 255);
+			channel.add("window", window);
+			channels.add(channel);
+		}
+		json.add("channels", channels);
+
+		int levels = getLevelCount();
+		json.addProperty("tiles", true);
+		json.addProperty("levels", levels);
+		var zoom = new JsonObject();
+		for (int level = 0; level < levels; level++)
+			zoom.addProperty(Integer.toString(level), 1.0 / (1 << level));
+		json.add("zoomLevelScaling", zoom);
+		var tileSize = new JsonObject();
+		tileSize.addProperty("width", builder.tileSize);
+		tileSize.addProperty("height", builder.tileSize);
+		json.add("tile_size", tileSize);
+		json.addProperty("nominalMagnification", 20);
+		return json;
+	}
+
+	/**
+	 * Return the number of resolution levels, halving the size of the image until it fits in one tile.
+	 */
+	private int getLevelCount() {
+		int levels = 1;
+		while (Math.max(builder.width, builder.height) >> (levels - 1) > builder.tileSize)
+			levels++;
+		return levels;
+	}
+
+	private void sendRois(HttpExchange exchange, int imageId, Map<String, String> query) throws IOException, InterruptedException {
+		if (!isImage(imageId)) {
+			sendError(exchange, 404);
+			return;
+		}
+		int offset = Math.max(0, parseInt(query.get("offset"), 0));
+		int limit = Math.min(MAX_LIMIT, Math.max(1, parseInt(query.get("limit"), DEFAULT_LIMIT)));
+		var array = new JsonArray();
+		for (int i = offset; i < Math.min(builder.roisPerImage, offset + limit); i++) {
+			// Random but reproducible polygons
+			var random = new Random(imageId * 31L + i);
+			double cx = random.nextDouble() * builder.width;
+			double cy = random.nextDouble() * builder.height;
+			double radius = 10 + random.nextDouble() * 100;
+			var points = new StringBuilder();
+			for (int p = 0; p < builder.pointsPerRoi; p++) {
+				double theta = 2 * Math.PI * p / builder.pointsPerRoi;
+				double r = radius * (0.75 + 0.25 * random.nextDouble());
+				if (p > 0)
+					points.append(' ');
+				// Rounded to 2 decimals without String.format, which would dominate the time to send large responses
+				points.append(Math.round((cx + r * Math.cos(theta)) * 100) / 100.0)
+						.append(',')
+						.append(Math.round((cy + r * Math.sin(theta)) * 100) / 100.0);
+			}
+			var shape = new JsonObject();
+			shape.addProperty("@id", imageId * 100_000L + i);
+			shape.addProperty("@type", SCHEMA + "Polygon");
+			shape.addProperty("TheZ", 0);
+			shape.addProperty("TheT", 0);
+			shape.addProperty("Points", points.toString());
+			var shapes = new JsonArray();
+			shapes.add(shape);
+			var roi = new JsonObject();
+			roi.addProperty("@id", imageId * 100_000L + i);
+			roi.addProperty("@type", SCHEMA + "ROI");
+			roi.add("shapes", shapes);
+			array.add(roi);
+		}
+		sendJson(exchange, page(array, builder.roisPerImage, limit));
+	}
+
+	private void sendRegion(HttpExchange exchange, int id, Map<String, String> query) throws IOException, InterruptedException {
+		int[] region;
+		int level = 0;
+		if (query.containsKey("tile")) {
+			// level, column, row, width, height
+			int[] tile = parseInts(query.get("tile"), 5);
+			if (tile == null) {
+				sendError(exchange, 400);
+				return;
+			}
+			level = tile[0];
+			region = new int[] {tile[1] * tile[3], tile[2] * tile[4], tile[3], tile[4]};
+		} else {
+			region = parseInts(query.get("region"), 4);
+		}
+		if (!isImage(id) || region == null || level < 0 || level >= getLevelCount()) {
+			sendError(exchange, 404);
+			return;
+		}
+		// Clip to the bounds of the level, as OMERO does
+		int levelWidth = (builder.width + (1 << level) - 1) >> level;
+		int levelHeight = (builder.height + (1 << level) - 1) >> level;
+		int width = Math.min(region[2], levelWidth - region[0]);
+		int height = Math.min(region[3], levelHeight - region[1]);
+		if (width <= 0 || height <= 0) {
+			sendError(exchange, 400);
+			return;
+		}
+		String format = query.getOrDefault("format", "jpeg");
+		sendImage(exchange, width, height, format.equals("tif") ? "png" : format);
+	}
+
+	private void sendImage(HttpExchange exchange, int width, int height, String format) throws IOException, InterruptedException {
+		byte[] bytes = encodedImages.computeIfAbsent(width + "x" + height + "." + format, k -> createImage(width, height, format));
+		send(exchange, 200, "image/" + format, bytes);
+	}
+
+	/**
+	 * Create an image with some texture, so that its compressed size is similar to the size of a real tile.
+	 */
+	private static byte[] createImage(int width, int height, String format) {
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		var random = new Random(width * 31L + height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int r = (int)(200 + 40 * Math.sin(x / 7.0) + random.nextInt(16));
+				int g = (int)(150 + 60 * Math.cos(y / 11.0) + random.nextInt(16));
+				int b = (int)(180 + 50 * Math.sin((x + y) / 5.0) + random.nextInt(16));
+				img.setRGB(x, y, (Math.min(r, 255) << 16) | (Math.min(g, 255) << 8) | Math.min(b, 255));
+			}
+		}
+		try (var stream = new ByteArrayOutputStream()) {
+			ImageIO.write(img, format, stream);
+			return stream.toByteArray();
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+
+	/*
+	 * Responses
+	 */
+
+	private static JsonArray array(JsonObject element) {
+		var array = new JsonArray();
+		array.add(element);
+		return array;
+	}
+
+	private static JsonObject data(JsonObject element) {
+		var json = new JsonObject();
+		json.add("data", element);
+		return json;
+	}
+
+	private static JsonObject data(JsonArray array) {
+		var json = new JsonObject();
+		json.add("data", array);
+		return json;
+	}
+
+	private static JsonObject page(JsonArray array, int totalCount, int limit) {
+		var json = data(array);
+		var meta = new JsonObject();
+		meta.addProperty("totalCount", totalCount);
+		meta.addProperty("limit", limit);
+		meta.addProperty("maxLimit", MAX_LIMIT);
+		json.add("meta", meta);
+		return json;
+	}
+
+	private void sendJson(HttpExchange exchange, JsonObject json) throws IOException, InterruptedException {
+		send(exchange, 200, "application/json", json.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void sendError(HttpExchange exchange, int statusCode) throws IOException {
+		exchange.sendResponseHeaders(statusCode, -1);
+	}
+
+	private void send(HttpExchange exchange, int statusCode, String contentType, byte[] body) throws IOException, InterruptedException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(statusCode, body.length);
+		OutputStream stream = exchange.getResponseBody();
+		for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+			int length = Math.min(CHUNK_SIZE, body.length - offset);
+			throttle(length);
+			stream.write(body, offset, length);
+			bytesSent.addAndGet(length);
+		}
+		stream.flush();
+	}
+
+	/**
+	 * Wait until the specified number of bytes can be sent without exceeding the bandwidth,
+	 * which is shared by all responses (as a network link would be).
+	 */
+	private void throttle(int nBytes) throws InterruptedException {
+		if (builder.bandwidth <= 0)
+			return;
+		long sendAt;
+		synchronized (this) {
+			sendAt = Math.max(System.nanoTime(), nextSendNanos);
+			nextSendNanos = sendAt + nBytes * 1_000_000_000L / builder.bandwidth;
+		}
+		long wait = sendAt - System.nanoTime();
+		if (wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) {
+		Map<String, String> query = new HashMap<>();
+		if (rawQuery == null)
+			return query;
+		for (String param: rawQuery.split("&")) {
+			int ind = param.indexOf('=');
+			if (ind > 0)
+				query.put(URLDecoder.decode(param.substring(0, ind), StandardCharsets.UTF_8), URLDecoder.decode(param.substring(ind + 1), StandardCharsets.UTF_8));
+		}
+		return query;
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		try {
+			return value == null ? defaultValue : Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+
+	private static int[] parseInts(String value, int n) {
+		if (value == null)
+			return null;
+		String[] parts = value.split(",");
+		if (parts.length != n)
+			return null;
+		int[] values = new int[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = parseInt(parts[i], -1);
+			if (values[i] < 0)
+				return null;
+		}
+		return values;
+	}
+
+
+	/**
+	 * Start a mock server from the command line, logging the number of requests and bytes sent every 10 seconds
+	 * until the process is stopped. Options (all optional) are given as {@code --name value}:
+	 * {@code port} (0 for any free port), {@code latency} (ms), {@code bandwidth} (bytes per second, 0 for unlimited),
+	 * {@code workers}, {@code projects}, {@code datasets} (per project), {@code images} (per dataset),
+	 * {@code width}, {@code height}, {@code tile}, {@code rois} (per image) and {@code points} (per ROI).
+	 * @param args
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		var builder = builder();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			int value = Integer.parseInt(args[i + 1]);
+			switch (args[i]) {
+			case "--port":
+				builder.port(value);
+				break;
+			case "--latency":
+				builder.latency(value);
+				break;
+			case "--bandwidth":
+				builder.bandwidth(value);
+				break;
+			case "--workers":
+				builder.workers(value);
+				break;
+			case "--projects":
+				builder.projects(value);
+				break;
+			case "--datasets":
+				builder.datasetsPerProject(value);
+				break;
+			case "--images":
+				builder.imagesPerDataset(value);
+				break;
+			case "--width":
+				builder.imageSize(value, builder.height);
+				break;
+			case "--height":
+				builder.imageSize(builder.width, value);
+				break;
+			case "--tile":
+				builder.tileSize(value);
+				break;
+			case "--rois":
+				builder.roisPerImage(value);
+				break;
+			case "--points":
+				builder.pointsPerRoi(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		try (var server = builder.build()) {
+			logger.info("Mock OMERO server running at {}", server.getURI());
+			long lastCount = -1;
+			while (true) {
+				Thread.sleep(10_000);
+				if (server.getRequestCount() != lastCount) {
+					lastCount = server.getRequestCount();
+					logger.info("{} requests, {} MB sent", lastCount, server.getBytesSent() / (1024 * 1024));
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Builder for a {@link OmeroMockServer}.
+	 */
+	static class Builder {
+
+		private int port = 0;
+		private long latency = 0;
+		private long bandwidth = 0;
+		private int workers = 8;
+
+		private int projects = 2;
+		private int datasetsPerProject = 2;
+		private int imagesPerDataset = 5;
+
+		private int width = 20_000;
+		private int height = 15_000;
+		private int tileSize = 256;
+		private double pixelSize = 0.25;
+
+		private int roisPerImage = 100;
+		private int pointsPerRoi = 20;
+
+		private Builder() {}
+
+		/**
+		 * Port of the server (by default 0, i.e. any free port).
+		 * @param port
+		 * @return this builder
+		 */
+		Builder port(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * Time (in milliseconds) the server takes to process each request before responding (by default 0).
+		 * Since each request keeps a worker busy, this also limits the number of requests per second.
+		 * @param millis
+		 * @return this builder
+		 * @see #workers(int)
+		 */
+		Builder latency(long millis) {
+			this.latency = millis;
+			return this;
+		}
+
+		/**
+		 * Bandwidth (in bytes per second) shared by all responses, or 0 for unlimited (by default).
+		 * @param bytesPerSecond
+		 * @return this builder
+		 */
+		Builder bandwidth(long bytesPerSecond) {
+			this.bandwidth = bytesPerSecond;
+			return this;
+		}
+
+		/**
+		 * Number of requests the server can process concurrently (by default 8, like a small OMERO.web deployment).
+		 * @param workers
+		 * @return this builder
+		 */
+		Builder workers(int workers) {
+			this.workers = Math.max(1, workers);
+			return this;
+		}
+
+		/**
+		 * Number of projects (by default 2).
+		 * @param projects
+		 * @return this builder
+		 */
+		Builder projects(int projects) {
+			this.projects = projects;
+			return this;
+		}
+
+		/**
+		 * Number of datasets in each project (by default 2).
+		 * @param datasets
+		 * @return this builder
+		 */
+		Builder datasetsPerProject(int datasets) {
+			this.datasetsPerProject = datasets;
+			return this;
+		}
+
+		/**
+		 * Number of images in each dataset (by default 5).
+		 * @param images
+		 * @return this builder
+		 */
+		Builder imagesPerDataset(int images) {
+			this.imagesPerDataset = images;
+			return this;
+		}
+
+		/**
+		 * Size of all images (by default 20,000 x 15,000 pixels).
+		 * @param width
+		 * @param height
+		 * @return this builder
+		 */
+		Builder imageSize(int width, int height) {
+			this.width = width;
+			this.height = height;
+			return this;
+		}
+
+		/**
+		 * Size of the tiles of all images (by default 256).
+		 * @param tileSize
+		 * @return this builder
+		 */
+		Builder tileSize(int tileSize) {
+			this.tileSize = tileSize;
+			return this;
+		}
+
+		/**
+		 * Number of ROIs of each image (by default 100).
+		 * @param rois
+		 * @return this builder
+		 */
+		Builder roisPerImage(int rois) {
+			this.roisPerImage = rois;
+			return this;
+		}
+
+		/**
+		 * Number of points of each ROI, which are all polygons (by default 20).
+		 * @param points
+		 * @return this builder
+		 */
+		Builder pointsPerRoi(int points) {
+			this.pointsPerRoi = Math.max(3, points);
+			return this;
+		}
+
+		/**
+		 * Start the server.
+		 * @return the started server
+		 * @throws IOException if the server cannot be started (e.g. if the port is in use)
+		 */
+		OmeroMockServer build() throws IOException {
+			return new OmeroMockServer(this);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.omero.OmeroImageDecoder.ImageFormat;
+
+/**
+ * Benchmark of the throughput of tile requests against a {@link OmeroMockServer}, comparing
+ * {@code ImageIO.read(URL)} (i.e. a new {@code URLConnection} for each tile, as tiles were read before
+ * {@link OmeroHttpTransport}) with the pooled transport used by {@link OmeroWebImageServer}.
+ * <p>
+ * Tiles are read by a fixed number of threads, as QuPath does when painting viewers.
+ * Options (all optional) are given as {@code --name value}: {@code latency} (ms), {@code bandwidth}
+ * (bytes per second, 0 for unlimited), {@code threads}, {@code tiles} (per run) and {@code runs}, e.g. with
+ * {@code gradlew omeroBenchmark -Pbenchmark=OmeroTransportBenchmark --args="--latency 20"}.
+ */
+class OmeroTransportBenchmark {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroTransportBenchmark.class);
+
+	private static final int TILE_SIZE = 256;
+
+	/**
+	 * Run the benchmark.
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int latency = 20;
+		int bandwidth = 0;
+		int nThreads = 16;
+		int nTiles = 1000;
+		int nRuns = 3;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			int value = Integer.parseInt(args[i + 1]);
+			switch (args[i]) {
+			case "--latency":
+				latency = value;
+				break;
+			case "--bandwidth":
+				bandwidth = value;
+				break;
+			case "--threads":
+				nThreads = value;
+				break;
+			case "--tiles":
+				nTiles = value;
+				break;
+			case "--runs":
+				nRuns = value;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		var builder = OmeroMockServer.builder()
+				.latency(latency)
+				.bandwidth(bandwidth)
+				.workers(Math.max(64, nThreads * 2))
+				.imageSize(100_000, 80_000)
+				.tileSize(TILE_SIZE);
+		var pool = Executors.newFixedThreadPool(nThreads, ThreadTools.createThreadFactory("omero-benchmark-", true));
+		try (var server = builder.build()) {
+			var transport = OmeroTransports.get(server.getURI());
+			logger.info("Reading {} tiles of {}x{} px with {} threads ({} ms latency)", nTiles, TILE_SIZE, TILE_SIZE, nThreads, latency);
+			for (int run = 0; run < nRuns; run++) {
+				// Different tiles for each run and each method, so that nothing is cached
+				int offset = 2 * run * nTiles;
+				double urlRate = readTiles(pool, server.getURI(), offset, nTiles, uri -> ImageIO.read(uri.toURL()));
+				double transportRate = readTiles(pool, server.getURI(), offset + nTiles, nTiles,
+						uri -> OmeroImageDecoder.decode(transport.getBytes(uri, OmeroRequestPriority.VIEWER), ImageFormat.JPEG));
+				logger.info("Run {}: ImageIO.read(URL) {} tiles/s, transport {} tiles/s",
+						run + 1, String.format("%.1f", urlRate), String.format("%.1f", transportRate));
+			}
+			logger.info("{} requests, {} MB sent", server.getRequestCount(), server.getBytesSent() / (1024 * 1024));
+			OmeroTransports.close(server.getURI());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Read tiles concurrently, and return the number of tiles read per second.
+	 */
+	private static double readTiles(ExecutorService pool, URI serverURI, int offset, int nTiles, TileReader reader)
+			throws InterruptedException, ExecutionException, IOException {
+		int nCols = 100_000 / TILE_SIZE;
+		long startTime = System.nanoTime();
+		List<Future<BufferedImage>> futures = new ArrayList<>();
+		for (int i = offset; i < offset + nTiles; i++) {
+			var uri = OmeroTransports.createURI(serverURI.getScheme(), serverURI.getHost(), serverURI.getPort(),
+					"/webgateway/render_image_region/1/0/0/",
+					String.format("tile=0,%d,%d,%d,%d&q=0.9", i % nCols, i / nCols, TILE_SIZE, TILE_SIZE));
+			futures.add(pool.submit((Callable<BufferedImage>)() -> reader.read(uri)));
+		}
+		for (var future: futures) {
+			if (future.get() == null)
+				throw new IOException("Unable to decode a tile");
+		}
+		return nTiles / ((System.nanoTime() - startTime) / 1e9);
+	}
+
+	@FunctionalInterface
+	private static interface TileReader {
+
+		BufferedImage read(URI uri) throws IOException;
+
+	}
+
+}
@@ -0,0 +1,123 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestOmeroCircuitBreaker {
+
+	private static final int FAILURES = 3;
+
+	private AtomicInteger threshold;
+	private AtomicLong time;
+	private OmeroCircuitBreaker breaker;
+
+	@BeforeEach
+	public void setUp() {
+		threshold = new AtomicInteger(FAILURES);
+		time = new AtomicLong(1_000_000L);
+		breaker = new OmeroCircuitBreaker("test", threshold::get, time::get);
+	}
+
+	private void fail(int n) {
+		for (int i = 0; i < n; i++) {
+			assertTrue(breaker.tryAcquire());
+			breaker.recordFailure();
+		}
+	}
+
+	@Test
+	public void test_opensAfterConsecutiveFailures() {
+		fail(FAILURES - 1);
+		assertFalse(breaker.isOpen());
+		fail(1);
+		assertTrue(breaker.isOpen());
+		assertFalse(breaker.tryAcquire());
+	}
+
+	@Test
+	public void test_successResetsFailures() {
+		fail(FAILURES - 1);
+		assertTrue(breaker.tryAcquire());
+		breaker.recordSuccess();
+		fail(FAILURES - 1);
+		assertFalse(breaker.isOpen());
+	}
+
+	@Test
+	public void test_disabled() {
+		threshold.set(0);
+		fail(100);
+		assertFalse(breaker.isOpen());
+	}
+
+	@Test
+	public void test_singleProbeOnceOpenPeriodElapsed() {
+		fail(FAILURES);
+		time.addAndGet(4_999);
+		assertFalse(breaker.tryAcquire());
+
+		time.addAndGet(1);
+		assertTrue(breaker.tryAcquire());
+		// Only one probe at a time
+		assertTrue(breaker.isOpen());
+		assertFalse(breaker.tryAcquire());
+
+		breaker.recordSuccess();
+		assertFalse(breaker.isOpen());
+		assertTrue(breaker.tryAcquire());
+	}
+
+	@Test
+	public void test_failedProbeDoublesOpenPeriod() {
+		fail(FAILURES);
+		time.addAndGet(5_000);
+		assertTrue(breaker.tryAcquire());
+		breaker.recordFailure();
+
+		time.addAndGet(9_999);
+		assertFalse(breaker.tryAcquire());
+		time.addAndGet(1);
+		assertTrue(breaker.tryAcquire());
+	}
+
+	@Test
+	public void test_ignoredProbeLetsAnotherProbe() {
+		fail(FAILURES);
+		time.addAndGet(5_000);
+		assertTrue(breaker.tryAcquire());
+		breaker.recordIgnored();
+
+		// The open period already elapsed, so another request can probe the server
+		assertTrue(breaker.tryAcquire());
+		assertFalse(breaker.tryAcquire());
+	}
+
+}
@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestOmeroHttpTransport {
+
+	/**
+	 * Latency of the server, much longer than the time given to requests to fail once the transport is closed
+	 */
+	private static final int LATENCY = 5_000;
+
+	private static OmeroMockServer server;
+
+	@BeforeAll
+	public static void startServer() throws IOException {
+		server = OmeroMockServer.builder()
+				.latency(LATENCY)
+				.build();
+	}
+
+	@AfterAll
+	public static void stopServer() {
+		server.close();
+	}
+
+	private static URI getTileURI(int x) {
+		return server.getURI().resolve("/webgateway/render_image_region/1/0/0/?tile=0," + x + ",0,256,256&q=0.9");
+	}
+
+	private static Throwable getFailure(CompletableFuture<?> future) throws Exception {
+		return assertThrows(ExecutionException.class, () -> future.get(LATENCY / 5, TimeUnit.MILLISECONDS)).getCause();
+	}
+
+	@Test
+	public void test_closeFailsAsyncRequest() throws Exception {
+		var transport = new OmeroHttpTransport("localhost");
+		var future = transport.getBytesAsync(getTileURI(0), OmeroRequestPriority.VIEWER);
+		Thread.sleep(100);
+		assertFalse(future.isDone());
+
+		transport.close();
+		assertTrue(getFailure(future) instanceof IOException);
+	}
+
+	@Test
+	public void test_closeFailsWaitingCaller() throws Exception {
+		var transport = new OmeroHttpTransport("localhost");
+		var result = CompletableFuture.supplyAsync(() -> {
+			try {
+				return transport.getBytes(getTileURI(1), OmeroRequestPriority.VIEWER);
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		});
+		var status = CompletableFuture.supplyAsync(() -> {
+			try {
+				return transport.getStatusCode(server.getURI().resolve("/api/v0/m/projects/"));
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		});
+		Thread.sleep(100);
+
+		transport.close();
+		assertTrue(getFailure(result).getCause() instanceof IOException);
+		assertTrue(getFailure(status).getCause() instanceof IOException);
+	}
+
+	@Test
+	public void test_closeFailsRequestsWaitingForPermit() throws Exception {
+		var transport = new OmeroHttpTransport("localhost");
+		int limit = transport.getLimiter().getLimit();
+		var futures = new CompletableFuture<?>[limit + 5];
+		for (int i = 0; i < futures.length; i++)
+			futures[i] = transport.getBytesAsync(getTileURI(10 + i), OmeroRequestPriority.BATCH);
+		Thread.sleep(100);
+		assertTrue(transport.getLimiter().getQueueDepth() > 0);
+
+		transport.close();
+		for (var future : futures)
+			assertTrue(getFailure(future) instanceof IOException);
+	}
+
+	@Test
+	public void test_requestAfterCloseFails() throws Exception {
+		var transport = new OmeroHttpTransport("localhost");
+		transport.close();
+		var future = transport.getBytesAsync(getTileURI(2), OmeroRequestPriority.VIEWER);
+		assertTrue(future.isCompletedExceptionally());
+		var ex = assertThrows(IOException.class, () -> transport.getBytes(getTileURI(2), OmeroRequestPriority.VIEWER));
+		assertEquals("Transport of localhost closed", ex.getMessage());
+	}
+
+}
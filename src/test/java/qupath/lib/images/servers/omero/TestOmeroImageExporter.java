@@ -0,0 +1,107 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestOmeroImageExporter {
+
+	private static BufferedImage createImage(int width, int height, int type) {
+		var img = new BufferedImage(width, height, type);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				img.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8 | ((x + y) % 256));
+		}
+		return img;
+	}
+
+	private static byte[] writeJPEG(BufferedImage img, boolean progressive) throws IOException {
+		var writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		var output = new ByteArrayOutputStream();
+		try (var stream = new MemoryCacheImageOutputStream(output)) {
+			writer.setOutput(stream);
+			var param = writer.getDefaultWriteParam();
+			if (progressive)
+				param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+			writer.write(null, new IIOImage(img, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return output.toByteArray();
+	}
+
+	@Test
+	public void test_compatibleJPEG() throws IOException {
+		var bytes = writeJPEG(createImage(256, 128, BufferedImage.TYPE_INT_RGB), false);
+		assertTrue(OmeroImageExporter.isCompatibleJPEG(bytes, 256, 128));
+	}
+
+	@Test
+	public void test_wrongSize() throws IOException {
+		var bytes = writeJPEG(createImage(256, 128, BufferedImage.TYPE_INT_RGB), false);
+		assertFalse(OmeroImageExporter.isCompatibleJPEG(bytes, 128, 256));
+		assertFalse(OmeroImageExporter.isCompatibleJPEG(bytes, 256, 256));
+	}
+
+	@Test
+	public void test_greyscaleJPEG() throws IOException {
+		var bytes = writeJPEG(createImage(256, 256, BufferedImage.TYPE_BYTE_GRAY), false);
+		assertFalse(OmeroImageExporter.isCompatibleJPEG(bytes, 256, 256));
+	}
+
+	@Test
+	public void test_progressiveJPEG() throws IOException {
+		var bytes = writeJPEG(createImage(256, 256, BufferedImage.TYPE_INT_RGB), true);
+		assertFalse(OmeroImageExporter.isCompatibleJPEG(bytes, 256, 256));
+	}
+
+	@Test
+	public void test_notJPEG() throws IOException {
+		var output = new ByteArrayOutputStream();
+		ImageIO.write(createImage(256, 256, BufferedImage.TYPE_INT_RGB), "png", output);
+		assertFalse(OmeroImageExporter.isCompatibleJPEG(output.toByteArray(), 256, 256));
+		assertFalse(OmeroImageExporter.isCompatibleJPEG(new byte[0], 256, 256));
+	}
+
+	@Test
+	public void test_truncatedJPEG() throws IOException {
+		var bytes = writeJPEG(createImage(256, 256, BufferedImage.TYPE_INT_RGB), false);
+		// Cut in the middle of the headers, before the start of frame
+		for (int length = 2; length < 100; length++)
+			assertFalse(OmeroImageExporter.isCompatibleJPEG(Arrays.copyOf(bytes, length), 256, 256));
+	}
+
+}
@@ -0,0 +1,185 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestOmeroRequestLimiter {
+
+	/**
+	 * Acquire permits for batch requests until one has to wait.
+	 */
+	private static List<CompletableFuture<Void>> fill(OmeroRequestLimiter limiter) {
+		List<CompletableFuture<Void>> permits = new ArrayList<>();
+		CompletableFuture<Void> permit;
+		do {
+			permit = limiter.acquire(OmeroRequestPriority.BATCH);
+			permits.add(permit);
+		} while (permit.isDone());
+		return permits;
+	}
+
+	@Test
+	public void test_lastPermitKeptForViewer() {
+		var limiter = new OmeroRequestLimiter("test");
+		int limit = limiter.getLimit();
+		var permits = fill(limiter);
+
+		// The last batch request waits, although one permit is left
+		assertEquals(limit, permits.size());
+		assertEquals(limit - 1, limiter.getInFlight());
+		assertEquals(1, limiter.getQueueDepth());
+
+		// ... which a viewer request can take
+		assertTrue(limiter.acquire(OmeroRequestPriority.VIEWER).isDone());
+		assertEquals(limit, limiter.getInFlight());
+		assertFalse(limiter.acquire(OmeroRequestPriority.VIEWER).isDone());
+	}
+
+	@Test
+	public void test_permitsGrantedByPriority() {
+		var limiter = new OmeroRequestLimiter("test");
+		fill(limiter);
+		assertTrue(limiter.acquire(OmeroRequestPriority.VIEWER).isDone());
+
+		var prefetch = limiter.acquire(OmeroRequestPriority.PREFETCH);
+		var overview = limiter.acquire(OmeroRequestPriority.OVERVIEW);
+		var viewer = limiter.acquire(OmeroRequestPriority.VIEWER);
+		assertEquals(4, limiter.getQueueDepth());
+
+		limiter.releaseIgnored();
+		assertTrue(viewer.isDone());
+		assertFalse(overview.isDone());
+
+		limiter.releaseIgnored();
+		assertTrue(overview.isDone());
+		assertFalse(prefetch.isDone());
+
+		// Lower priorities cannot take the last permit
+		limiter.releaseIgnored();
+		assertFalse(prefetch.isDone());
+		limiter.releaseIgnored();
+		assertTrue(prefetch.isDone());
+	}
+
+	@Test
+	public void test_batchRequestsInOrder() {
+		var limiter = new OmeroRequestLimiter("test");
+		var permits = fill(limiter);
+		var first = permits.get(permits.size() - 1);
+		var second = limiter.acquire(OmeroRequestPriority.BATCH);
+
+		limiter.releaseIgnored();
+		assertTrue(first.isDone());
+		assertFalse(second.isDone());
+	}
+
+	@Test
+	public void test_cancelledWaiterDoesNotTakePermit() {
+		var limiter = new OmeroRequestLimiter("test");
+		var permits = fill(limiter);
+		int inFlight = limiter.getInFlight();
+		var waiting = permits.get(permits.size() - 1);
+
+		waiting.cancel(true);
+		assertEquals(0, limiter.getQueueDepth());
+
+		limiter.releaseIgnored();
+		assertEquals(inFlight - 1, limiter.getInFlight());
+	}
+
+	@Test
+	public void test_backoffWhenOverloaded() {
+		var limiter = new OmeroRequestLimiter("test");
+		int limit = limiter.getLimit();
+		limiter.acquireNow();
+		limiter.releaseOverloaded();
+		assertTrue(limiter.getLimit() < limit);
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void test_limitGrowsWhenReached() {
+		var limiter = new OmeroRequestLimiter("test");
+		int limit = limiter.getLimit();
+		for (int i = 0; i < limit; i++)
+			limiter.acquireNow();
+
+		// Constant latency, with all the permits in use
+		for (int i = 0; i < 2 * limit && limiter.getLimit() == limit; i++) {
+			limiter.release(1_000_000L);
+			limiter.acquireNow();
+		}
+		assertEquals(limit + 1, limiter.getLimit());
+	}
+
+	@Test
+	public void test_singleSlowResponseIgnored() {
+		var limiter = new OmeroRequestLimiter("test");
+		int limit = limiter.getLimit();
+		for (int i = 0; i < 10; i++) {
+			limiter.acquireNow();
+			limiter.release(1_000L);
+		}
+		// e.g. a tile rendered by OMERO, while the others were cached
+		limiter.acquireNow();
+		limiter.release(5_000L);
+		assertEquals(limit, limiter.getLimit());
+	}
+
+	@Test
+	public void test_backoffWhenSlow() {
+		var limiter = new OmeroRequestLimiter("test");
+		int limit = limiter.getLimit();
+		for (int i = 0; i < 10; i++) {
+			limiter.acquireNow();
+			limiter.release(1_000L);
+		}
+		for (int i = 0; i < 100 && limiter.getLimit() == limit; i++) {
+			limiter.acquireNow();
+			limiter.release(10_000L);
+		}
+		assertTrue(limiter.getLimit() < limit);
+	}
+
+	@Test
+	public void test_limitDoesNotGrowWhenUnused() {
+		var limiter = new OmeroRequestLimiter("test");
+		int limit = limiter.getLimit();
+		for (int i = 0; i < 10 * limit; i++) {
+			limiter.acquireNow();
+			limiter.release(1_000_000L);
+		}
+		assertEquals(limit, limiter.getLimit());
+		assertEquals(0, limiter.getInFlight());
+	}
+
+}
@@ -0,0 +1,161 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestOmeroSingleFlight {
+
+	@Test
+	public void test_asyncRequestsShared() throws Exception {
+		var singleFlight = new OmeroSingleFlight<String, String>();
+		var count = new AtomicInteger();
+		var request = new CompletableFuture<String>();
+
+		var first = singleFlight.getAsync("key", () -> {
+			count.incrementAndGet();
+			return request;
+		});
+		var second = singleFlight.getAsync("key", () -> {
+			count.incrementAndGet();
+			return CompletableFuture.completedFuture("other");
+		});
+		assertFalse(second.isDone());
+
+		request.complete("value");
+		assertEquals("value", first.get());
+		assertEquals("value", second.get());
+		assertEquals(1, count.get());
+	}
+
+	@Test
+	public void test_differentKeysNotShared() throws Exception {
+		var singleFlight = new OmeroSingleFlight<String, String>();
+		var first = singleFlight.getAsync("key1", () -> new CompletableFuture<>());
+		var second = singleFlight.getAsync("key2", () -> CompletableFuture.completedFuture("value2"));
+		assertFalse(first.isDone());
+		assertEquals("value2", second.get());
+	}
+
+	@Test
+	public void test_nothingCachedOnceComplete() throws Exception {
+		var singleFlight = new OmeroSingleFlight<String, String>();
+		var count = new AtomicInteger();
+		for (int i = 1; i <= 3; i++)
+			assertEquals("value" + i, singleFlight.get("key", () -> "value" + count.incrementAndGet()));
+		assertEquals(3, count.get());
+	}
+
+	@Test
+	public void test_syncJoinsAsyncRequest() throws Exception {
+		var singleFlight = new OmeroSingleFlight<String, String>();
+		var request = new CompletableFuture<String>();
+		singleFlight.getAsync("key", () -> request);
+
+		var count = new AtomicInteger();
+		var result = new CompletableFuture<String>();
+		var thread = new Thread(() -> {
+			try {
+				result.complete(singleFlight.get("key", () -> {
+					count.incrementAndGet();
+					return "other";
+				}));
+			} catch (IOException ex) {
+				result.completeExceptionally(ex);
+			}
+		});
+		thread.start();
+		// Wait for the thread to block on the request in flight
+		while (thread.getState() != Thread.State.WAITING && !result.isDone())
+			Thread.sleep(1);
+		request.complete("value");
+		assertEquals("value", result.get());
+		assertEquals(0, count.get());
+	}
+
+	@Test
+	public void test_failureShared() {
+		var singleFlight = new OmeroSingleFlight<String, String>();
+		var request = new CompletableFuture<String>();
+		var first = singleFlight.getAsync("key", () -> request);
+		var second = singleFlight.getAsync("key", () -> CompletableFuture.completedFuture("other"));
+
+		var ex = new IOException("Failed");
+		request.completeExceptionally(ex);
+		assertSame(ex, assertThrows(ExecutionException.class, () -> first.get()).getCause());
+		assertSame(ex, assertThrows(ExecutionException.class, () -> second.get()).getCause());
+	}
+
+	@Test
+	public void test_syncFailureRethrown() {
+		var singleFlight = new OmeroSingleFlight<String, String>();
+		var ex = assertThrows(IOException.class, () -> singleFlight.get("key", () -> {
+			throw new IOException("Failed");
+		}));
+		assertEquals("Failed", ex.getMessage());
+	}
+
+	@Test
+	public void test_cancelledRequestSentAgain() throws Exception {
+		var singleFlight = new OmeroSingleFlight<String, String>();
+		var first = singleFlight.getAsync("key", () -> new CompletableFuture<>());
+
+		var count = new AtomicInteger();
+		var second = singleFlight.getAsync("key", () -> {
+			count.incrementAndGet();
+			return CompletableFuture.completedFuture("value");
+		});
+		assertEquals(0, count.get());
+
+		// The caller that sent the request no longer needs it, the other one should send its own
+		first.cancel(true);
+		assertEquals("value", second.get());
+		assertEquals(1, count.get());
+	}
+
+	@Test
+	public void test_cancellingOtherCallerKeepsRequest() {
+		var singleFlight = new OmeroSingleFlight<String, String>();
+		var request = new CompletableFuture<String>();
+		var first = singleFlight.getAsync("key", () -> request);
+		var second = singleFlight.getAsync("key", () -> CompletableFuture.completedFuture("other"));
+
+		second.cancel(true);
+		assertFalse(request.isCancelled());
+		request.complete("value");
+		assertTrue(first.isDone());
+		assertEquals("value", first.join());
+	}
+
+}
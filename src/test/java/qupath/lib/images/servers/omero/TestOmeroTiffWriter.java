@@ -0,0 +1,327 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+@SuppressWarnings("javadoc")
+public class TestOmeroTiffWriter {
+
+	private static final int TILE_SIZE = 256;
+	private static final int N_PLANES = 2;
+	private static final int[][] LEVEL_SIZES = {{600, 400}, {300, 200}, {150, 100}};
+	private static final String DESCRIPTION = "<OME>test</OME>";
+
+	@TempDir
+	Path directory;
+
+	/**
+	 * Value of the pixels of a tile, different for each tile of the file.
+	 */
+	private static int getValue(int plane, int level, int index) {
+		return 10 + plane * 100 + level * 30 + index * 5;
+	}
+
+	private static byte[] deflate(byte[] bytes) {
+		var deflater = new Deflater();
+		deflater.setInput(bytes);
+		deflater.finish();
+		var output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished())
+			output.write(buffer, 0, deflater.deflate(buffer));
+		deflater.end();
+		return output.toByteArray();
+	}
+
+	private static byte[] inflate(byte[] bytes, int length) throws DataFormatException {
+		var inflater = new Inflater();
+		inflater.setInput(bytes);
+		byte[] output = new byte[length];
+		int n = inflater.inflate(output);
+		inflater.end();
+		assertEquals(length, n);
+		return output;
+	}
+
+	private static byte[] encodeGreyTile(int value) {
+		byte[] pixels = new byte[TILE_SIZE * TILE_SIZE];
+		Arrays.fill(pixels, (byte)value);
+		// A few different pixels, so that the tiles have different lengths (some odd, needing padding)
+		for (int i = 0; i < value; i += 3)
+			pixels[i * 97 + 1] = (byte)i;
+		return deflate(pixels);
+	}
+
+	private static byte[] encodeRGBTile(int value) throws IOException {
+		var img = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < TILE_SIZE; y++) {
+			for (int x = 0; x < TILE_SIZE; x++)
+				img.setRGB(x, y, value << 16 | (255 - value) << 8 | 128);
+		}
+		var output = new ByteArrayOutputStream();
+		ImageIO.write(img, "jpeg", output);
+		return output.toByteArray();
+	}
+
+	/**
+	 * Write all the tiles, in reverse order (as tiles can be written in any order).
+	 */
+	private static void writeTiles(OmeroTiffWriter writer, TileEncoder encoder) throws IOException {
+		for (int p = N_PLANES - 1; p >= 0; p--) {
+			for (int l = LEVEL_SIZES.length - 1; l >= 0; l--) {
+				for (int row = writer.nTilesY(l) - 1; row >= 0; row--) {
+					for (int col = writer.nTilesX(l) - 1; col >= 0; col--)
+						writer.writeTile(p, l, col, row, encoder.encode(getValue(p, l, row * writer.nTilesX(l) + col)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void test_greyscaleDeflate() throws Exception {
+		var path = directory.resolve("grey.ome.tif");
+		try (var writer = new OmeroTiffWriter(path, LEVEL_SIZES, N_PLANES, 1, TILE_SIZE, TILE_SIZE, OmeroTiffWriter.COMPRESSION_DEFLATE, DESCRIPTION)) {
+			writeTiles(writer, TestOmeroTiffWriter::encodeGreyTile);
+		}
+
+		var tiff = new BigTiff(Files.readAllBytes(path));
+		var planes = tiff.readPlanes();
+		assertEquals(N_PLANES, planes.size());
+		int oddCounts = 0;
+		for (int p = 0; p < N_PLANES; p++) {
+			var levels = planes.get(p);
+			assertEquals(LEVEL_SIZES.length, levels.size());
+			for (int l = 0; l < LEVEL_SIZES.length; l++) {
+				var ifd = levels.get(l);
+				checkIFD(ifd, p, l, 1, OmeroTiffWriter.COMPRESSION_DEFLATE, 1);
+				long[] offsets = ifd.get(324);
+				long[] counts = ifd.get(325);
+				for (int i = 0; i < offsets.length; i++) {
+					assertEquals(0, offsets[i] % 2);
+					oddCounts += counts[i] % 2;
+					byte[] pixels = inflate(tiff.getBytes(offsets[i], counts[i]), TILE_SIZE * TILE_SIZE);
+					assertEquals(getValue(p, l, i), pixels[0] & 0xFF);
+					assertEquals(getValue(p, l, i), pixels[pixels.length - 1] & 0xFF);
+				}
+			}
+		}
+		// Otherwise the padding is not tested
+		assertTrue(oddCounts > 0);
+	}
+
+	@Test
+	public void test_rgbJPEG() throws Exception {
+		var path = directory.resolve("rgb.ome.tif");
+		try (var writer = new OmeroTiffWriter(path, LEVEL_SIZES, N_PLANES, 3, TILE_SIZE, TILE_SIZE, OmeroTiffWriter.COMPRESSION_JPEG, DESCRIPTION)) {
+			writeTiles(writer, TestOmeroTiffWriter::encodeRGBTile);
+		}
+
+		var tiff = new BigTiff(Files.readAllBytes(path));
+		var planes = tiff.readPlanes();
+		assertEquals(N_PLANES, planes.size());
+		for (int p = 0; p < N_PLANES; p++) {
+			for (int l = 0; l < LEVEL_SIZES.length; l++) {
+				var ifd = planes.get(p).get(l);
+				// YCbCr, with the chroma subsampled 2x2
+				checkIFD(ifd, p, l, 3, OmeroTiffWriter.COMPRESSION_JPEG, 6);
+				assertArrayEquals(new long[] {2, 2}, ifd.get(530));
+				long[] offsets = ifd.get(324);
+				long[] counts = ifd.get(325);
+				for (int i = 0; i < offsets.length; i++) {
+					var img = ImageIO.read(new ByteArrayInputStream(tiff.getBytes(offsets[i], counts[i])));
+					assertEquals(TILE_SIZE, img.getWidth());
+					assertEquals(TILE_SIZE, img.getHeight());
+					int rgb = img.getRGB(TILE_SIZE / 2, TILE_SIZE / 2);
+					assertTrue(Math.abs(((rgb >> 16) & 0xFF) - getValue(p, l, i)) <= 4);
+					assertTrue(Math.abs(((rgb >> 8) & 0xFF) - (255 - getValue(p, l, i))) <= 4);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void test_abortWritesNoIFD() throws Exception {
+		var path = directory.resolve("aborted.ome.tif");
+		var writer = new OmeroTiffWriter(path, LEVEL_SIZES, N_PLANES, 1, TILE_SIZE, TILE_SIZE, OmeroTiffWriter.COMPRESSION_DEFLATE, DESCRIPTION);
+		writer.writeTile(0, 0, 0, 0, encodeGreyTile(1));
+		writer.abort();
+
+		var tiff = new BigTiff(Files.readAllBytes(path));
+		assertEquals(0L, tiff.buffer.getLong(8));
+	}
+
+	private static void checkIFD(Map<Integer, long[]> ifd, int plane, int level, int samplesPerPixel, int compression, int photometric) {
+		assertArrayEquals(new long[] {level == 0 ? 0 : 1}, ifd.get(254));
+		assertArrayEquals(new long[] {LEVEL_SIZES[level][0]}, ifd.get(256));
+		assertArrayEquals(new long[] {LEVEL_SIZES[level][1]}, ifd.get(257));
+		long[] bits = new long[samplesPerPixel];
+		Arrays.fill(bits, 8);
+		assertArrayEquals(bits, ifd.get(258));
+		assertArrayEquals(new long[] {compression}, ifd.get(259));
+		assertArrayEquals(new long[] {photometric}, ifd.get(262));
+		assertArrayEquals(new long[] {samplesPerPixel}, ifd.get(277));
+		assertArrayEquals(new long[] {TILE_SIZE}, ifd.get(322));
+		assertArrayEquals(new long[] {TILE_SIZE}, ifd.get(323));
+		int nTiles = ((LEVEL_SIZES[level][0] + TILE_SIZE - 1) / TILE_SIZE) * ((LEVEL_SIZES[level][1] + TILE_SIZE - 1) / TILE_SIZE);
+		assertEquals(nTiles, ifd.get(324).length);
+		assertEquals(nTiles, ifd.get(325).length);
+		// Only the first IFD has the OME-XML
+		if (plane == 0 && level == 0)
+			assertNotNull(ifd.get(270));
+		else
+			assertNull(ifd.get(270));
+	}
+
+	@FunctionalInterface
+	private static interface TileEncoder {
+
+		byte[] encode(int value) throws IOException;
+
+	}
+
+
+	/**
+	 * Minimal little-endian BigTIFF parser, reading the values of each IFD as longs.
+	 */
+	private static class BigTiff {
+
+		private final ByteBuffer buffer;
+		private String description;
+
+		private BigTiff(byte[] bytes) {
+			this.buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals('I', buffer.get(0));
+			assertEquals('I', buffer.get(1));
+			assertEquals(43, buffer.getShort(2));
+			assertEquals(8, buffer.getShort(4));
+			assertEquals(0, buffer.getShort(6));
+		}
+
+		/**
+		 * Read the IFDs of each plane (following the chain of IFDs), each followed by its SubIFDs.
+		 */
+		private List<List<Map<Integer, long[]>>> readPlanes() {
+			List<List<Map<Integer, long[]>>> planes = new ArrayList<>();
+			long offset = buffer.getLong(8);
+			while (offset != 0) {
+				assertEquals(0, offset % 2);
+				List<Map<Integer, long[]>> levels = new ArrayList<>();
+				var ifd = new HashMap<Integer, long[]>();
+				offset = readIFD(offset, ifd);
+				levels.add(ifd);
+				long[] subIFDs = ifd.get(330);
+				if (subIFDs != null) {
+					for (long subOffset : subIFDs) {
+						var subIFD = new HashMap<Integer, long[]>();
+						assertEquals(0L, readIFD(subOffset, subIFD));
+						levels.add(subIFD);
+					}
+				}
+				planes.add(levels);
+			}
+			assertEquals(DESCRIPTION, description);
+			return planes;
+		}
+
+		/**
+		 * Read an IFD, and return the offset of the next one.
+		 */
+		private long readIFD(long offset, Map<Integer, long[]> ifd) {
+			int pos = (int)offset;
+			long n = buffer.getLong(pos);
+			pos += 8;
+			for (int i = 0; i < n; i++) {
+				int tag = buffer.getShort(pos) & 0xFFFF;
+				int type = buffer.getShort(pos + 2) & 0xFFFF;
+				int count = (int)buffer.getLong(pos + 4);
+				int size = getSize(type);
+				int valuePos = count * size <= 8 ? pos + 12 : (int)buffer.getLong(pos + 12);
+				if (type == 2) {
+					byte[] bytes = getBytes(valuePos, count - 1);
+					if (tag == 270)
+						description = new String(bytes, StandardCharsets.UTF_8);
+					ifd.put(tag, new long[] {count});
+				} else {
+					long[] values = new long[count];
+					for (int j = 0; j < count; j++) {
+						int p = valuePos + j * size;
+						values[j] = size == 2 ? buffer.getShort(p) & 0xFFFF : size == 4 ? buffer.getInt(p) & 0xFFFFFFFFL : buffer.getLong(p);
+					}
+					ifd.put(tag, values);
+				}
+				pos += 20;
+			}
+			return buffer.getLong(pos);
+		}
+
+		private static int getSize(int type) {
+			switch (type) {
+			case 2:
+				return 1;
+			case 3:
+				return 2;
+			case 4:
+				return 4;
+			case 16:
+			case 18:
+				return 8;
+			default:
+				throw new AssertionError("Unexpected type " + type);
+			}
+		}
+
+		private byte[] getBytes(long offset, long length) {
+			byte[] bytes = new byte[(int)length];
+			buffer.get((int)offset, bytes);
+			return bytes;
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.images.servers.omero.OmeroTileCache.TileKey;
+
+@SuppressWarnings("javadoc")
+public class TestOmeroTileCache {
+
+	private static final int TILE_BYTES = 400 * 1024;
+	private static final long MAX_BYTES = 1024 * 1024;
+
+	@TempDir
+	Path directory;
+
+	private final List<OmeroTileCache> caches = new ArrayList<>();
+
+	@AfterEach
+	public void tearDown() {
+		caches.forEach(OmeroTileCache::close);
+	}
+
+	private OmeroTileCache createCache(Path directory) {
+		var cache = new OmeroTileCache(directory, () -> MAX_BYTES);
+		caches.add(cache);
+		return cache;
+	}
+
+	private static TileKey createKey(int x) {
+		return new TileKey("omero.example.org:4080", "42", 0, x, 0, 256, 256, 0, 0, "q0.9");
+	}
+
+	private static byte[] createBytes(int value) {
+		byte[] bytes = new byte[TILE_BYTES];
+		bytes[0] = (byte)value;
+		bytes[bytes.length - 1] = (byte)value;
+		return bytes;
+	}
+
+	@Test
+	public void test_putAndGet() {
+		var cache = createCache(directory);
+		var key = createKey(0);
+		assertNull(cache.get(key));
+		assertFalse(cache.contains(key));
+
+		var bytes = createBytes(1);
+		cache.put(key, bytes);
+		assertTrue(cache.contains(key));
+		assertArrayEquals(bytes, cache.get(key));
+		assertEquals(TILE_BYTES, cache.getSizeBytes());
+		assertTrue(Files.isRegularFile(directory.resolve(key.toRelativePath())));
+
+		// Same tile with another rendering
+		assertNull(cache.get(createKey(0).forChannel(1, "q0.9")));
+
+		cache.remove(key);
+		assertNull(cache.get(key));
+		assertEquals(0, cache.getSizeBytes());
+		assertFalse(Files.exists(directory.resolve(key.toRelativePath())));
+	}
+
+	@Test
+	public void test_leastRecentlyUsedEvicted() {
+		var cache = createCache(directory);
+		cache.put(createKey(0), createBytes(0));
+		cache.put(createKey(1), createBytes(1));
+		assertNotNull(cache.get(createKey(0)));
+
+		// Exceeds 1 MB
+		cache.put(createKey(2), createBytes(2));
+		assertTrue(cache.contains(createKey(0)));
+		assertFalse(cache.contains(createKey(1)));
+		assertTrue(cache.contains(createKey(2)));
+		assertEquals(2 * TILE_BYTES, cache.getSizeBytes());
+		assertFalse(Files.exists(directory.resolve(createKey(1).toRelativePath())));
+	}
+
+	@Test
+	public void test_deletedFileIsMiss() throws IOException {
+		var cache = createCache(directory);
+		var key = createKey(0);
+		cache.put(key, createBytes(0));
+		Files.delete(directory.resolve(key.toRelativePath()));
+		assertNull(cache.get(key));
+		assertFalse(cache.contains(key));
+		assertEquals(0, cache.getSizeBytes());
+	}
+
+	@Test
+	public void test_reloadedFromDisk() throws IOException {
+		var cache = createCache(directory);
+		var bytes = createBytes(3);
+		cache.put(createKey(0), bytes);
+
+		// A cache in another directory is empty, and a new cache in the same directory loads the tiles already on disk
+		assertNull(createCache(Files.createDirectory(directory.resolve("other"))).get(createKey(0)));
+		var reloaded = createCache(directory);
+		assertArrayEquals(bytes, reloaded.get(createKey(0)));
+		assertEquals(TILE_BYTES, reloaded.getSizeBytes());
+	}
+
+	@Test
+	public void test_removedTileNotReloaded() throws Exception {
+		createCache(directory).put(createKey(0), createBytes(0));
+
+		// The tile might be removed before or after the files on disk are listed
+		var reloaded = createCache(directory);
+		reloaded.remove(createKey(0));
+		assertFalse(reloaded.contains(createKey(0)));
+		assertNull(reloaded.get(createKey(0)));
+		assertEquals(0, reloaded.getSizeBytes());
+	}
+
+}
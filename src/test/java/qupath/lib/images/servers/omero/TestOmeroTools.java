@@ -0,0 +1,99 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.omero;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonParser;
+
+@SuppressWarnings("javadoc")
+public class TestOmeroTools {
+
+	private static final int N_IMAGES = 1234;
+	private static final int N_ROIS = 450;
+
+	private static OmeroMockServer server;
+
+	@BeforeAll
+	public static void startServer() throws IOException {
+		server = OmeroMockServer.builder()
+				.latency(5)
+				.projects(1)
+				.datasetsPerProject(2)
+				.imagesPerDataset(N_IMAGES)
+				.roisPerImage(N_ROIS)
+				.build();
+	}
+
+	@AfterAll
+	public static void stopServer() {
+		OmeroTransports.close(server.getURI());
+		server.close();
+	}
+
+	@Test
+	public void test_readPaginated() throws IOException {
+		// Several pages, the second dataset starting after the images of the first one
+		var uri = server.getURI().resolve("/api/v0/m/datasets/2/images/");
+		var items = OmeroTools.readPaginated(uri);
+		assertEquals(N_IMAGES, items.size());
+		for (int i = 0; i < items.size(); i++)
+			assertEquals(N_IMAGES + i + 1, items.get(i).getAsJsonObject().get("@id").getAsInt());
+	}
+
+	@Test
+	public void test_readPaginatedWithQuery() throws IOException {
+		var uri = server.getURI().resolve("/api/v0/m/datasets/1/images/?limit=500");
+		var ids = OmeroTools.readPaginated(uri, reader -> JsonParser.parseReader(reader).getAsJsonObject().get("@id").getAsInt());
+		assertEquals(N_IMAGES, ids.size());
+		for (int i = 0; i < ids.size(); i++)
+			assertEquals(i + 1, ids.get(i).intValue());
+	}
+
+	@Test
+	public void test_readSinglePage() throws IOException {
+		var uri = server.getURI().resolve("/api/v0/m/projects/1/datasets/");
+		assertEquals(2, OmeroTools.readPaginated(uri).size());
+	}
+
+	@Test
+	public void test_readPaginatedStreaming() throws IOException {
+		var uri = server.getURI().resolve("/api/v0/m/rois/?image=1");
+		var rois = OmeroTools.readPaginated(uri, OmeroShapes::readShapes);
+		assertEquals(N_ROIS, rois.size());
+		assertTrue(rois.stream().allMatch(shapes -> !shapes.isEmpty()));
+	}
+
+	@Test
+	public void test_readPaginatedMissing() throws IOException {
+		var uri = server.getURI().resolve("/api/v0/m/datasets/999/images/");
+		assertTrue(OmeroTools.readPaginated(uri).isEmpty());
+	}
+
+}